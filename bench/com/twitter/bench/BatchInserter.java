@@ -0,0 +1,54 @@
+package com.twitter.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Buffers rows for one INSERT statement and sends them as JDBC batches,
+ * committing after each batch so seeding millions of rows keeps undo logs small.
+ * With {@code rewriteBatchedStatements=true} each batch becomes one multi-row INSERT.
+ */
+class BatchInserter implements AutoCloseable {
+
+    private final Connection conn;
+    private final PreparedStatement pstmt;
+    private final int batchSize;
+    private int pending;
+    private long rows;
+
+    BatchInserter(Connection conn, String sql, int batchSize) throws SQLException {
+        this.conn = conn;
+        this.pstmt = conn.prepareStatement(sql);
+        this.batchSize = batchSize;
+        conn.setAutoCommit(false);
+    }
+
+    void add(Object... values) throws SQLException {
+        for (int i = 0; i < values.length; i++) pstmt.setObject(i + 1, values[i]);
+        pstmt.addBatch();
+        rows++;
+        if (++pending == batchSize) flush();
+    }
+
+    void flush() throws SQLException {
+        if (pending == 0) return;
+        pstmt.executeBatch();
+        conn.commit();
+        pending = 0;
+    }
+
+    long rows() {
+        return rows;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            flush();
+        } finally {
+            pstmt.close();
+            conn.setAutoCommit(true);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.twitter.bench;
+
+import com.twitter.util.DBConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Random;
+
+/**
+ * Deterministic data set for {@link Benchmarks}. Every id, follow edge and post
+ * body is derived from {@code twitter.bench.seed}, so two runs against freshly
+ * created schemas see identical data. Seeding needs an empty schema (run
+ * create_table.sql against a scratch database first); a schema that already
+ * holds this fixture is reused as is.
+ */
+class BenchFixture {
+
+    static final int USERS = Integer.getInteger("twitter.bench.users", 20_000);
+    static final int POSTS = Integer.getInteger("twitter.bench.posts", 1_000_000);
+    static final long SEED = Long.getLong("twitter.bench.seed", 42);
+
+    // Readers whose home timelines are measured, by number of accounts followed.
+    static final int FOLLOWS_10 = 1;
+    static final int FOLLOWS_1K = 2;
+    static final int FOLLOWS_10K = 3;
+    // Author for createPost; followed by POSTER_FOLLOWERS users so each post fans out.
+    static final int POSTER = 4;
+    static final int POSTER_FOLLOWERS = 100;
+    // Users 10..39 are @mention targets, 100..163 like the hot post concurrently.
+    static final int FIRST_MENTION_TARGET = 10;
+    static final int MENTION_TARGETS = 30;
+    static final int FIRST_LIKER = 100;
+    static final int LIKERS = 64;
+    // Everyone from here up is an ordinary author.
+    private static final int FIRST_AUTHOR = 1000;
+
+    static final int HOT_POST = 1;
+    static final int WIDE_POST = 2;
+    static final int DEEP_POST = 3;
+    static final int WIDE_ROOTS = 2000;
+    static final int WIDE_REPLIES = 3;
+    static final int DEEP_LEVELS = 1000;
+
+    private static final int BATCH = 5000;
+    private static final long SPAN_MS = 30L * 24 * 60 * 60 * 1000;
+    private static final String[] WORDS = {
+            "java", "mysql", "index", "query", "cache", "thread", "swing", "timeline", "latency", "batch",
+            "coffee", "weekend", "release", "deploy", "review", "bug", "feature", "music", "travel", "news"
+    };
+
+    static String username(int userId) {
+        return "bench" + userId;
+    }
+
+    static void ensureSeeded() throws SQLException {
+        if (USERS < FIRST_AUTHOR + 10_000) throw new IllegalStateException("twitter.bench.users must be at least " + (FIRST_AUTHOR + 10_000));
+        long users = count("users");
+        if (users == USERS && count("posts") == POSTS) {
+            System.out.println("[BENCH] Reusing existing fixture (" + USERS + " users, " + POSTS + " posts)");
+            return;
+        }
+        if (users != 0) {
+            throw new IllegalStateException("Benchmark fixture needs an empty schema; found " + users
+                    + " users. Point -Dtwitter.db.url at a scratch database created with create_table.sql.");
+        }
+
+        long started = System.currentTimeMillis();
+        Random random = new Random(SEED);
+        seedUsers();
+        seedFollows(random);
+        long firstPostAt = System.currentTimeMillis() - SPAN_MS;
+        seedPosts(random, firstPostAt);
+        seedComments(firstPostAt);
+        backfillTimelines();
+        System.out.printf("[BENCH] Seeded fixture in %d s%n", (System.currentTimeMillis() - started) / 1000);
+    }
+
+    private static void seedUsers() throws SQLException {
+        String sql = "INSERT INTO users (user_id, username, email, password_hash, display_name, country_code) VALUES (?, ?, ?, ?, ?, ?)";
+        try (Connection conn = DBConnection.getConnection();
+             BatchInserter users = new BatchInserter(conn, sql, BATCH)) {
+            for (int id = 1; id <= USERS; id++) {
+                users.add(id, username(id), username(id) + "@bench.example", "password123", "Bench User " + id, "US");
+            }
+        }
+    }
+
+    private static void seedFollows(Random random) throws SQLException {
+        int[] authors = new int[USERS - FIRST_AUTHOR + 1];
+        for (int i = 0; i < authors.length; i++) authors[i] = FIRST_AUTHOR + i;
+        for (int i = authors.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = authors[i];
+            authors[i] = authors[j];
+            authors[j] = t;
+        }
+
+        String sql = "INSERT INTO follows (follower_id, following_id) VALUES (?, ?)";
+        try (Connection conn = DBConnection.getConnection();
+             BatchInserter follows = new BatchInserter(conn, sql, BATCH)) {
+            for (int i = 0; i < 10; i++) follows.add(FOLLOWS_10, authors[i]);
+            for (int i = 0; i < 1000; i++) follows.add(FOLLOWS_1K, authors[i]);
+            for (int i = 0; i < 10_000; i++) follows.add(FOLLOWS_10K, authors[i]);
+            for (int i = 0; i < POSTER_FOLLOWERS; i++) follows.add(FIRST_AUTHOR + i, POSTER);
+        }
+    }
+
+    private static void seedPosts(Random random, long firstPostAt) throws SQLException {
+        String sql = "INSERT INTO posts (post_id, user_id, content, view_count, created_at) VALUES (?, ?, ?, ?, ?)";
+        long step = Math.max(1, SPAN_MS / POSTS);
+        StringBuilder text = new StringBuilder();
+        try (Connection conn = DBConnection.getConnection();
+             BatchInserter posts = new BatchInserter(conn, sql, BATCH)) {
+            for (int id = 1; id <= POSTS; id++) {
+                int author = id <= DEEP_POST ? POSTER : FIRST_AUTHOR + random.nextInt(USERS - FIRST_AUTHOR + 1);
+                text.setLength(0);
+                text.append("post ").append(id);
+                for (int w = 0; w < 8; w++) text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+                posts.add(id, author, text.toString(), random.nextInt(500), new Timestamp(firstPostAt + id * step));
+            }
+        }
+    }
+
+    private static void seedComments(long firstPostAt) throws SQLException {
+        String sql = "INSERT INTO comments (comment_id, post_id, user_id, parent_comment_id, content, created_at) VALUES (?, ?, ?, ?, ?, ?)";
+        Timestamp at = new Timestamp(firstPostAt);
+        int id = 0;
+        try (Connection conn = DBConnection.getConnection();
+             BatchInserter comments = new BatchInserter(conn, sql, BATCH)) {
+            for (int r = 0; r < WIDE_ROOTS; r++) {
+                int root = ++id;
+                comments.add(root, WIDE_POST, FIRST_AUTHOR + r, null, "root comment " + r, at);
+                for (int c = 0; c < WIDE_REPLIES; c++) {
+                    comments.add(++id, WIDE_POST, FIRST_AUTHOR + c, root, "reply " + c + " to " + r, at);
+                }
+            }
+            // Rows go in id order, so each parent is inserted before its child.
+            Integer parent = null;
+            for (int level = 0; level < DEEP_LEVELS; level++) {
+                comments.add(++id, DEEP_POST, FIRST_AUTHOR + (level % 50), parent, "level " + level, at);
+                parent = id;
+            }
+        }
+    }
+
+    // Same backfill as insert_dummy_data.sql, capped at the store's trim length per reader.
+    private static void backfillTimelines() throws SQLException {
+        int maxLength = Integer.getInteger("twitter.timeline.maxLength", 800);
+        String sql = "INSERT IGNORE INTO home_timelines (user_id, post_id, created_at) " +
+                "SELECT ?, p.post_id, p.created_at FROM posts p JOIN follows f ON f.following_id = p.user_id " +
+                "WHERE f.follower_id = ? ORDER BY p.created_at DESC LIMIT " + maxLength;
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (int reader : new int[]{FOLLOWS_10, FOLLOWS_1K, FOLLOWS_10K}) {
+                pstmt.setInt(1, reader);
+                pstmt.setInt(2, reader);
+                pstmt.executeUpdate();
+            }
+        }
+    }
+
+    private static long count(String table) throws SQLException {
+        try (Connection conn = DBConnection.getConnection();
+             Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table);
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.twitter.bench;
+
+import com.twitter.dao.InteractionDAO;
+import com.twitter.dao.PostDAO;
+import com.twitter.dao.TrendingEngine;
+import com.twitter.util.ConnectionPool;
+import com.twitter.util.DBConnection;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Benchmarks for the DAO hot paths against the {@link BenchFixture} data set.
+ * Each case runs for a warm-up window, then a measured window, on a fixed
+ * number of threads, and reports throughput, mean and max latency, bytes
+ * allocated per op, and connection borrows and statement-cache misses per op
+ * (a new query shape or an extra round trip shows up there first).
+ *
+ * <pre>
+ * java -cp out:mysql-connector-j.jar -Dtwitter.db.url=jdbc:mysql://localhost:3306/TwitterBench?... \
+ *      com.twitter.bench.Benchmarks [name-filter ...]
+ * </pre>
+ */
+public class Benchmarks {
+
+    private static final long WARMUP_MS = Long.getLong("twitter.bench.warmupMs", 3000);
+    private static final long MEASURE_MS = Long.getLong("twitter.bench.measureMs", 10_000);
+
+    interface Op {
+        void run(int thread, long iteration) throws Exception;
+    }
+
+    private static class Case {
+        final String name;
+        final int threads;
+        final Runnable setup;
+        final Op op;
+
+        Case(String name, int threads, Runnable setup, Op op) {
+            this.name = name;
+            this.threads = threads;
+            this.setup = setup;
+            this.op = op;
+        }
+    }
+
+    private static final PostDAO POSTS = new PostDAO();
+    private static final InteractionDAO INTERACTIONS = new InteractionDAO();
+
+    public static void main(String[] args) throws Exception {
+        BenchFixture.ensureSeeded();
+
+        System.out.printf("%-28s %7s %10s %12s %12s %12s %9s %9s%n",
+                "benchmark", "threads", "ops/s", "mean us/op", "max us/op", "alloc B/op", "borrow/op", "miss/op");
+        for (Case c : cases()) {
+            if (args.length > 0 && !matches(c.name, args)) continue;
+            if (c.setup != null) c.setup.run();
+            run(c);
+        }
+        DBConnection.shutdown();
+    }
+
+    private static List<Case> cases() {
+        List<Case> cases = new ArrayList<>();
+        for (int mentions : new int[]{0, 5, 30}) {
+            String content = postWithMentions(mentions);
+            cases.add(new Case("createPost.mentions=" + mentions, 1, null,
+                    (t, i) -> POSTS.createPost(BenchFixture.POSTER, content)));
+        }
+        int[][] readers = {{10, BenchFixture.FOLLOWS_10}, {1000, BenchFixture.FOLLOWS_1K}, {10_000, BenchFixture.FOLLOWS_10K}};
+        for (int[] reader : readers) {
+            cases.add(new Case("getTimelinePosts.following=" + reader[0], 1, null,
+                    (t, i) -> POSTS.getTimelinePosts(reader[1])));
+        }
+        for (int threads : new int[]{1, 8, BenchFixture.LIKERS}) {
+            cases.add(new Case("toggleLikePost.hot", threads, null,
+                    (t, i) -> INTERACTIONS.toggleLikePost(BenchFixture.FIRST_LIKER + t, BenchFixture.HOT_POST)));
+        }
+        cases.add(new Case("getCommentTree.wide", 1, null, (t, i) -> INTERACTIONS.getCommentTree(BenchFixture.WIDE_POST)));
+        cases.add(new Case("getCommentTree.deep", 1, null, (t, i) -> INTERACTIONS.getCommentTree(BenchFixture.DEEP_POST)));
+        cases.add(new Case("refreshTrending.posts=" + BenchFixture.POSTS, 1, Benchmarks::scoreAllPosts,
+                (t, i) -> POSTS.refreshTrending()));
+        return cases;
+    }
+
+    private static String postWithMentions(int mentions) {
+        StringBuilder text = new StringBuilder("benchmark post");
+        for (int m = 0; m < mentions; m++) {
+            text.append(" @").append(BenchFixture.username(BenchFixture.FIRST_MENTION_TARGET + m % BenchFixture.MENTION_TARGETS));
+        }
+        return text.toString();
+    }
+
+    // Feeds a view signal for every fixture post so publish() ranks a full-size candidate set.
+    private static void scoreAllPosts() {
+        TrendingEngine engine = TrendingEngine.getInstance();
+        Random random = new Random(BenchFixture.SEED);
+        for (int postId = 1; postId <= BenchFixture.POSTS; postId++) {
+            engine.recordViews(postId, 1 + random.nextInt(100));
+        }
+    }
+
+    private static boolean matches(String name, String[] filters) {
+        for (String f : filters) if (name.contains(f)) return true;
+        return false;
+    }
+
+    private static void run(Case c) throws InterruptedException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AtomicBoolean measuring = new AtomicBoolean();
+        AtomicBoolean stop = new AtomicBoolean();
+        long[] ops = new long[c.threads];
+        long[] nanos = new long[c.threads];
+        long[] maxNanos = new long[c.threads];
+        long[] allocated = new long[c.threads];
+        CountDownLatch done = new CountDownLatch(c.threads);
+
+        for (int t = 0; t < c.threads; t++) {
+            final int thread = t;
+            Thread worker = new Thread(() -> {
+                long iteration = 0;
+                long allocStart = -1;
+                try {
+                    while (!stop.get()) {
+                        boolean measured = measuring.get();
+                        if (measured && allocStart < 0) allocStart = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                        long start = System.nanoTime();
+                        c.op.run(thread, iteration++);
+                        long took = System.nanoTime() - start;
+                        if (measured) {
+                            ops[thread]++;
+                            nanos[thread] += took;
+                            maxNanos[thread] = Math.max(maxNanos[thread], took);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    if (allocStart >= 0) allocated[thread] = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocStart;
+                    done.countDown();
+                }
+            }, "bench-" + c.name + "-" + t);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        Thread.sleep(WARMUP_MS);
+        ConnectionPool.Stats before = DBConnection.getPoolStats();
+        measuring.set(true);
+        long started = System.nanoTime();
+        Thread.sleep(MEASURE_MS);
+        stop.set(true);
+        done.await();
+        double seconds = (System.nanoTime() - started) / 1e9;
+        ConnectionPool.Stats after = DBConnection.getPoolStats();
+
+        long totalOps = 0, totalNanos = 0, max = 0, totalAlloc = 0;
+        for (int t = 0; t < c.threads; t++) {
+            totalOps += ops[t];
+            totalNanos += nanos[t];
+            max = Math.max(max, maxNanos[t]);
+            totalAlloc += allocated[t];
+        }
+        long perOp = Math.max(1, totalOps);
+        System.out.printf("%-28s %7d %10.1f %12.1f %12.1f %12d %9.2f %9.2f%n",
+                c.name, c.threads, totalOps / seconds,
+                totalNanos / 1e3 / perOp, max / 1e3, totalAlloc / perOp,
+                (double) (after.borrows - before.borrows) / perOp,
+                (double) (after.statementCacheMisses - before.statementCacheMisses) / perOp);
+    }
+}
@@ -0,0 +1,214 @@
+package com.twitter.bench;
+
+import com.twitter.dao.InteractionDAO;
+import com.twitter.dao.PostDAO;
+import com.twitter.dao.UserDAO;
+import com.twitter.util.DBConnection;
+import com.twitter.util.LatencyHistogram;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays a mixed workload against the real DAOs on a schema seeded by
+ * {@link WorkloadSeeder}. {@code twitter.load.clients} simulated users share a
+ * target rate of {@code twitter.load.rate} ops/s; each op is scheduled at a
+ * fixed intended time and its latency is measured from that time, so a
+ * stalled database shows up as queueing delay rather than silently lowering
+ * the request rate. Per-operation throughput and p50/p99/p999 go to stdout,
+ * {@code <out>.csv} and an HdrHistogram-style {@code <out>.hgrm}.
+ */
+public class LoadDriver {
+
+    private static final int CLIENTS = Integer.getInteger("twitter.load.clients", 64);
+    private static final double RATE = Double.parseDouble(System.getProperty("twitter.load.rate", "500"));
+    private static final int WARMUP_SEC = Integer.getInteger("twitter.load.warmupSec", 10);
+    private static final int DURATION_SEC = Integer.getInteger("twitter.load.durationSec", 60);
+    private static final String MIX = System.getProperty("twitter.load.mix",
+            "timeline:55,like:25,post:8,comments:5,search:5,follow:2");
+    private static final String OUT = System.getProperty("twitter.load.out", "load-report");
+
+    private static final String[] SEARCH_TERMS = {"java", "mysql cache", "coffee", "release deploy", "music", "rain city"};
+
+    private final PostDAO postDAO = new PostDAO();
+    private final InteractionDAO interactionDAO = new InteractionDAO();
+    private final UserDAO userDAO = new UserDAO();
+
+    private final Map<String, Integer> weights = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger maxPostId = new AtomicInteger();
+    private int totalWeight;
+    private int users;
+    private Zipf activity;
+    private volatile boolean recording;
+    private volatile boolean stopping;
+
+    public static void main(String[] args) throws Exception {
+        new LoadDriver().run();
+    }
+
+    private void run() throws InterruptedException, SQLException, IOException {
+        for (String part : MIX.split(",")) {
+            String[] kv = part.trim().split(":");
+            weights.put(kv[0], Integer.parseInt(kv[1]));
+            histograms.put(kv[0], new LatencyHistogram());
+            totalWeight += Integer.parseInt(kv[1]);
+        }
+        users = (int) WorkloadSeeder.count("users");
+        maxPostId.set((int) WorkloadSeeder.count("posts"));
+        if (users == 0) throw new IllegalStateException("No users found; run WorkloadSeeder first.");
+        activity = new Zipf(users, WorkloadSeeder.ZIPF_EXPONENT);
+
+        System.out.printf("[LOAD] %d clients, %.0f ops/s target, %ds warm-up + %ds measured, mix %s%n",
+                CLIENTS, RATE, WARMUP_SEC, DURATION_SEC, MIX);
+        // The DAOs report to stdout; keep the run's own output readable.
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        long intervalNanos = (long) (CLIENTS * 1e9 / RATE);
+        long start = System.nanoTime();
+        CountDownLatch done = new CountDownLatch(CLIENTS);
+        for (int c = 0; c < CLIENTS; c++) {
+            final Random random = new Random(c);
+            // Stagger the clients evenly across one interval.
+            final long first = start + intervalNanos * c / CLIENTS;
+            Thread client = new Thread(() -> {
+                try {
+                    clientLoop(random, first, intervalNanos);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-client-" + c);
+            client.setDaemon(true);
+            client.start();
+        }
+
+        Thread.sleep(WARMUP_SEC * 1000L);
+        recording = true;
+        long measuredFrom = System.nanoTime();
+        Thread.sleep(DURATION_SEC * 1000L);
+        recording = false;
+        double seconds = (System.nanoTime() - measuredFrom) / 1e9;
+        stopping = true;
+        done.await();
+        System.setOut(console);
+
+        report(seconds);
+        DBConnection.shutdown();
+    }
+
+    private void clientLoop(Random random, long first, long intervalNanos) {
+        long intended = first;
+        while (!stopping) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            String op = pick(random);
+            boolean measured = recording;
+            try {
+                execute(op, random);
+            } catch (RuntimeException e) {
+                errors.incrementAndGet();
+            }
+            if (measured) histograms.get(op).recordNanos(System.nanoTime() - intended);
+            intended += intervalNanos;
+        }
+    }
+
+    private String pick(Random random) {
+        int r = random.nextInt(totalWeight);
+        for (Map.Entry<String, Integer> e : weights.entrySet()) {
+            r -= e.getValue();
+            if (r < 0) return e.getKey();
+        }
+        throw new IllegalStateException();
+    }
+
+    private void execute(String op, Random random) {
+        int user = activity.sample(random);
+        switch (op) {
+            case "timeline":
+                postDAO.getTimelinePosts(user);
+                break;
+            case "like":
+                interactionDAO.toggleLikePost(user, recentPost(random));
+                break;
+            case "post": {
+                String text = "load post " + SEARCH_TERMS[random.nextInt(SEARCH_TERMS.length)];
+                if (random.nextDouble() < 0.2) text += " @" + WorkloadSeeder.username(activity.sample(random));
+                PostDAO.PostResult result = postDAO.createPost(user, text);
+                if (result != null) maxPostId.accumulateAndGet(result.postId, Math::max);
+                break;
+            }
+            case "comments":
+                interactionDAO.getCommentTree(recentPost(random));
+                break;
+            case "search":
+                postDAO.searchPosts(SEARCH_TERMS[random.nextInt(SEARCH_TERMS.length)], Integer.MAX_VALUE, PostDAO.DEFAULT_PAGE_SIZE);
+                break;
+            case "follow":
+                interactionDAO.followUser(user, WorkloadSeeder.username(1 + random.nextInt(users)));
+                break;
+            case "mentions":
+                userDAO.getMentionsPage(user, Integer.MAX_VALUE, UserDAO.MENTION_PAGE_SIZE);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation in twitter.load.mix: " + op);
+        }
+    }
+
+    // Readers mostly touch the newest posts.
+    private int recentPost(Random random) {
+        int newest = maxPostId.get();
+        int back = (int) Math.min(newest - 1, (long) (-Math.log(1.0 - random.nextDouble()) * 1000));
+        return newest - back;
+    }
+
+    private void report(double seconds) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("operation,count,throughput_per_sec,mean_ms,p50_ms,p90_ms,p99_ms,p999_ms,max_ms");
+        System.out.printf("%-10s %9s %10s %9s %9s %9s %9s %9s %9s%n",
+                "operation", "count", "ops/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p999 ms", "max ms");
+        long total = 0;
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            total += h.count();
+            String row = String.format("%s,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f", e.getKey(), h.count(), h.count() / seconds,
+                    h.meanMicros() / 1000.0, h.percentileMicros(50) / 1000.0, h.percentileMicros(90) / 1000.0,
+                    h.percentileMicros(99) / 1000.0, h.percentileMicros(99.9) / 1000.0, h.maxMicros() / 1000.0);
+            lines.add(row);
+            String[] f = row.split(",");
+            System.out.printf("%-10s %9s %10s %9s %9s %9s %9s %9s %9s%n", (Object[]) f);
+        }
+        System.out.printf("total %d ops in %.1f s (%.1f ops/s), %d errors%n", total, seconds, total / seconds, errors.get());
+
+        try (PrintWriter csv = new PrintWriter(new FileWriter(OUT + ".csv"))) {
+            lines.forEach(csv::println);
+        }
+        try (PrintWriter hgrm = new PrintWriter(new FileWriter(OUT + ".hgrm"))) {
+            for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+                hgrm.println("# operation: " + e.getKey());
+                e.getValue().writePercentileDistribution(hgrm);
+                hgrm.println();
+            }
+        }
+        System.out.println("[LOAD] Wrote " + OUT + ".csv and " + OUT + ".hgrm");
+    }
+}
@@ -0,0 +1,226 @@
+package com.twitter.bench;
+
+import com.twitter.util.DBConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Seeds a synthetic social graph for {@link LoadDriver} into an empty schema:
+ * a power-law follow graph (user id doubles as popularity rank, so user 1 is
+ * the most followed), bursty posting with @mentions, and likes skewed towards
+ * recent posts. Derived tables (home_timelines, celebrity_users,
+ * post_like_counts) are then built with set-based SQL in id ranges.
+ * All randomness comes from {@code twitter.load.seed}.
+ */
+public class WorkloadSeeder {
+
+    static final int USERS = Integer.getInteger("twitter.load.users", 1_000_000);
+    static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("twitter.load.zipf", "1.1"));
+    private static final int AVG_FOLLOWS = Integer.getInteger("twitter.load.avgFollows", 40);
+    private static final int MAX_FOLLOWS = Integer.getInteger("twitter.load.maxFollows", 5000);
+    private static final int POSTS = Integer.getInteger("twitter.load.posts", 5_000_000);
+    private static final int LIKES = Integer.getInteger("twitter.load.likes", 10_000_000);
+    private static final int DAYS = Integer.getInteger("twitter.load.days", 30);
+    private static final double MENTION_RATE = 0.2;
+    private static final long SEED = Long.getLong("twitter.load.seed", 7);
+
+    // Two-state posting process: quiet periods interrupted by bursts with a tenth of the gap.
+    private static final double ENTER_BURST = 0.001;
+    private static final double LEAVE_BURST = 0.01;
+    private static final double BURST_GAP_FACTOR = 0.1;
+
+    private static final int BATCH = 5000;
+    private static final int RANGE = 10_000;
+    private static final String[] WORDS = {
+            "java", "mysql", "index", "query", "cache", "thread", "swing", "timeline", "latency", "batch",
+            "coffee", "weekend", "release", "deploy", "review", "bug", "feature", "music", "travel", "news",
+            "game", "match", "goal", "city", "rain", "sunset", "movie", "book", "lunch", "launch"
+    };
+
+    static String username(int userId) {
+        return "load" + userId;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        long users = count("users");
+        if (users != 0) {
+            throw new IllegalStateException("Workload seeding needs an empty schema; found " + users
+                    + " users. Point -Dtwitter.db.url at a scratch database created with create_table.sql.");
+        }
+        Random random = new Random(SEED);
+        Zipf popularity = new Zipf(USERS, ZIPF_EXPONENT);
+
+        step("users", WorkloadSeeder::seedUsers);
+        step("follows", () -> seedFollows(random, popularity));
+        step("posts + mentions", () -> seedPosts(random, popularity));
+        step("likes", () -> seedLikes(random));
+        step("derived tables", WorkloadSeeder::buildDerivedTables);
+        DBConnection.shutdown();
+    }
+
+    private interface Step {
+        void run() throws SQLException;
+    }
+
+    private static void step(String name, Step step) throws SQLException {
+        long started = System.currentTimeMillis();
+        System.out.println("[SEED] " + name + "...");
+        step.run();
+        System.out.printf("[SEED] %s done in %.1f s%n", name, (System.currentTimeMillis() - started) / 1000.0);
+    }
+
+    private static void seedUsers() throws SQLException {
+        String sql = "INSERT INTO users (user_id, username, email, password_hash, display_name, country_code) VALUES (?, ?, ?, ?, ?, ?)";
+        try (Connection conn = DBConnection.getConnection();
+             BatchInserter users = new BatchInserter(conn, sql, BATCH)) {
+            for (int id = 1; id <= USERS; id++) {
+                users.add(id, username(id), username(id) + "@load.example", "password123", "Load User " + id, "US");
+            }
+        }
+    }
+
+    // Out-degree is Pareto (alpha 2, so mean ~ 2 * xm before the cap); followees are Zipf by popularity.
+    private static void seedFollows(Random random, Zipf popularity) throws SQLException {
+        double xm = AVG_FOLLOWS / 2.0;
+        int cap = Math.min(MAX_FOLLOWS, USERS - 1);
+        String sql = "INSERT INTO follows (follower_id, following_id) VALUES (?, ?)";
+        Set<Integer> followees = new HashSet<>();
+        try (Connection conn = DBConnection.getConnection();
+             BatchInserter follows = new BatchInserter(conn, sql, BATCH)) {
+            for (int follower = 1; follower <= USERS; follower++) {
+                int degree = (int) Math.min(cap, Math.ceil(xm / (1.0 - random.nextDouble())));
+                followees.clear();
+                int attempts = 0;
+                while (followees.size() < degree && attempts++ < degree * 4) {
+                    int followee = popularity.sample(random);
+                    if (followee != follower && followees.add(followee)) follows.add(follower, followee);
+                }
+            }
+            System.out.println("[SEED] " + follows.rows() + " follow edges");
+        }
+    }
+
+    private static void seedPosts(Random random, Zipf popularity) throws SQLException {
+        long now = System.currentTimeMillis();
+        long start = now - DAYS * 24L * 60 * 60 * 1000;
+        double meanGap = (double) (now - start) / POSTS;
+        double burstShare = ENTER_BURST / (ENTER_BURST + LEAVE_BURST);
+        double quietGap = meanGap / ((1 - burstShare) + burstShare * BURST_GAP_FACTOR);
+
+        String postSql = "INSERT INTO posts (post_id, user_id, content, view_count, created_at) VALUES (?, ?, ?, ?, ?)";
+        StringBuilder text = new StringBuilder();
+        // Mention rows reference their post, so they are kept here and written once all posts exist.
+        int[] mentionUser = new int[1024];
+        int[] mentionPost = new int[1024];
+        int mentionCount = 0;
+        try (Connection conn = DBConnection.getConnection();
+             BatchInserter posts = new BatchInserter(conn, postSql, BATCH)) {
+            boolean burst = false;
+            double t = start;
+            for (int id = 1; id <= POSTS; id++) {
+                burst = burst ? random.nextDouble() >= LEAVE_BURST : random.nextDouble() < ENTER_BURST;
+                double gap = burst ? quietGap * BURST_GAP_FACTOR : quietGap;
+                t = Math.min(now, t - gap * Math.log(1.0 - random.nextDouble()));
+                Timestamp createdAt = new Timestamp((long) t);
+
+                // Popular accounts post more; the same Zipf drives authorship.
+                int author = popularity.sample(random);
+                text.setLength(0);
+                int words = 4 + random.nextInt(12);
+                for (int w = 0; w < words; w++) {
+                    if (w > 0) text.append(' ');
+                    text.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                int mentions = random.nextDouble() < MENTION_RATE ? 1 + random.nextInt(3) : 0;
+                for (int m = 0; m < mentions; m++) {
+                    if (mentionCount == mentionUser.length) {
+                        mentionUser = Arrays.copyOf(mentionUser, mentionCount * 2);
+                        mentionPost = Arrays.copyOf(mentionPost, mentionCount * 2);
+                    }
+                    mentionUser[mentionCount] = popularity.sample(random);
+                    mentionPost[mentionCount++] = id;
+                    text.append(" @").append(username(mentionUser[mentionCount - 1]));
+                }
+                posts.add(id, author, text.toString(), random.nextInt(1000), createdAt);
+            }
+        }
+
+        String mentionSql = "INSERT INTO mentions (mentioned_user_id, post_id) VALUES (?, ?)";
+        try (Connection conn = DBConnection.getConnection();
+             BatchInserter mentions = new BatchInserter(conn, mentionSql, BATCH)) {
+            for (int i = 0; i < mentionCount; i++) mentions.add(mentionUser[i], mentionPost[i]);
+        }
+    }
+
+    // Like targets are Zipf over recency: the newest posts collect most likes.
+    private static void seedLikes(Random random) throws SQLException {
+        Zipf recency = new Zipf(POSTS, ZIPF_EXPONENT);
+        String sql = "INSERT IGNORE INTO post_likes (user_id, post_id) VALUES (?, ?)";
+        try (Connection conn = DBConnection.getConnection();
+             BatchInserter likes = new BatchInserter(conn, sql, BATCH)) {
+            for (int i = 0; i < LIKES; i++) {
+                likes.add(1 + random.nextInt(USERS), POSTS - recency.sample(random) + 1);
+            }
+        }
+    }
+
+    private static void buildDerivedTables() throws SQLException {
+        int celebrityFollowers = Integer.getInteger("twitter.timeline.celebrityFollowers", 10000);
+        int maxLength = Integer.getInteger("twitter.timeline.maxLength", 800);
+        try (Connection conn = DBConnection.getConnection()) {
+            PreparedStatement celebrities = conn.prepareStatement(
+                    "INSERT INTO celebrity_users (user_id) SELECT following_id FROM follows GROUP BY following_id HAVING COUNT(*) >= ?");
+            celebrities.setInt(1, celebrityFollowers);
+            System.out.println("[SEED] " + celebrities.executeUpdate() + " celebrity accounts");
+
+            // Latest posts per reader from non-celebrity followees plus their own, capped like HomeTimelineStore.trim().
+            PreparedStatement timelines = conn.prepareStatement(
+                    "INSERT IGNORE INTO home_timelines (user_id, post_id, created_at) " +
+                    "SELECT user_id, post_id, created_at FROM (" +
+                    "SELECT t.user_id, t.post_id, t.created_at, " +
+                    "ROW_NUMBER() OVER (PARTITION BY t.user_id ORDER BY t.created_at DESC, t.post_id DESC) AS rn FROM (" +
+                    "SELECT f.follower_id AS user_id, p.post_id, p.created_at FROM follows f " +
+                    "JOIN posts p ON p.user_id = f.following_id " +
+                    "WHERE f.follower_id BETWEEN ? AND ? " +
+                    "AND f.following_id NOT IN (SELECT user_id FROM celebrity_users) " +
+                    "UNION ALL " +
+                    "SELECT p.user_id, p.post_id, p.created_at FROM posts p WHERE p.user_id BETWEEN ? AND ?" +
+                    ") t) ranked WHERE rn <= ?");
+            for (int from = 1; from <= USERS; from += RANGE) {
+                int to = Math.min(USERS, from + RANGE - 1);
+                timelines.setInt(1, from);
+                timelines.setInt(2, to);
+                timelines.setInt(3, from);
+                timelines.setInt(4, to);
+                timelines.setInt(5, maxLength);
+                timelines.executeUpdate();
+            }
+
+            PreparedStatement likeCounts = conn.prepareStatement(
+                    "INSERT INTO post_like_counts (post_id, slot, like_count) " +
+                    "SELECT post_id, 0, COUNT(*) FROM post_likes WHERE post_id BETWEEN ? AND ? GROUP BY post_id");
+            for (int from = 1; from <= POSTS; from += RANGE * 10) {
+                likeCounts.setInt(1, from);
+                likeCounts.setInt(2, Math.min(POSTS, from + RANGE * 10 - 1));
+                likeCounts.executeUpdate();
+            }
+        }
+    }
+
+    static long count(String table) throws SQLException {
+        try (Connection conn = DBConnection.getConnection();
+             Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table);
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
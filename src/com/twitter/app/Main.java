@@ -2,7 +2,9 @@ package com.twitter.app;
 
 import com.twitter.dao.InteractionDAO;
 import com.twitter.dao.PostDAO;
+import com.twitter.dao.PostSearchIndex;
 import com.twitter.dao.UserDAO;
+import com.twitter.dao.UserSearchIndex;
 import com.twitter.model.User;
 
 import java.util.Scanner;
@@ -17,6 +19,8 @@ public class Main {
 
     public static void main(String[] args) {
         System.out.println("=== TWITTER DB CLONE PROJECT ===");
+        PostSearchIndex.getInstance(); // start the bulk loads before the first search
+        UserSearchIndex.getInstance();
         while (true) {
             if (currentUser == null) showGuestMenu();
             else showUserMenu();
@@ -86,13 +90,23 @@ public class Main {
 
         switch (choice) {
             case "1":
-                postDAO.printTimeline(currentUser.getId());
+                PostDAO.TimelineCursor cursor = postDAO.printTimeline(currentUser.getId(), null);
+                while (cursor != null) {
+                    System.out.print("Load older posts? (y/n) ");
+                    if (!scanner.nextLine().equalsIgnoreCase("y")) break;
+                    cursor = postDAO.printTimeline(currentUser.getId(), cursor);
+                }
                 break;
             case "2":
                 postDAO.viewTrending();
                 break;
             case "3":
-                userDAO.checkMentions(currentUser.getId());
+                int mentionCursor = userDAO.checkMentions(currentUser.getId(), Integer.MAX_VALUE);
+                while (mentionCursor > 0) {
+                    System.out.print("Load older mentions? (y/n) ");
+                    if (!scanner.nextLine().equalsIgnoreCase("y")) break;
+                    mentionCursor = userDAO.checkMentions(currentUser.getId(), mentionCursor);
+                }
                 break;
             case "4":
                 System.out.print("Search (U)sers or (P)osts? ");
@@ -104,7 +118,9 @@ public class Main {
                 break;
             case "5":
                 System.out.print("Content: ");
-                postDAO.createPost(currentUser.getId(), scanner.nextLine());
+                PostDAO.PostResult posted = postDAO.createPost(currentUser.getId(), scanner.nextLine());
+                if (posted != null && !posted.unknownMentions.isEmpty())
+                    System.out.println("Unknown users not notified: @" + String.join(", @", posted.unknownMentions));
                 break;
             case "6":
                 System.out.print("Enter Post ID: ");
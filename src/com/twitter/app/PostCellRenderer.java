@@ -0,0 +1,98 @@
+package com.twitter.app;
+
+import com.twitter.dao.PostDAO;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Draws every timeline row with one reusable card, so the feed costs the same
+ * handful of components whether it holds ten posts or a thousand. The buttons
+ * are only painted; {@link #buttonAt} maps a click on the list back to the
+ * button it landed on.
+ */
+class PostCellRenderer extends JPanel implements ListCellRenderer<PostDAO.TimelinePost> {
+
+    private static final long serialVersionUID = 1L;
+
+    // Card border (1 + 10) on both sides plus the list's own insets.
+    private static final int HORIZONTAL_CHROME = 24;
+
+    final JButton likeBtn = new JButton("Like");
+    final JButton commentBtn = new JButton("Reply");
+    final JButton viewCommentsBtn = new JButton("View Comments");
+
+    private final JLabel meta = new JLabel();
+    private final JTextArea content = new JTextArea();
+    private final JLabel stats = new JLabel();
+
+    PostCellRenderer() {
+        super(new BorderLayout());
+        setOpaque(false);
+        setBorder(BorderFactory.createEmptyBorder(0, 0, 10, 0));
+
+        JPanel card = new JPanel(new BorderLayout());
+        card.setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createLineBorder(Color.LIGHT_GRAY, 1),
+                BorderFactory.createEmptyBorder(10, 10, 10, 10)));
+        card.setBackground(Color.WHITE);
+
+        content.setWrapStyleWord(true);
+        content.setLineWrap(true);
+        content.setEditable(false);
+        content.setFont(new Font("SansSerif", Font.PLAIN, 14));
+
+        JPanel bottom = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        bottom.setBackground(Color.WHITE);
+        stats.setForeground(Color.GRAY);
+        commentBtn.setForeground(Color.BLACK);
+        viewCommentsBtn.setForeground(Color.BLACK);
+        bottom.add(stats);
+        bottom.add(likeBtn);
+        bottom.add(commentBtn);
+        bottom.add(viewCommentsBtn);
+
+        JPanel centerContainer = new JPanel(new BorderLayout());
+        centerContainer.setBackground(Color.WHITE);
+        centerContainer.add(content, BorderLayout.NORTH);
+        centerContainer.add(bottom, BorderLayout.CENTER);
+
+        card.add(meta, BorderLayout.NORTH);
+        card.add(centerContainer, BorderLayout.CENTER);
+        add(card, BorderLayout.CENTER);
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends PostDAO.TimelinePost> list, PostDAO.TimelinePost post,
+                                                  int index, boolean isSelected, boolean cellHasFocus) {
+        meta.setText(String.format("<html><b>@%s</b> <font color='gray'>[ID: %d]</font></html>", post.username, post.postId));
+        content.setText(post.content);
+        stats.setText(String.format("Views:%d (%d unique) Likes:%d ", post.viewCount, post.uniqueViewers, post.likeCount));
+        likeBtn.setText(post.isLikedByCurrentUser ? "Unlike" : "Like");
+        likeBtn.setForeground(post.isLikedByCurrentUser ? Color.RED : Color.BLUE);
+
+        // A wrapped JTextArea reports its preferred height for its current width.
+        int width = list.getWidth() > 0 ? list.getWidth() : 460;
+        content.setSize(new Dimension(Math.max(100, width - HORIZONTAL_CHROME), Short.MAX_VALUE));
+        return this;
+    }
+
+    /** The button under {@code p} (list coordinates) in row {@code index}, or null. */
+    JButton buttonAt(JList<PostDAO.TimelinePost> list, int index, Point p) {
+        Rectangle bounds = list.getCellBounds(index, index);
+        if (bounds == null || !bounds.contains(p)) return null;
+        getListCellRendererComponent(list, list.getModel().getElementAt(index), index, false, false);
+        setBounds(bounds);
+        layoutTree(this);
+        Component hit = SwingUtilities.getDeepestComponentAt(this, p.x - bounds.x, p.y - bounds.y);
+        return hit instanceof JButton ? (JButton) hit : null;
+    }
+
+    // The renderer is never added to a displayed hierarchy, so validate() cannot be relied on.
+    private static void layoutTree(Container c) {
+        c.doLayout();
+        for (Component child : c.getComponents()) {
+            if (child instanceof Container) layoutTree((Container) child);
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.twitter.app;
+
+import com.twitter.util.DBConnection;
+import com.twitter.util.ShardRouter;
+import com.twitter.util.SqlUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves user buckets between the shards configured in {@code twitter.db.url}
+ * and {@code twitter.db.shards}:
+ * <pre>
+ *   status                  buckets per shard
+ *   move &lt;bucket&gt; &lt;shard&gt;   move one bucket
+ *   rebalance               spread buckets evenly, e.g. after adding a shard URL
+ * </pre>
+ * A move copies the bucket's rows to the new shard while the old one still
+ * serves them, then freezes the bucket in {@code shard_buckets} and waits for
+ * every instance to see that, so the old shard stops changing. It copies the
+ * bucket again, deletes what the old shard no longer has from the new one,
+ * switches the bucket (which also unfreezes it) and, once every instance
+ * writes to the new shard, deletes the rows from the old one. While frozen,
+ * posts, likes, comments and messages of the bucket's users are refused.
+ * Buffered counter updates that reach the old shard after the second copy
+ * are lost; post_like_counts is repaired by the like counter's reconcile pass.
+ */
+public class ReshardTool {
+
+    private static final int CHUNK = 500;
+    // Post-keyed tables, copied after posts; comment ids are taken from the copied comments.
+    private static final String[] BY_POST = {
+            "post_like_counts", "post_likes", "comments", "post_hashtags", "post_view_sketches", "mentions"
+    };
+    private static final String[] BY_COMMENT = {"comment_likes", "mentions"};
+
+    private final ShardRouter router;
+    private final Map<String, List<String>> primaryKeys = new HashMap<>();
+    // Highest user id seen by the last scan; users registered after it are picked up when a bucket freezes.
+    private int scannedUpTo;
+
+    public ReshardTool(ShardRouter router) {
+        this.router = router;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ShardRouter router = DBConnection.getShards();
+        if (!router.isSharded()) {
+            System.err.println("[RESHARD] Only one database is configured; list the others in -Dtwitter.db.shards.");
+            System.exit(1);
+        }
+        ReshardTool tool = new ReshardTool(router);
+        String command = args.length == 0 ? "status" : args[0];
+        switch (command) {
+            case "status":
+                tool.status();
+                break;
+            case "move":
+                if (args.length != 3) {
+                    System.err.println("Usage: ReshardTool move <bucket> <shard>");
+                    System.exit(1);
+                }
+                tool.move(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+                break;
+            case "rebalance":
+                tool.rebalance();
+                break;
+            default:
+                System.err.println("Usage: ReshardTool status | move <bucket> <shard> | rebalance");
+                System.exit(1);
+        }
+        DBConnection.shutdown();
+    }
+
+    public void status() {
+        for (String line : router.getShardStatus()) System.out.println(line);
+    }
+
+    /** Moves buckets from the fullest shards to the emptiest until they differ by at most one. */
+    public void rebalance() throws SQLException, InterruptedException {
+        int[][] users = usersByBucket();
+        int shards = router.shardCount();
+        int[] map = router.getBucketMap();
+        int[] counts = new int[shards];
+        for (int shard : map) counts[shard]++;
+        for (int b = ShardRouter.BUCKETS - 1; b >= 0; b--) {
+            int from = map[b];
+            int to = 0;
+            for (int s = 1; s < shards; s++) if (counts[s] < counts[to]) to = s;
+            if (counts[from] - counts[to] <= 1) continue;
+            move(b, to, users[b]);
+            counts[from]--;
+            counts[to]++;
+        }
+        status();
+    }
+
+    public void move(int bucket, int to) throws SQLException, InterruptedException {
+        if (bucket < 0 || bucket >= ShardRouter.BUCKETS) throw new IllegalArgumentException("No bucket " + bucket);
+        move(bucket, to, usersByBucket()[bucket]);
+    }
+
+    private void move(int bucket, int to, int[] users) throws SQLException, InterruptedException {
+        int from = router.getBucketMap()[bucket];
+        if (from == to) {
+            System.out.println("[RESHARD] Bucket " + bucket + " is already on shard " + to);
+            return;
+        }
+        long started = System.currentTimeMillis();
+        int rows = sync(users, from, to);
+        router.freezeBucket(bucket, true);
+        try {
+            Thread.sleep(router.getRefreshMillis() * 2);
+            users = withNewUsers(users, bucket);
+            rows += sync(users, from, to);
+            router.moveBucket(bucket, to);
+        } catch (SQLException | InterruptedException e) {
+            router.freezeBucket(bucket, false);
+            throw e;
+        }
+        Thread.sleep(router.getRefreshMillis() * 2);
+        int removed = removeSource(users, from);
+        System.out.printf("[RESHARD] Bucket %d (%d users) moved from shard %d to %d: %d rows synced, %d removed in %.1f s%n",
+                bucket, users.length, from, to, rows, removed, (System.currentTimeMillis() - started) / 1000.0);
+    }
+
+    // One pass over users for every bucket, rather than one per moved bucket.
+    private int[][] usersByBucket() throws SQLException {
+        List<List<Integer>> found = new ArrayList<>(ShardRouter.BUCKETS);
+        for (int b = 0; b < ShardRouter.BUCKETS; b++) found.add(new ArrayList<>());
+        try (Connection conn = router.connection(0);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT user_id FROM users")) {
+            while (rs.next()) {
+                int id = rs.getInt(1);
+                found.get(ShardRouter.bucketOf(id)).add(id);
+                scannedUpTo = Math.max(scannedUpTo, id);
+            }
+        }
+        int[][] out = new int[ShardRouter.BUCKETS][];
+        for (int b = 0; b < out.length; b++) out[b] = found.get(b).stream().mapToInt(Integer::intValue).toArray();
+        return out;
+    }
+
+    // Adds users of the bucket registered since the scan; they may have written to the old shard before the freeze.
+    private int[] withNewUsers(int[] users, int bucket) throws SQLException {
+        List<Integer> added = new ArrayList<>();
+        try (Connection conn = router.connection(0);
+             PreparedStatement pstmt = conn.prepareStatement("SELECT user_id FROM users WHERE user_id > ?")) {
+            pstmt.setInt(1, scannedUpTo);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                int id = rs.getInt(1);
+                if (ShardRouter.bucketOf(id) == bucket) added.add(id);
+            }
+        }
+        if (added.isEmpty()) return users;
+        int[] out = Arrays.copyOf(users, users.length + added.size());
+        for (int i = 0; i < added.size(); i++) out[users.length + i] = added.get(i);
+        return out;
+    }
+
+    /**
+     * Makes the target hold exactly the source's copy of the users' rows:
+     * source rows overwrite, and target rows whose key the source no longer
+     * has are deleted, children before their parents. Messages are only
+     * added, since the target also holds other users' copies of them and the
+     * application never deletes one.
+     */
+    private int sync(int[] users, int from, int to) throws SQLException {
+        int rows = 0;
+        try (Connection src = router.connection(from);
+             Connection dst = router.connection(to)) {
+            try (Statement stmt = dst.createStatement()) {
+                stmt.execute("SET FOREIGN_KEY_CHECKS = 0");
+            }
+            try {
+                for (int from0 = 0; from0 < users.length; from0 += CHUNK) {
+                    int[] chunk = slice(users, from0);
+                    String byUser = "user_id IN (" + in(chunk) + ")";
+                    rows += copyRows(src, dst, "posts", byUser, chunk, 1);
+                    // Taken from the target after the copy: it has every source post plus any the source has dropped.
+                    int[] posts = ids(dst, "SELECT post_id FROM posts WHERE " + byUser, chunk);
+                    for (int p = 0; p < posts.length; p += CHUNK) {
+                        int[] postChunk = slice(posts, p);
+                        String byPost = "post_id IN (" + in(postChunk) + ")";
+                        for (String table : BY_POST) rows += copyRows(src, dst, table, byPost, postChunk, 1);
+                        int[] comments = ids(dst, "SELECT comment_id FROM comments WHERE " + byPost, postChunk);
+                        for (int c = 0; c < comments.length; c += CHUNK) {
+                            int[] commentChunk = slice(comments, c);
+                            String byComment = "comment_id IN (" + in(commentChunk) + ")";
+                            for (String table : BY_COMMENT) {
+                                rows += copyRows(src, dst, table, byComment, commentChunk, 1);
+                                rows += prune(src, dst, table, byComment, commentChunk, 1);
+                            }
+                        }
+                        for (String table : BY_POST) rows += prune(src, dst, table, byPost, postChunk, 1);
+                    }
+                    rows += prune(src, dst, "posts", byUser, chunk, 1);
+                    rows += copyRows(src, dst, "direct_messages",
+                            "sender_id IN (" + in(chunk) + ") OR receiver_id IN (" + in(chunk) + ")", chunk, 2);
+                    rows += copyRows(src, dst, "dm_conversations", byUser, chunk, 1);
+                    rows += prune(src, dst, "dm_conversations", byUser, chunk, 1);
+                }
+            } finally {
+                try (Statement stmt = dst.createStatement()) {
+                    stmt.execute("SET FOREIGN_KEY_CHECKS = 1");
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static int copyRows(Connection src, Connection dst, String table, String where, int[] binds, int lists)
+            throws SQLException {
+        try (PreparedStatement select = src.prepareStatement("SELECT * FROM " + table + " WHERE " + where)) {
+            bind(select, binds, lists);
+            ResultSet rs = select.executeQuery();
+            ResultSetMetaData meta = rs.getMetaData();
+            int columns = meta.getColumnCount();
+            StringBuilder names = new StringBuilder();
+            StringBuilder updates = new StringBuilder();
+            for (int i = 1; i <= columns; i++) {
+                String column = meta.getColumnName(i);
+                if (i > 1) {
+                    names.append(", ");
+                    updates.append(", ");
+                }
+                names.append(column);
+                updates.append(column).append(" = VALUES(").append(column).append(")");
+            }
+            String sql = "INSERT INTO " + table + " (" + names + ") VALUES (" + SqlUtil.placeholders(columns) + ") "
+                    + "ON DUPLICATE KEY UPDATE " + updates;
+            int rows = 0;
+            try (PreparedStatement insert = dst.prepareStatement(sql)) {
+                while (rs.next()) {
+                    for (int i = 1; i <= columns; i++) insert.setObject(i, rs.getObject(i));
+                    insert.addBatch();
+                    if (++rows % CHUNK == 0) insert.executeBatch();
+                }
+                if (rows % CHUNK != 0) insert.executeBatch();
+            }
+            return rows;
+        }
+    }
+
+    // Deletes the target's rows in {@code where} whose primary key the source does not have.
+    private int prune(Connection src, Connection dst, String table, String where, int[] binds, int lists)
+            throws SQLException {
+        List<String> key = primaryKey(dst, table);
+        String select = "SELECT " + String.join(", ", key) + " FROM " + table + " WHERE " + where;
+        Set<List<Object>> live = new HashSet<>(keys(src, select, binds, lists, key.size()));
+        List<List<Object>> stale = new ArrayList<>();
+        for (List<Object> k : keys(dst, select, binds, lists, key.size())) if (!live.contains(k)) stale.add(k);
+        if (stale.isEmpty()) return 0;
+        StringBuilder sql = new StringBuilder("DELETE FROM ").append(table).append(" WHERE ");
+        for (int i = 0; i < key.size(); i++) sql.append(i > 0 ? " AND " : "").append(key.get(i)).append(" = ?");
+        try (PreparedStatement delete = dst.prepareStatement(sql.toString())) {
+            for (List<Object> k : stale) {
+                for (int i = 0; i < k.size(); i++) delete.setObject(i + 1, k.get(i));
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        }
+        return stale.size();
+    }
+
+    private List<String> primaryKey(Connection conn, String table) throws SQLException {
+        List<String> key = primaryKeys.get(table);
+        if (key != null) return key;
+        String[] columns = new String[16];
+        int n = 0;
+        try (ResultSet rs = conn.getMetaData().getPrimaryKeys(conn.getCatalog(), null, table)) {
+            while (rs.next()) {
+                columns[rs.getInt("KEY_SEQ") - 1] = rs.getString("COLUMN_NAME");
+                n++;
+            }
+        }
+        if (n == 0) throw new SQLException(table + " has no primary key");
+        key = Arrays.asList(Arrays.copyOf(columns, n));
+        primaryKeys.put(table, key);
+        return key;
+    }
+
+    private static List<List<Object>> keys(Connection conn, String sql, int[] binds, int lists, int width)
+            throws SQLException {
+        List<List<Object>> found = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            bind(pstmt, binds, lists);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                Object[] key = new Object[width];
+                for (int i = 0; i < width; i++) key[i] = rs.getObject(i + 1);
+                found.add(Arrays.asList(key));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Deletes the users' posts (their likes, comments and counters cascade) and
+     * conversations from the old shard. A message stays while either
+     * participant is still on that shard, since it is in their mailbox too.
+     */
+    private int removeSource(int[] users, int from) throws SQLException {
+        int removed = 0;
+        try (Connection conn = router.connection(from)) {
+            for (int i = 0; i < users.length; i += CHUNK) {
+                int[] chunk = slice(users, i);
+                List<Integer> messages = new ArrayList<>();
+                try (PreparedStatement select = conn.prepareStatement(
+                        "SELECT message_id, sender_id, receiver_id FROM direct_messages " +
+                        "WHERE sender_id IN (" + in(chunk) + ") OR receiver_id IN (" + in(chunk) + ")")) {
+                    bind(select, chunk, 2);
+                    ResultSet rs = select.executeQuery();
+                    while (rs.next()) {
+                        if (router.shardOf(rs.getInt("sender_id")) != from && router.shardOf(rs.getInt("receiver_id")) != from) {
+                            messages.add(rs.getInt("message_id"));
+                        }
+                    }
+                }
+                int[] stale = messages.stream().mapToInt(Integer::intValue).toArray();
+                for (int m = 0; m < stale.length; m += CHUNK) {
+                    int[] messageChunk = slice(stale, m);
+                    removed += delete(conn, "DELETE FROM direct_messages WHERE message_id IN (" + in(messageChunk) + ")", messageChunk);
+                }
+                removed += delete(conn, "DELETE FROM dm_conversations WHERE user_id IN (" + in(chunk) + ")", chunk);
+                removed += delete(conn, "DELETE FROM posts WHERE user_id IN (" + in(chunk) + ")", chunk);
+            }
+        }
+        return removed;
+    }
+
+    private static int delete(Connection conn, String sql, int[] binds) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            bind(pstmt, binds, 1);
+            return pstmt.executeUpdate();
+        }
+    }
+
+    private static int[] ids(Connection conn, String sql, int[] binds) throws SQLException {
+        List<Integer> found = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            bind(pstmt, binds, 1);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) found.add(rs.getInt(1));
+        }
+        return found.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static String in(int[] values) {
+        return SqlUtil.paddedPlaceholders(values.length);
+    }
+
+    private static int[] slice(int[] values, int from) {
+        int[] out = new int[Math.min(CHUNK, values.length - from)];
+        System.arraycopy(values, from, out, 0, out.length);
+        return out;
+    }
+
+    // Binds the same padded IN list {@code lists} times, for "a IN (...) OR b IN (...)".
+    private static void bind(PreparedStatement ps, int[] values, int lists) throws SQLException {
+        int idx = 1;
+        for (int i = 0; i < lists; i++) idx = SqlUtil.bindPaddedInts(ps, idx, values, values.length);
+    }
+}
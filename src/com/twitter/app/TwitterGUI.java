@@ -1,13 +1,25 @@
 package com.twitter.app;
 
+import com.twitter.dao.FollowRecommender;
+import com.twitter.dao.HashtagTrends;
 import com.twitter.dao.InteractionDAO;
+import com.twitter.dao.NotificationDispatcher;
 import com.twitter.dao.PostDAO;
+import com.twitter.dao.PostSearchIndex;
 import com.twitter.dao.UserDAO;
+import com.twitter.dao.UserSearchIndex;
 import com.twitter.model.User;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
 public class TwitterGUI extends JFrame {
 
@@ -21,7 +33,27 @@ public class TwitterGUI extends JFrame {
 
     private JTextField userField, regUserField, regEmailField;
     private JPasswordField passField, regPassField;
-    private JPanel feedContainer;
+    private DefaultListModel<PostDAO.TimelinePost> feedModel;
+    private JList<PostDAO.TimelinePost> feedList;
+    private final PostCellRenderer postRenderer = new PostCellRenderer();
+    private JScrollPane feedScroll;
+
+    private static final int PREFETCH_DISTANCE_PX = 800;
+    private PostDAO.TimelineCursor nextCursor;
+    private boolean loadingPage;
+
+    // Requests in flight by key; only touched on the EDT. See dispatch().
+    private final Map<String, CompletableFuture<?>> inFlight = new HashMap<>();
+
+    // Live unread badge, EDT only. Events that arrive before the catch-up summary are held in
+    // pendingNotifications; afterwards only ids newer than the counted ones add to the badge.
+    private static final int NOTIFICATION_PAGE_SIZE = 50;
+    private JButton notifBtn;
+    private Runnable notificationSubscription;
+    private List<NotificationDispatcher.Notification> pendingNotifications;
+    private int unseenNotifications;
+    private int countedMentionId;
+    private int countedMessageId;
 
     public TwitterGUI() {
         setTitle("Twitter Clone");
@@ -120,7 +152,7 @@ public class TwitterGUI extends JFrame {
         JButton refreshBtn = new JButton("Refresh");
         JButton searchBtn = new JButton("Search");
         JButton trendBtn = new JButton("Trends");
-        JButton notifBtn = new JButton("Mentions");
+        notifBtn = new JButton("Notifications");
 
         JButton netBtn = new JButton("Network");
         JButton msgBtn = new JButton("Messages");
@@ -129,11 +161,8 @@ public class TwitterGUI extends JFrame {
 
         refreshBtn.addActionListener(e -> loadTimeline());
         searchBtn.addActionListener(e -> performSearch());
-        trendBtn.addActionListener(e -> showPopupList("Trending Posts", postDAO.getTrendingList()));
-        notifBtn.addActionListener(e -> {
-            List<String> mentions = userDAO.getMentionsList(currentUser.getId());
-            showPopupList("Your Mentions", mentions);
-        });
+        trendBtn.addActionListener(e -> showTrendsDialog());
+        notifBtn.addActionListener(e -> showNotifications());
         netBtn.addActionListener(e -> showNetworkDialog());
         msgBtn.addActionListener(e -> showMessagesDialog());
         postBtn.addActionListener(e -> performWritePost());
@@ -152,103 +181,133 @@ public class TwitterGUI extends JFrame {
 
         panel.add(toolBar, BorderLayout.NORTH);
 
-        feedContainer = new JPanel();
-        feedContainer.setLayout(new BoxLayout(feedContainer, BoxLayout.Y_AXIS));
-        JScrollPane scrollPane = new JScrollPane(feedContainer);
-        scrollPane.getVerticalScrollBar().setUnitIncrement(16);
-        panel.add(scrollPane, BorderLayout.CENTER);
+        feedModel = new DefaultListModel<>();
+        feedList = new JList<>(feedModel);
+        feedList.setCellRenderer(postRenderer);
+        feedList.setSelectionModel(new DefaultListSelectionModel() {
+            @Override
+            public void setSelectionInterval(int index0, int index1) {
+                // Rows act through their buttons; selection highlighting is not used.
+            }
+        });
+        feedList.setBorder(BorderFactory.createEmptyBorder(0, 2, 0, 2));
+        feedList.addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override
+            public void mouseClicked(java.awt.event.MouseEvent e) {
+                onFeedClick(e.getPoint());
+            }
+        });
+        feedList.addComponentListener(new java.awt.event.ComponentAdapter() {
+            @Override
+            public void componentResized(java.awt.event.ComponentEvent e) {
+                // Row heights depend on the wrap width; make the list measure them again.
+                feedList.setFixedCellHeight(1);
+                feedList.setFixedCellHeight(-1);
+            }
+        });
+        feedScroll = new JScrollPane(feedList);
+        feedScroll.getVerticalScrollBar().setUnitIncrement(16);
+        feedScroll.getVerticalScrollBar().addAdjustmentListener(e -> maybePrefetchNextPage());
+        panel.add(feedScroll, BorderLayout.CENTER);
 
         return panel;
     }
 
-    private JPanel createPostPanel(PostDAO.TimelinePost post) {
-        JPanel card = new JPanel(new BorderLayout());
-        card.setBorder(BorderFactory.createCompoundBorder(
-                BorderFactory.createLineBorder(Color.LIGHT_GRAY, 1),
-                BorderFactory.createEmptyBorder(10, 10, 10, 10)));
-        card.setBackground(Color.WHITE);
-        card.setMaximumSize(new Dimension(Integer.MAX_VALUE, 1000));
-
-        JLabel meta = new JLabel(String.format("<html><b>@%s</b> <font color='gray'>[ID: %d]</font></html>", post.username, post.postId));
-
-        JTextArea content = new JTextArea(post.content);
-        content.setWrapStyleWord(true);
-        content.setLineWrap(true);
-        content.setEditable(false);
-        content.setFont(new Font("SansSerif", Font.PLAIN, 14));
-        content.setSize(new Dimension(400, 1));
-
-        JPanel bottom = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
-        bottom.setBackground(Color.WHITE);
-
-        JLabel stats = new JLabel(String.format("Views:%d Likes:%d ", post.viewCount, post.likeCount));
-        stats.setForeground(Color.GRAY);
+    private void onFeedClick(Point p) {
+        int index = feedList.locationToIndex(p);
+        if (index < 0) return;
+        JButton hit = postRenderer.buttonAt(feedList, index, p);
+        if (hit == null) return;
+        PostDAO.TimelinePost post = feedModel.getElementAt(index);
+        if (hit == postRenderer.likeBtn) toggleLike(post);
+        else if (hit == postRenderer.commentBtn) performComment(post.postId);
+        else if (hit == postRenderer.viewCommentsBtn) showCommentsDialog(post);
+    }
 
-        JButton likeBtn = new JButton(post.isLikedByCurrentUser ? "Unlike" : "Like");
-        likeBtn.setForeground(post.isLikedByCurrentUser ? Color.RED : Color.BLUE);
-        likeBtn.addActionListener(e -> {
-            interactionDAO.toggleLikePost(currentUser.getId(), post.postId);
-            loadTimeline();
+    // Updates the post in place so only its row repaints; the feed is not reloaded.
+    private void toggleLike(PostDAO.TimelinePost post) {
+        dispatch(null, interactionDAO.toggleLikePostAsync(currentUser.getId(), post.postId), done -> {
+            post.isLikedByCurrentUser = !post.isLikedByCurrentUser;
+            post.likeCount = Math.max(0, post.likeCount + (post.isLikedByCurrentUser ? 1 : -1));
+            int index = feedModel.indexOf(post);
+            if (index >= 0) feedModel.set(index, post);
         });
+    }
 
-        JButton commentBtn = new JButton("Reply");
-        commentBtn.setForeground(Color.BLACK);
-        commentBtn.addActionListener(e -> performComment(post.postId));
-
-        JButton toggleCommBtn = new JButton("View Comments");
-        toggleCommBtn.setForeground(Color.BLACK);
-
-        bottom.add(stats);
-        bottom.add(likeBtn);
-        bottom.add(commentBtn);
-        bottom.add(toggleCommBtn);
+    private void showCommentsDialog(PostDAO.TimelinePost post) {
+        JDialog d = new JDialog(this, "Comments on @" + post.username + " [ID: " + post.postId + "]", false);
+        d.setSize(450, 500);
+        d.setLocationRelativeTo(this);
 
         JPanel commentSection = new JPanel();
         commentSection.setLayout(new BoxLayout(commentSection, BoxLayout.Y_AXIS));
         commentSection.setBackground(new Color(245, 248, 250));
         commentSection.setBorder(BorderFactory.createEmptyBorder(10, 5, 5, 5));
-        commentSection.setVisible(false);
-        toggleCommBtn.addActionListener(e -> {
-            boolean isVisible = commentSection.isVisible();
-            if (!isVisible) {
-                commentSection.removeAll();
-                List<InteractionDAO.CommentNode> roots = interactionDAO.getCommentTree(post.postId);
-
-                if (roots.isEmpty()) {
-                    JPanel emptyPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-                    emptyPanel.setBackground(new Color(245, 248, 250));
-                    JLabel empty = new JLabel("No comments yet.");
-                    empty.setFont(new Font("SansSerif", Font.ITALIC, 12));
-                    emptyPanel.add(empty);
-                    commentSection.add(emptyPanel);
-                } else {
-                    for (InteractionDAO.CommentNode node : roots) {
-                        renderCommentsRecursive(commentSection, node, 0, post.postId);
-                    }
-                }
-                toggleCommBtn.setText("Collapse");
-                commentSection.setVisible(true);
-            } else {
-                commentSection.setVisible(false);
-                toggleCommBtn.setText("View Comments");
+
+        JPanel holder = new JPanel(new BorderLayout());
+        holder.setBackground(new Color(245, 248, 250));
+        holder.add(commentSection, BorderLayout.NORTH);
+        JScrollPane scroll = new JScrollPane(holder);
+        scroll.getVerticalScrollBar().setUnitIncrement(16);
+
+        JButton commentBtn = new JButton("Reply");
+        commentBtn.setForeground(Color.BLACK);
+        Runnable reload = () -> loadComments(commentSection, post.postId);
+        commentBtn.addActionListener(e -> performComment(post.postId, 0, reload));
+        commentSection.putClientProperty("reload", reload);
+
+        d.add(scroll, BorderLayout.CENTER);
+        d.add(commentBtn, BorderLayout.SOUTH);
+        d.addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosed(java.awt.event.WindowEvent e) {
+                cancel("comments-" + post.postId);
             }
-            feedContainer.revalidate();
-            feedContainer.repaint();
         });
+        d.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        reload.run();
+        d.setVisible(true);
+    }
 
-        JPanel centerContainer = new JPanel(new BorderLayout());
-        centerContainer.setBackground(Color.WHITE);
-        centerContainer.add(content, BorderLayout.NORTH);
-        centerContainer.add(bottom, BorderLayout.CENTER);
-        centerContainer.add(commentSection, BorderLayout.SOUTH);
+    private void loadComments(JPanel commentSection, int postId) {
+        commentSection.removeAll();
+        commentSection.add(statusRow("Loading comments..."));
+        commentSection.revalidate();
+        dispatch("comments-" + postId, interactionDAO.getCommentPageAsync(postId, 0, InteractionDAO.COMMENT_PAGE_SIZE), page -> {
+            commentSection.removeAll();
+            if (page.comments.isEmpty()) {
+                commentSection.add(statusRow("No comments yet."));
+            } else {
+                renderCommentPage(commentSection, page, null, 0, postId, new int[]{0});
+            }
+            commentSection.revalidate();
+            commentSection.repaint();
+        });
+    }
 
-        card.add(meta, BorderLayout.NORTH);
-        card.add(centerContainer, BorderLayout.CENTER);
+    private JPanel statusRow(String text) {
+        JPanel row = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        row.setBackground(new Color(245, 248, 250));
+        JLabel label = new JLabel(text);
+        label.setFont(new Font("SansSerif", Font.ITALIC, 12));
+        row.add(label);
+        return row;
+    }
 
-        return card;
+    // Inserts a page of comments at at[0], followed by a "more" row when the page is not the last one.
+    // parent is null for top-level comments.
+    private void renderCommentPage(JPanel container, InteractionDAO.CommentPage page, InteractionDAO.CommentNode parent,
+                                   int depth, int postId, int[] at) {
+        for (InteractionDAO.CommentNode node : page.comments) {
+            renderCommentsRecursive(container, node, depth, postId, at);
+        }
+        if (page.hasMore) {
+            if (parent == null) addLoadMoreRow(container, "Load more comments", null, depth, postId, page.nextCursor(), at);
+            else addLoadMoreRow(container, "Show more replies", parent, depth, postId, parent.lastReplyId(), at);
+        }
     }
 
-    private void renderCommentsRecursive(JPanel container, InteractionDAO.CommentNode node, int depth, int postId) {
+    private void renderCommentsRecursive(JPanel container, InteractionDAO.CommentNode node, int depth, int postId, int[] at) {
         JPanel rowPanel = new JPanel(new BorderLayout());
         rowPanel.setBackground(new Color(245, 248, 250));
         rowPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 65));
@@ -269,18 +328,54 @@ public class TwitterGUI extends JFrame {
         replyBtn.setForeground(Color.BLACK);
         replyBtn.setFocusable(false);
 
-        replyBtn.addActionListener(e -> performComment(postId, node.commentId));
+        replyBtn.addActionListener(e -> performComment(postId, node.commentId,
+                (Runnable) container.getClientProperty("reload")));
 
         rowPanel.add(textLabel, BorderLayout.CENTER);
         rowPanel.add(replyBtn, BorderLayout.EAST);
 
-        container.add(rowPanel);
+        container.add(rowPanel, at[0]++);
 
         for (InteractionDAO.CommentNode child : node.replies) {
-            renderCommentsRecursive(container, child, depth + 1, postId);
+            renderCommentsRecursive(container, child, depth + 1, postId, at);
+        }
+        if (node.hasMoreReplies) {
+            addLoadMoreRow(container, "Show more replies", node, depth + 1, postId, node.lastReplyId(), at);
         }
     }
 
+    private void addLoadMoreRow(JPanel container, String label, InteractionDAO.CommentNode parent,
+                                int depth, int postId, int cursor, int[] at) {
+        JPanel morePanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10 + (depth * 30), 2));
+        morePanel.setBackground(new Color(245, 248, 250));
+        morePanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 30));
+
+        JButton moreBtn = new JButton(parent == null ? label
+                : label + " (" + Math.max(0, parent.replyCount - parent.replies.size()) + ")");
+        moreBtn.setFont(new Font("SansSerif", Font.PLAIN, 10));
+        moreBtn.setMargin(new Insets(2, 5, 2, 5));
+        moreBtn.setForeground(Color.BLUE);
+        moreBtn.setFocusable(false);
+        moreBtn.addActionListener(e -> {
+            moreBtn.setEnabled(false);
+            CompletableFuture<InteractionDAO.CommentPage> request = parent == null
+                    ? interactionDAO.getCommentPageAsync(postId, cursor, InteractionDAO.COMMENT_PAGE_SIZE)
+                    : interactionDAO.getRepliesAsync(postId, parent.commentId, cursor, InteractionDAO.COMMENT_FAN_OUT);
+            dispatch(null, request, page -> {
+                int index = container.getComponentZOrder(morePanel);
+                if (index < 0) return; // section was closed or reloaded meanwhile
+                container.remove(morePanel);
+                if (parent != null) parent.replies.addAll(page.comments);
+                renderCommentPage(container, page, parent, depth, postId, new int[]{index});
+                container.revalidate();
+                container.repaint();
+            });
+        });
+        morePanel.add(moreBtn);
+
+        container.add(morePanel, at[0]++);
+    }
+
     private void showMessagesDialog() {
         JDialog d = new JDialog(this, "Messages", true);
         d.setSize(500, 400);
@@ -288,15 +383,7 @@ public class TwitterGUI extends JFrame {
 
         JTabbedPane tabs = new JTabbedPane();
 
-        DefaultListModel<String> m = new DefaultListModel<>();
-        List<InteractionDAO.DirectMessage> inbox = interactionDAO.getInbox(currentUser.getId());
-        if (inbox.isEmpty()) m.addElement("No messages.");
-        else {
-            for (InteractionDAO.DirectMessage dm : inbox) {
-                m.addElement(String.format("<html><b>From: @%s</b>: %s</html>", dm.sender, dm.content));
-            }
-        }
-        tabs.addTab("Inbox", new JScrollPane(new JList<>(m)));
+        tabs.addTab("Inbox", createInboxPanel());
 
         JPanel p = new JPanel(new GridLayout(3, 1));
         JTextField to = new JTextField();
@@ -310,9 +397,15 @@ public class TwitterGUI extends JFrame {
         send.setForeground(Color.BLACK);
 
         send.addActionListener(ev -> {
-            interactionDAO.sendDM(currentUser.getId(), to.getText(), txt.getText());
-            d.dispose();
-            JOptionPane.showMessageDialog(this, "Message Sent!");
+            send.setEnabled(false);
+            dispatch(null, interactionDAO.sendDMAsync(currentUser.getId(), to.getText(), txt.getText()), sent -> {
+                if (!sent) {
+                    JOptionPane.showMessageDialog(d, "Could not send the message to @" + to.getText() + ".");
+                    return;
+                }
+                d.dispose();
+                JOptionPane.showMessageDialog(this, "Message Sent!");
+            }, () -> send.setEnabled(true));
         });
 
         p.add(to);
@@ -321,48 +414,232 @@ public class TwitterGUI extends JFrame {
         tabs.addTab("Compose", p);
         d.add(tabs);
         d.setVisible(true);
+        cancel("inbox");
+    }
+
+    // Conversations a page at a time; each row is the latest message of one conversation.
+    private JPanel createInboxPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        DefaultListModel<InteractionDAO.Conversation> m = new DefaultListModel<>();
+        JList<InteractionDAO.Conversation> list = new JList<>(m);
+        list.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> l, Object value, int index, boolean selected, boolean focus) {
+                InteractionDAO.Conversation c = (InteractionDAO.Conversation) value;
+                String unread = c.unreadCount > 0 ? " <font color='#1DA1F2'>(" + c.unreadCount + " new)</font>" : "";
+                String text = String.format("<html><b>@%s</b>%s<br><font color='gray'>@%s:</font> %s</html>",
+                        c.peer, unread, c.lastMessage.sender, c.lastMessage.content);
+                return super.getListCellRendererComponent(l, text, index, selected, focus);
+            }
+        });
+        list.addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override
+            public void mouseClicked(java.awt.event.MouseEvent e) {
+                int index = list.locationToIndex(e.getPoint());
+                if (e.getClickCount() < 2 || index < 0) return;
+                InteractionDAO.Conversation c = m.getElementAt(index);
+                showConversationDialog(c);
+                c.unreadCount = 0;
+                m.set(index, c);
+            }
+        });
+
+        JButton olderBtn = new JButton("Load older conversations");
+        olderBtn.setVisible(false);
+        int[] before = {Integer.MAX_VALUE};
+        Runnable loadPage = () -> dispatch("inbox",
+                interactionDAO.getConversationsAsync(currentUser.getId(), before[0], InteractionDAO.DM_PAGE_SIZE), page -> {
+                    page.conversations.forEach(m::addElement);
+                    before[0] = page.nextBeforeMessageId;
+                    olderBtn.setVisible(page.hasMore());
+                });
+        olderBtn.addActionListener(e -> loadPage.run());
+        loadPage.run();
+
+        panel.add(new JScrollPane(list), BorderLayout.CENTER);
+        panel.add(olderBtn, BorderLayout.SOUTH);
+        return panel;
+    }
+
+    private void showConversationDialog(InteractionDAO.Conversation conversation) {
+        JDialog d = new JDialog(this, "Conversation with @" + conversation.peer, true);
+        d.setSize(450, 450);
+        d.setLocationRelativeTo(this);
+
+        DefaultListModel<String> m = new DefaultListModel<>();
+        JList<String> list = new JList<>(m);
+        JButton olderBtn = new JButton("Load older messages");
+        olderBtn.setVisible(false);
+        int[] before = {Integer.MAX_VALUE};
+        // Pages arrive newest first and are all older than what is shown, so each row goes on top.
+        Runnable loadPage = () -> dispatch("conversation",
+                interactionDAO.getMessagesAsync(currentUser.getId(), conversation.peerId, before[0], InteractionDAO.DM_PAGE_SIZE), page -> {
+                    boolean firstPage = before[0] == Integer.MAX_VALUE;
+                    for (InteractionDAO.DirectMessage msg : page.messages) m.add(0, formatMessage(msg));
+                    before[0] = page.nextBeforeMessageId;
+                    olderBtn.setVisible(page.hasMore());
+                    if (firstPage && !m.isEmpty()) list.ensureIndexIsVisible(m.size() - 1);
+                });
+        olderBtn.addActionListener(e -> loadPage.run());
+        loadPage.run();
+        if (conversation.unreadCount > 0) {
+            dispatch(null, interactionDAO.markConversationReadAsync(currentUser.getId(), conversation.peerId), done -> { });
+        }
+
+        JTextField reply = new JTextField();
+        reply.addActionListener(e -> {
+            String text = reply.getText().trim();
+            if (text.isEmpty()) return;
+            reply.setText("");
+            dispatch(null, interactionDAO.sendDMAsync(currentUser.getId(), conversation.peer, text), sent -> {
+                if (!sent) {
+                    reply.setText(text);
+                    JOptionPane.showMessageDialog(d, "Could not send the reply.");
+                    return;
+                }
+                m.addElement(formatMessage(new InteractionDAO.DirectMessage(currentUser.getUsername(), text, "now")));
+                list.ensureIndexIsVisible(m.size() - 1);
+            });
+        });
+        reply.setBorder(BorderFactory.createTitledBorder("Reply (Enter to send)"));
+
+        d.add(olderBtn, BorderLayout.NORTH);
+        d.add(new JScrollPane(list), BorderLayout.CENTER);
+        d.add(reply, BorderLayout.SOUTH);
+        d.setVisible(true);
+        cancel("conversation");
+    }
+
+    private static String formatMessage(InteractionDAO.DirectMessage msg) {
+        return String.format("<html><b>@%s</b> <font color='gray' size='2'>(%s)</font><br>%s</html>",
+                msg.sender, msg.date, msg.content);
     }
 
     private void performRecovery() {
         String email = JOptionPane.showInputDialog(this, "Enter Email for Recovery:");
         if (email != null) {
-            String token = userDAO.generateRecoveryToken(email);
-            if (token != null) {
-                String inToken = JOptionPane.showInputDialog(this, "Token Generated: " + token + "\nEnter Token:");
-                String newPass = JOptionPane.showInputDialog(this, "Enter New Password:");
-                if (userDAO.resetPassword(inToken, newPass))
-                    JOptionPane.showMessageDialog(this, "Password Reset Success!");
-                else JOptionPane.showMessageDialog(this, "Failed.");
-            } else JOptionPane.showMessageDialog(this, "Email not found.");
+            dispatch("recovery", userDAO.generateRecoveryTokenAsync(email), token -> {
+                if (token != null) {
+                    String inToken = JOptionPane.showInputDialog(this, "Token Generated: " + token + "\nEnter Token:");
+                    String newPass = JOptionPane.showInputDialog(this, "Enter New Password:");
+                    dispatch("recovery", userDAO.resetPasswordAsync(inToken, newPass), ok -> {
+                        if (ok) JOptionPane.showMessageDialog(this, "Password Reset Success!");
+                        else JOptionPane.showMessageDialog(this, "Failed.");
+                    });
+                } else JOptionPane.showMessageDialog(this, "Email not found.");
+            });
         }
     }
 
     private void performSearch() {
         String[] options = {"Users", "Posts"};
         int type = JOptionPane.showOptionDialog(this, "Search for?", "Search", 0, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+        if (type == 0) {
+            showUserSearchDialog();
+            return;
+        }
         String key = JOptionPane.showInputDialog(this, "Enter keyword:");
         if (key != null) {
-            if (type == 0) userDAO.searchUsers(key);
-            else postDAO.searchPosts(key);
-            JOptionPane.showMessageDialog(this, "Results printed to Console.");
+            dispatch("post-search", postDAO.searchPostsAsync(key, Integer.MAX_VALUE, PostDAO.DEFAULT_PAGE_SIZE),
+                    page -> showPostResults("Search: " + key, page));
+        }
+    }
+
+    private void showPostResults(String title, PostDAO.SearchPage page) {
+        List<String> results = new ArrayList<>();
+        for (PostDAO.TimelinePost p : page.posts) {
+            results.add(String.format("<html><b>@%s</b> <font color='gray'>[ID: %d]</font><br>%s</html>",
+                    p.username, p.postId, p.content));
         }
+        showPopupList(title, results);
+    }
+
+    private void showTrendsDialog() {
+        JDialog d = new JDialog(this, "Trends", true);
+        d.setSize(400, 500);
+        d.setLocationRelativeTo(this);
+        JTabbedPane tabs = new JTabbedPane();
+
+        DefaultListModel<String> posts = new DefaultListModel<>();
+        dispatch("trending", postDAO.getTrendingListAsync(), trending -> {
+            if (trending.isEmpty()) posts.addElement("No items found.");
+            else posts.addAll(trending);
+        });
+
+        List<String> tags = new ArrayList<>();
+        DefaultListModel<String> m = new DefaultListModel<>();
+        JList<String> tagList = new JList<>(m);
+        dispatch("trending-hashtags", postDAO.getTrendingHashtagsAsync(20), trends -> {
+            for (HashtagTrends.Trend t : trends) {
+                tags.add(t.tag);
+                m.addElement(String.format("<html><b>#%s</b> <font color='gray'>(%d posts)</font></html>", t.tag, t.count));
+            }
+            if (trends.isEmpty()) m.addElement("No hashtags yet.");
+        });
+        tagList.addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override
+            public void mouseClicked(java.awt.event.MouseEvent e) {
+                int index = tagList.getSelectedIndex();
+                if (e.getClickCount() != 2 || index < 0 || index >= tags.size()) return;
+                String tag = tags.get(index);
+                dispatch("hashtag-posts", postDAO.getPostsByHashtagAsync(tag, Integer.MAX_VALUE, PostDAO.DEFAULT_PAGE_SIZE),
+                        page -> showPostResults("#" + tag, page));
+            }
+        });
+
+        tabs.addTab("Posts", new JScrollPane(new JList<>(posts)));
+        tabs.addTab("Hashtags", new JScrollPane(tagList));
+        d.add(tabs);
+        d.setVisible(true);
+    }
+
+    private void showUserSearchDialog() {
+        JDialog d = new JDialog(this, "Search Users", true);
+        d.setSize(400, 500);
+        d.setLocationRelativeTo(this);
+
+        JTextField query = new JTextField();
+        query.setBorder(BorderFactory.createTitledBorder("Username or name"));
+        DefaultListModel<String> m = new DefaultListModel<>();
+
+        query.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            // Each keystroke supersedes the previous lookup; only the latest result is shown.
+            private void update() {
+                dispatch("user-search", userDAO.suggestUsersAsync(query.getText(), 10), matches -> {
+                    m.clear();
+                    for (com.twitter.dao.UserSearchIndex.Match match : matches) {
+                        m.addElement(String.format("<html><b>@%s</b> %s <font color='gray'>(%d followers)</font></html>",
+                                match.username, match.displayName == null ? "" : match.displayName, match.followers));
+                    }
+                });
+            }
+
+            public void insertUpdate(javax.swing.event.DocumentEvent e) { update(); }
+            public void removeUpdate(javax.swing.event.DocumentEvent e) { update(); }
+            public void changedUpdate(javax.swing.event.DocumentEvent e) { update(); }
+        });
+
+        d.add(query, BorderLayout.NORTH);
+        d.add(new JScrollPane(new JList<>(m)), BorderLayout.CENTER);
+        d.setVisible(true);
+        cancel("user-search");
     }
 
     private void performComment(int postId) {
-        performComment(postId, 0);
+        performComment(postId, 0, null);
     }
 
-    private void performComment(int postId, int parentId) {
+    private void performComment(int postId, int parentId, Runnable onAdded) {
         String title = (parentId == 0) ? "Write a comment:" : "Reply to Comment ID " + parentId + ":";
 
         String txt = JOptionPane.showInputDialog(this, title);
 
         if (txt != null && !txt.trim().isEmpty()) {
-            interactionDAO.addComment(currentUser.getId(), postId, txt, parentId);
+            dispatch(null, interactionDAO.addCommentAsync(currentUser.getId(), postId, txt, parentId), done -> {
+                JOptionPane.showMessageDialog(this, "Comment Added!");
 
-            JOptionPane.showMessageDialog(this, "Comment Added!");
-
-            loadTimeline();
+                if (onAdded != null) onAdded.run();
+            });
         }
     }
 
@@ -383,53 +660,286 @@ public class TwitterGUI extends JFrame {
         d.setLocationRelativeTo(this);
         JTabbedPane tabs = new JTabbedPane();
         DefaultListModel<String> m1 = new DefaultListModel<>();
-        interactionDAO.getFollowers(currentUser.getId()).forEach(m1::addElement);
+        dispatch("followers", interactionDAO.getFollowersAsync(currentUser.getId()), m1::addAll);
         DefaultListModel<String> m2 = new DefaultListModel<>();
-        interactionDAO.getFollowing(currentUser.getId()).forEach(m2::addElement);
+        dispatch("following", interactionDAO.getFollowingAsync(currentUser.getId()), m2::addAll);
         tabs.addTab("Followers", new JScrollPane(new JList<>(m1)));
         tabs.addTab("Following", new JScrollPane(new JList<>(m2)));
+        tabs.addTab("Who to Follow", createWhoToFollowPanel(m2));
         d.add(tabs);
         d.setVisible(true);
+        cancel("who-to-follow");
+    }
+
+    private JPanel createWhoToFollowPanel(DefaultListModel<String> following) {
+        JPanel panel = new JPanel(new BorderLayout());
+        List<FollowRecommender.Suggestion> suggestions = new ArrayList<>();
+        DefaultListModel<String> m = new DefaultListModel<>();
+        JList<String> list = new JList<>(m);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+
+        dispatch("who-to-follow", interactionDAO.getWhoToFollowAsync(currentUser.getId(), 20), result -> {
+            suggestions.addAll(result);
+            for (FollowRecommender.Suggestion s : result) {
+                m.addElement(String.format("<html><b>@%s</b> <font color='gray'>(%d followers)</font><br>Followed by %d you follow</html>",
+                        s.username, s.followers, s.mutualFollows));
+            }
+            if (result.isEmpty()) m.addElement("No suggestions yet. Follow a few people first.");
+        });
+
+        JButton followBtn = new JButton("Follow");
+        followBtn.addActionListener(e -> {
+            int index = list.getSelectedIndex();
+            if (index < 0 || index >= suggestions.size()) return;
+            FollowRecommender.Suggestion s = suggestions.get(index);
+            followBtn.setEnabled(false);
+            dispatch(null, interactionDAO.followUserAsync(currentUser.getId(), s.username), followed -> {
+                if (!followed) {
+                    JOptionPane.showMessageDialog(this, "Could not follow @" + s.username + ".");
+                    return;
+                }
+                int at = suggestions.indexOf(s);
+                if (at >= 0) {
+                    suggestions.remove(at);
+                    m.remove(at);
+                }
+                following.addElement(s.username);
+            }, () -> followBtn.setEnabled(true));
+        });
+
+        panel.add(new JScrollPane(list), BorderLayout.CENTER);
+        panel.add(followBtn, BorderLayout.SOUTH);
+        return panel;
     }
 
     private void performLogin() {
-        User u = userDAO.loginUser(userField.getText(), new String(passField.getPassword()));
-        if (u != null) {
-            currentUser = u;
-            cardLayout.show(mainPanel, "DASHBOARD");
-            loadTimeline();
-        } else JOptionPane.showMessageDialog(this, "Failed");
+        dispatch("login", userDAO.loginUserAsync(userField.getText(), new String(passField.getPassword())), u -> {
+            if (u != null) {
+                currentUser = u;
+                cardLayout.show(mainPanel, "DASHBOARD");
+                loadTimeline();
+                startNotifications();
+            } else JOptionPane.showMessageDialog(this, "Failed");
+        });
     }
 
     private void performRegister() {
-        if (userDAO.registerUser(regUserField.getText(), regEmailField.getText(), new String(regPassField.getPassword()), null, null))
-            cardLayout.show(mainPanel, "LOGIN");
+        dispatch("register", userDAO.registerUserAsync(regUserField.getText(), regEmailField.getText(),
+                new String(regPassField.getPassword()), null, null), ok -> {
+            if (ok) cardLayout.show(mainPanel, "LOGIN");
+        });
     }
 
     private void performWritePost() {
         String s = JOptionPane.showInputDialog("Post Content:");
         if (s != null) {
-            postDAO.createPost(currentUser.getId(), s);
-            loadTimeline();
+            dispatch(null, postDAO.createPostAsync(currentUser.getId(), s), result -> {
+                if (result != null && !result.unknownMentions.isEmpty())
+                    JOptionPane.showMessageDialog(this, "Unknown users not notified: @" + String.join(", @", result.unknownMentions));
+                loadTimeline();
+            });
         }
     }
 
     private void performLogout() {
         currentUser = null;
+        cancelAll();
+        stopNotifications();
+        feedModel.clear();
+        nextCursor = null;
+        loadingPage = false;
         cardLayout.show(mainPanel, "LOGIN");
     }
 
+    // Subscribe first, then ask the database what was missed, so nothing falls between the two.
+    private void startNotifications() {
+        int userId = currentUser.getId();
+        notificationSubscription = NotificationDispatcher.getInstance().subscribe(userId,
+                n -> SwingUtilities.invokeLater(() -> onNotification(n)));
+        refreshNotificationBadge(userDAO.getNotificationSummaryAsync(userId));
+    }
+
+    // The summary replaces the badge outright; live events held meanwhile count only if they are newer.
+    private void refreshNotificationBadge(CompletableFuture<UserDAO.NotificationSummary> summaryFuture) {
+        if (pendingNotifications == null) pendingNotifications = new ArrayList<>();
+        dispatch("notification-summary", summaryFuture, summary -> {
+            unseenNotifications = summary.unseenMentions + summary.unseenMessages;
+            countedMentionId = summary.lastMentionId;
+            countedMessageId = summary.lastMessageId;
+            List<NotificationDispatcher.Notification> held = pendingNotifications;
+            pendingNotifications = null;
+            held.forEach(this::countNotification);
+            updateNotificationBadge();
+        });
+    }
+
+    private void stopNotifications() {
+        if (notificationSubscription != null) notificationSubscription.run();
+        notificationSubscription = null;
+        pendingNotifications = null;
+        unseenNotifications = 0;
+        countedMentionId = 0;
+        countedMessageId = 0;
+        updateNotificationBadge();
+    }
+
+    private void onNotification(NotificationDispatcher.Notification n) {
+        if (currentUser == null || n.recipientId != currentUser.getId()) return;
+        if (pendingNotifications != null) pendingNotifications.add(n);
+        else countNotification(n);
+    }
+
+    private void countNotification(NotificationDispatcher.Notification n) {
+        if (NotificationDispatcher.MENTION.equals(n.type)) {
+            if (n.id <= countedMentionId) return;
+            countedMentionId = n.id;
+        } else {
+            if (n.id <= countedMessageId) return;
+            countedMessageId = n.id;
+        }
+        unseenNotifications++;
+        updateNotificationBadge();
+    }
+
+    private void updateNotificationBadge() {
+        if (unseenNotifications == 0) {
+            notifBtn.setText("Notifications");
+            notifBtn.setForeground(null);
+        } else {
+            notifBtn.setText("Notifications (" + (unseenNotifications >= UserDAO.UNSEEN_CAP ? (UserDAO.UNSEEN_CAP - 1) + "+" : unseenNotifications) + ")");
+            notifBtn.setForeground(new Color(29, 161, 242));
+        }
+    }
+
+    // Only the delta since the stored cursors is fetched; the full mention history is one click further.
+    private void showNotifications() {
+        int userId = currentUser.getId();
+        dispatch("notifications", userDAO.getNotificationsSinceAsync(userId, NOTIFICATION_PAGE_SIZE), delta -> {
+            int lastMentionId = 0, lastMessageId = 0;
+            List<String> items = new ArrayList<>();
+            for (NotificationDispatcher.Notification n : delta) {
+                boolean mention = NotificationDispatcher.MENTION.equals(n.type);
+                if (mention) lastMentionId = Math.max(lastMentionId, n.id);
+                else lastMessageId = Math.max(lastMessageId, n.id);
+                items.add(String.format("<html><b>@%s</b> %s <font color='gray' size='2'>(%s)</font>:<br><i>\"%s\"</i><br><hr></html>",
+                        n.actor, mention ? "mentioned you" : "sent you a message", n.createdAt, n.text));
+            }
+            // The cursors move only past what is listed; older unread beyond the page and anything newer stay on the badge.
+            refreshNotificationBadge(userDAO.markNotificationsSeenAsync(userId, lastMentionId, lastMessageId)
+                    .thenCompose(done -> userDAO.getNotificationSummaryAsync(userId)));
+
+            JDialog d = new JDialog(this, "New Notifications", true);
+            d.setSize(400, 500);
+            d.setLocationRelativeTo(this);
+            DefaultListModel<String> m = new DefaultListModel<>();
+            if (items.isEmpty()) m.addElement("Nothing new.");
+            else items.forEach(m::addElement);
+            JButton allBtn = new JButton("All mentions");
+            allBtn.addActionListener(e -> showMentionsDialog(userId));
+            d.add(new JScrollPane(new JList<>(m)), BorderLayout.CENTER);
+            d.add(allBtn, BorderLayout.SOUTH);
+            d.setVisible(true);
+        });
+    }
+
+    // Mention history one page at a time; the next page is fetched as the list nears its end.
+    private void showMentionsDialog(int userId) {
+        JDialog d = new JDialog(this, "Your Mentions", true);
+        d.setSize(400, 500);
+        d.setLocationRelativeTo(this);
+        DefaultListModel<String> m = new DefaultListModel<>();
+        JScrollPane scroll = new JScrollPane(new JList<>(m));
+        int[] before = {Integer.MAX_VALUE};
+        boolean[] loading = {false};
+        Runnable loadPage = () -> {
+            if (loading[0] || before[0] <= 0) return;
+            loading[0] = true;
+            dispatch("mentions", userDAO.getMentionsPageAsync(userId, before[0], UserDAO.MENTION_PAGE_SIZE), page -> {
+                if (m.isEmpty() && page.mentions.isEmpty()) m.addElement("No items found.");
+                page.mentions.forEach(m::addElement);
+                before[0] = page.nextBeforeMentionId;
+            }, () -> loading[0] = false);
+        };
+        scroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = scroll.getVerticalScrollBar();
+            if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - PREFETCH_DISTANCE_PX / 4) loadPage.run();
+        });
+        loadPage.run();
+        d.add(scroll);
+        d.setVisible(true);
+        cancel("mentions");
+    }
+
     private void loadTimeline() {
-        feedContainer.removeAll();
-        for (PostDAO.TimelinePost p : postDAO.getTimelinePosts(currentUser.getId())) {
-            feedContainer.add(createPostPanel(p));
-            feedContainer.add(Box.createRigidArea(new Dimension(0, 10)));
+        if (currentUser == null) return;
+        cancel("timeline-page");
+        loadingPage = false;
+        nextCursor = null;
+        dispatch("timeline", postDAO.getTimelinePageAsync(currentUser.getId(), null, PostDAO.DEFAULT_PAGE_SIZE), page -> {
+            feedModel.clear();
+            appendPage(page);
+            feedScroll.getVerticalScrollBar().setValue(0);
+        });
+    }
+
+    private void appendPage(PostDAO.TimelinePage page) {
+        feedModel.addAll(page.posts);
+        nextCursor = page.next;
+    }
+
+    private void maybePrefetchNextPage() {
+        if (currentUser == null || nextCursor == null || loadingPage) return;
+        JScrollBar bar = feedScroll.getVerticalScrollBar();
+        if (bar.getValue() + bar.getVisibleAmount() < bar.getMaximum() - PREFETCH_DISTANCE_PX) return;
+
+        loadingPage = true;
+        dispatch("timeline-page", postDAO.getTimelinePageAsync(currentUser.getId(), nextCursor, PostDAO.DEFAULT_PAGE_SIZE),
+                this::appendPage, () -> loadingPage = false);
+    }
+
+    /**
+     * Applies the result of {@code future} on the EDT. Requests sharing a non-null key supersede
+     * each other: starting one cancels the previous (which then never reaches JDBC if it is still
+     * queued), and a late result from a superseded request is dropped.
+     */
+    private <T> void dispatch(String key, CompletableFuture<T> future, Consumer<T> onResult) {
+        dispatch(key, future, onResult, null);
+    }
+
+    /** As above; {@code onDone} also runs on the EDT after a result or a failure, unless the request was superseded. */
+    private <T> void dispatch(String key, CompletableFuture<T> future, Consumer<T> onResult, Runnable onDone) {
+        if (key != null) {
+            CompletableFuture<?> previous = inFlight.put(key, future);
+            if (previous != null) previous.cancel(false);
         }
-        feedContainer.revalidate();
-        feedContainer.repaint();
+        future.whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            if (key != null) {
+                if (inFlight.get(key) != future) return;
+                inFlight.remove(key);
+            }
+            if (onDone != null) onDone.run();
+            if (error == null) onResult.accept(result);
+            else if (!(error instanceof CancellationException)) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                cause.printStackTrace();
+                JOptionPane.showMessageDialog(this, "Request failed: " + cause.getMessage());
+            }
+        }));
+    }
+
+    private void cancel(String key) {
+        CompletableFuture<?> future = inFlight.remove(key);
+        if (future != null) future.cancel(false);
+    }
+
+    private void cancelAll() {
+        inFlight.values().forEach(f -> f.cancel(false));
+        inFlight.clear();
     }
 
     public static void main(String[] args) {
+        PostSearchIndex.getInstance(); // start the bulk loads before the first search
+        UserSearchIndex.getInstance();
         SwingUtilities.invokeLater(() -> new TwitterGUI().setVisible(true));
     }
 }
\ No newline at end of file
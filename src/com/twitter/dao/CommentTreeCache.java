@@ -0,0 +1,240 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+import com.twitter.util.ShardRouter;
+import com.twitter.util.SqlUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-post cache of the parts of a comment tree that have been viewed.
+ * Children of a comment are fetched in id order a chunk at a time and kept,
+ * so paging deeper into a hot post or re-opening it only touches MySQL for
+ * replies nobody has loaded yet. {@link #onCommentAdded} patches cached posts
+ * instead of discarding them. A list read to its end is trusted for
+ * {@code twitter.comments.completeTtlMs}; after that, paging to its end checks
+ * MySQL again for replies added by other instances.
+ */
+class CommentTreeCache {
+
+    static final int ROOT = 0;
+
+    private static final int CACHED_POSTS = Integer.getInteger("twitter.comments.cachedPosts", 256);
+    private static final int MIN_CHUNK = 20;
+    private static final long COMPLETE_TTL_MS = Long.getLong("twitter.comments.completeTtlMs", 5000);
+
+    private static final String REPLY_COUNT_EXPR =
+            "(SELECT COUNT(*) FROM comments r WHERE r.parent_comment_id = c.comment_id) AS reply_count";
+    private static final String ROOTS_SQL = "SELECT c.comment_id, c.parent_comment_id, c.user_id, c.content, " +
+            REPLY_COUNT_EXPR + " FROM comments c " +
+            "WHERE c.post_id = ? AND c.parent_comment_id IS NULL AND c.comment_id > ? " +
+            "ORDER BY c.comment_id LIMIT ?";
+    private static final String REPLIES_SQL = "SELECT c.comment_id, c.parent_comment_id, c.user_id, c.content, " +
+            REPLY_COUNT_EXPR + " FROM comments c " +
+            "WHERE c.parent_comment_id = ? AND c.comment_id > ? " +
+            "ORDER BY c.comment_id LIMIT ?";
+
+    static final class Record {
+        final int id;
+        final int parentId;
+        final int userId;
+        final String content;
+        int replyCount;
+
+        Record(int id, int parentId, int userId, String content, int replyCount) {
+            this.id = id;
+            this.parentId = parentId;
+            this.userId = userId;
+            this.content = content;
+            this.replyCount = replyCount;
+        }
+    }
+
+    static final class ChildList {
+        int[] ids = new int[4];
+        int size;
+        boolean complete;
+        long completedAt;
+
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        /** Inserts {@code id} in order; false if it is already listed. */
+        boolean insert(int id) {
+            int pos = Arrays.binarySearch(ids, 0, size, id);
+            if (pos >= 0) return false;
+            pos = -pos - 1;
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+            ids[pos] = id;
+            size++;
+            return true;
+        }
+
+        void markComplete() {
+            complete = true;
+            completedAt = System.currentTimeMillis();
+        }
+
+        int last() {
+            return size == 0 ? 0 : ids[size - 1];
+        }
+
+        /** Index of the first child with an id greater than {@code after}. */
+        int positionAfter(int after) {
+            int pos = Arrays.binarySearch(ids, 0, size, after);
+            return pos >= 0 ? pos + 1 : -pos - 1;
+        }
+    }
+
+    static final class PostComments {
+        final int postId;
+        final Map<Integer, Record> records = new HashMap<>();
+        final Map<Integer, ChildList> children = new HashMap<>();
+
+        PostComments(int postId) {
+            this.postId = postId;
+        }
+    }
+
+    private final Map<Integer, PostComments> posts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, PostComments> eldest) {
+            return size() > CACHED_POSTS;
+        }
+    };
+
+    synchronized PostComments forPost(int postId) {
+        return posts.computeIfAbsent(postId, PostComments::new);
+    }
+
+    /**
+     * Returns up to {@code limit} child ids of {@code parentId} after {@code afterId}, loading
+     * from MySQL only what the cache does not have yet. The returned array carries one
+     * extra trailing element: 1 if more children exist beyond the page, else 0.
+     */
+    int[] page(PostComments pc, int parentId, int afterId, int limit) throws SQLException {
+        synchronized (pc) {
+            ChildList list = pc.children.computeIfAbsent(parentId, k -> new ChildList());
+            if (list.complete && System.currentTimeMillis() - list.completedAt > COMPLETE_TTL_MS) list.complete = false;
+            int pos = list.positionAfter(afterId);
+            int available = list.size - pos;
+            if (available <= limit && !list.complete) {
+                int want = Math.max(MIN_CHUNK, limit + 1 - available);
+                load(pc, parentId, list, Math.max(afterId, list.last()), want);
+                pos = list.positionAfter(afterId);
+                available = list.size - pos;
+            }
+            int n = Math.min(limit, available);
+            int[] out = Arrays.copyOfRange(list.ids, pos, pos + n + 1);
+            out[n] = available > limit || !list.complete ? 1 : 0;
+            return out;
+        }
+    }
+
+    Record record(PostComments pc, int id) {
+        synchronized (pc) {
+            return pc.records.get(id);
+        }
+    }
+
+    void onCommentAdded(int postId, int commentId, int parentId, int userId, String content) {
+        PostComments pc;
+        synchronized (this) {
+            pc = posts.get(postId);
+        }
+        if (pc == null) return;
+        synchronized (pc) {
+            // A load or prefetch that ran after the insert committed has already counted it.
+            if (pc.records.containsKey(commentId)) return;
+            pc.records.put(commentId, new Record(commentId, parentId, userId, content, 0));
+            Record parent = pc.records.get(parentId);
+            if (parent != null) parent.replyCount++;
+            ChildList list = pc.children.get(parentId);
+            // An incomplete list picks up ids past its last one from MySQL when it is paged to.
+            if (list != null && (list.complete || commentId < list.last())) list.insert(commentId);
+        }
+    }
+
+    private void load(PostComments pc, int parentId, ChildList list, int afterId, int want) throws SQLException {
+        try (Connection conn = connectionFor(pc);
+             PreparedStatement pstmt = conn.prepareStatement(parentId == ROOT ? ROOTS_SQL : REPLIES_SQL)) {
+            pstmt.setInt(1, parentId == ROOT ? pc.postId : parentId);
+            pstmt.setInt(2, afterId);
+            pstmt.setInt(3, want);
+            ResultSet rs = pstmt.executeQuery();
+            int rows = 0;
+            while (rs.next()) {
+                rows++;
+                int id = rs.getInt("comment_id");
+                pc.records.put(id, new Record(id, rs.getInt("parent_comment_id"), rs.getInt("user_id"),
+                        rs.getString("content"), rs.getInt("reply_count")));
+                list.insert(id);
+            }
+            if (rows < want) {
+                list.markComplete();
+                Record parent = pc.records.get(parentId);
+                if (parent != null) parent.replyCount = Math.max(parent.replyCount, list.size);
+            }
+        }
+    }
+
+    /** Prefetches the first chunk of replies for every listed parent that has none cached, in one query. */
+    void prefetchFirstReplies(PostComments pc, List<Integer> parentIds, int fanOut) throws SQLException {
+        // Held across the query, as in page(), so a concurrent onCommentAdded cannot slip between
+        // the read and a list being marked complete.
+        synchronized (pc) {
+            List<Integer> missing = new ArrayList<>();
+            for (int id : parentIds) {
+                Record r = pc.records.get(id);
+                if (r != null && r.replyCount > 0 && !pc.children.containsKey(id)) missing.add(id);
+            }
+            if (missing.isEmpty()) return;
+
+            int want = Math.max(MIN_CHUNK, fanOut + 1);
+            String sql = "SELECT comment_id, parent_comment_id, user_id, content, reply_count FROM (" +
+                    "SELECT c.comment_id, c.parent_comment_id, c.user_id, c.content, " + REPLY_COUNT_EXPR + ", " +
+                    "ROW_NUMBER() OVER (PARTITION BY c.parent_comment_id ORDER BY c.comment_id) AS rn " +
+                    "FROM comments c WHERE c.parent_comment_id IN (" + SqlUtil.paddedPlaceholders(missing.size()) + ")" +
+                    ") x WHERE rn <= ? ORDER BY parent_comment_id, comment_id";
+            int[] ids = missing.stream().mapToInt(Integer::intValue).toArray();
+
+            Map<Integer, ChildList> fetched = new HashMap<>();
+            for (int id : ids) fetched.put(id, new ChildList());
+            try (Connection conn = connectionFor(pc);
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                int idx = SqlUtil.bindPaddedInts(pstmt, 1, ids, ids.length);
+                pstmt.setInt(idx, want);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    int id = rs.getInt("comment_id");
+                    int parent = rs.getInt("parent_comment_id");
+                    pc.records.put(id, new Record(id, parent, rs.getInt("user_id"),
+                            rs.getString("content"), rs.getInt("reply_count")));
+                    fetched.get(parent).add(id);
+                }
+            }
+            for (Map.Entry<Integer, ChildList> e : fetched.entrySet()) {
+                if (e.getValue().size < want) e.getValue().markComplete();
+                pc.children.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    // Comments live on the shard of their post; a post found nowhere has none, which shard 0 answers as well.
+    private static Connection connectionFor(PostComments pc) throws SQLException {
+        ShardRouter shards = DBConnection.getShards();
+        return shards.connection(Math.max(0, PostOwners.shardOf(pc.postId)));
+    }
+}
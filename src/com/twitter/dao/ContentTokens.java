@@ -0,0 +1,61 @@
+package com.twitter.dao;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@code @mentions} and {@code #hashtags} of a post, found in one pass
+ * over its content. Both are runs of {@code [A-Za-z0-9_]} after the marker.
+ * Mentions keep the spelling of their first occurrence and are deduplicated
+ * case-insensitively; hashtags are lower-cased. A hashtag must start a word,
+ * contain at least one non-digit and fit {@code post_hashtags.tag}.
+ */
+final class ContentTokens {
+
+    static final int MAX_TAG_LENGTH = 100;
+
+    final List<String> mentions;
+    final List<String> hashtags;
+
+    private ContentTokens(List<String> mentions, List<String> hashtags) {
+        this.mentions = mentions;
+        this.hashtags = hashtags;
+    }
+
+    static ContentTokens scan(String content) {
+        Map<String, String> mentions = new LinkedHashMap<>();
+        Set<String> hashtags = new LinkedHashSet<>();
+        int n = content == null ? 0 : content.length();
+        int i = 0;
+        while (i < n) {
+            char marker = content.charAt(i);
+            if (marker != '@' && marker != '#') {
+                i++;
+                continue;
+            }
+            int start = ++i;
+            boolean digitsOnly = true;
+            while (i < n && isWordChar(content.charAt(i))) {
+                if (!Character.isDigit(content.charAt(i))) digitsOnly = false;
+                i++;
+            }
+            if (i == start) continue;
+            String word = content.substring(start, i);
+            if (marker == '@') {
+                mentions.putIfAbsent(word.toLowerCase(), word);
+            } else if (!digitsOnly && word.length() <= MAX_TAG_LENGTH
+                    && (start == 1 || !isWordChar(content.charAt(start - 2)))) {
+                hashtags.add(word.toLowerCase());
+            }
+        }
+        return new ContentTokens(new ArrayList<>(mentions.values()), new ArrayList<>(hashtags));
+    }
+
+    private static boolean isWordChar(char c) {
+        return c < 128 && (Character.isLetterOrDigit(c) || c == '_');
+    }
+}
@@ -0,0 +1,480 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The follows table held in memory as compressed sparse rows: one int[] of
+ * offsets indexed by user id into a shared int[] of neighbours, for both
+ * directions, each row sorted ascending. That is 8 bytes per edge plus 8 per
+ * user. Follows made since the last merge live in a small per-user overlay.
+ * A background task folds the overlay into fresh arrays once it passes
+ * {@code twitter.graph.overlayLimit} edges, or every
+ * {@code twitter.graph.mergeIntervalMs}. Each periodic merge first pulls the
+ * follows rows above the highest {@code follow_seq} seen so far, so follows
+ * recorded by other instances show up too.
+ */
+public class FollowGraph {
+
+    private static final String MAX_USER_SQL = "SELECT COALESCE(MAX(user_id), 0) FROM users";
+    private static final String LOAD_SQL = "SELECT follower_id, following_id FROM follows " +
+            "WHERE follower_id BETWEEN ? AND ? ORDER BY follower_id, following_id";
+    private static final String MAX_SEQ_SQL = "SELECT COALESCE(MAX(follow_seq), 0) FROM follows";
+    private static final String DELTA_SQL = "SELECT follow_seq, follower_id, following_id FROM follows " +
+            "WHERE follow_seq > ? ORDER BY follow_seq LIMIT ?";
+    private static final int LOAD_RANGE = 10000;
+    private static final int DELTA_BATCH = 10000;
+    // Sequence numbers are taken at insert but become visible at commit, so each pull re-reads this many
+    // below the mark to catch slow transactions; the overlay drops the ones already held.
+    private static final long SEQ_OVERLAP = Long.getLong("twitter.graph.seqOverlap", 1000);
+    private static final int OVERLAY_LIMIT = Integer.getInteger("twitter.graph.overlayLimit", 100_000);
+    private static final long MERGE_INTERVAL_MS = Long.getLong("twitter.graph.mergeIntervalMs", 60_000);
+
+    private static final int[] NONE = new int[0];
+
+    private static volatile FollowGraph instance;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final AtomicBoolean mergeQueued = new AtomicBoolean();
+    private final ScheduledExecutorService merger = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "follow-graph-merger");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile boolean available;
+    // Highest follow_seq pulled from the table; only the merger thread touches it after the load.
+    private long seqMark;
+    private Csr base = Csr.EMPTY;
+    private AdjacencyMap overlayOut = new AdjacencyMap();
+    private AdjacencyMap overlayIn = new AdjacencyMap();
+    // Overlay being folded into the next base; still read until the swap.
+    private AdjacencyMap mergingOut;
+    private AdjacencyMap mergingIn;
+
+    public static FollowGraph getInstance() {
+        FollowGraph g = instance;
+        if (g == null) {
+            synchronized (FollowGraph.class) {
+                g = instance;
+                if (g == null) {
+                    g = new FollowGraph();
+                    Thread loader = new Thread(g::bulkLoad, "follow-graph-loader");
+                    loader.setDaemon(true);
+                    loader.start();
+                    instance = g;
+                }
+            }
+        }
+        return g;
+    }
+
+    private FollowGraph() {
+        merger.scheduleWithFixedDelay(this::refresh, MERGE_INTERVAL_MS, MERGE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Whether the initial load has completed. Never waits: while the graph is
+     * loading, or if the load failed, callers use their SQL path instead.
+     */
+    public boolean ready() {
+        return available;
+    }
+
+    /** Records a committed follow. Duplicates are ignored. */
+    public void addFollow(int followerId, int followeeId) {
+        addFollows(new int[]{followerId}, new int[]{followeeId}, 1);
+    }
+
+    /** Returns how many of the follows were new. */
+    private int addFollows(int[] followers, int[] followees, int n) {
+        int added = 0;
+        boolean mergeNow;
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < n; i++) {
+                if (addLocked(followers[i], followees[i])) added++;
+            }
+            mergeNow = overlayOut.edges >= OVERLAY_LIMIT;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (mergeNow && mergeQueued.compareAndSet(false, true)) merger.execute(this::merge);
+        return added;
+    }
+
+    private boolean addLocked(int followerId, int followeeId) {
+        if (Csr.contains(base.outOffsets, base.outTargets, followerId, followeeId)
+                || (mergingOut != null && mergingOut.contains(followerId, followeeId))) return false;
+        if (!overlayOut.add(followerId, followeeId)) return false;
+        overlayIn.add(followeeId, followerId);
+        return true;
+    }
+
+    /** Ids the user follows, ascending. */
+    public int[] following(int userId) {
+        lock.readLock().lock();
+        try {
+            return row(base.outOffsets, base.outTargets, mergingOut, overlayOut, userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Ids following the user, ascending. */
+    public int[] followers(int userId) {
+        lock.readLock().lock();
+        try {
+            return row(base.inOffsets, base.inTargets, mergingIn, overlayIn, userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int followingCount(int userId) {
+        lock.readLock().lock();
+        try {
+            return count(base.outOffsets, mergingOut, overlayOut, userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int followerCount(int userId) {
+        lock.readLock().lock();
+        try {
+            return count(base.inOffsets, mergingIn, overlayIn, userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Whether {@code followerId} follows {@code followeeId}; searches the shorter of the two rows. */
+    public boolean follows(int followerId, int followeeId) {
+        lock.readLock().lock();
+        try {
+            boolean found = Csr.rowLength(base.outOffsets, followerId) <= Csr.rowLength(base.inOffsets, followeeId)
+                    ? Csr.contains(base.outOffsets, base.outTargets, followerId, followeeId)
+                    : Csr.contains(base.inOffsets, base.inTargets, followeeId, followerId);
+            return found || overlayOut.contains(followerId, followeeId)
+                    || (mergingOut != null && mergingOut.contains(followerId, followeeId));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long edgeCount() {
+        lock.readLock().lock();
+        try {
+            return base.outTargets.length + overlayOut.edges + (mergingOut == null ? 0 : mergingOut.edges);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int[] row(int[] offsets, int[] targets, AdjacencyMap merging, AdjacencyMap overlay, int userId) {
+        int from = userId >= 0 && userId + 1 < offsets.length ? offsets[userId] : 0;
+        int to = userId >= 0 && userId + 1 < offsets.length ? offsets[userId + 1] : 0;
+        int[] out = Arrays.copyOfRange(targets, from, to);
+        if (merging != null && merging.size(userId) > 0) out = mergeSorted(out, out.length, merging.list(userId), merging.size(userId));
+        if (overlay.size(userId) > 0) out = mergeSorted(out, out.length, overlay.list(userId), overlay.size(userId));
+        return out;
+    }
+
+    private static int count(int[] offsets, AdjacencyMap merging, AdjacencyMap overlay, int userId) {
+        return Csr.rowLength(offsets, userId) + overlay.size(userId) + (merging == null ? 0 : merging.size(userId));
+    }
+
+    // Union of two ascending runs, dropping values present in both.
+    private static int[] mergeSorted(int[] a, int aLen, int[] b, int bLen) {
+        int[] out = new int[aLen + bLen];
+        int i = 0, j = 0, n = 0;
+        while (i < aLen && j < bLen) {
+            if (a[i] < b[j]) out[n++] = a[i++];
+            else if (a[i] > b[j]) out[n++] = b[j++];
+            else {
+                out[n++] = a[i++];
+                j++;
+            }
+        }
+        while (i < aLen) out[n++] = a[i++];
+        while (j < bLen) out[n++] = b[j++];
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private void refresh() {
+        if (available) pullNewFollows();
+        merge();
+    }
+
+    /** Adds follows rows past {@link #seqMark}, in batches, and advances the mark. */
+    private void pullNewFollows() {
+        int[] followers = new int[DELTA_BATCH];
+        int[] followees = new int[DELTA_BATCH];
+        long mark = seqMark;
+        long from = Math.max(0, mark - SEQ_OVERLAP);
+        int added = 0;
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(DELTA_SQL)) {
+            int n;
+            do {
+                pstmt.setLong(1, from);
+                pstmt.setInt(2, DELTA_BATCH);
+                n = 0;
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        from = rs.getLong(1);
+                        followers[n] = rs.getInt(2);
+                        followees[n] = rs.getInt(3);
+                        n++;
+                    }
+                }
+                added += addFollows(followers, followees, n);
+                mark = Math.max(mark, from);
+            } while (n == DELTA_BATCH);
+        } catch (SQLException e) {
+            System.err.println("[FOLLOW GRAPH] Refresh failed: " + e.getMessage());
+        }
+        seqMark = mark;
+        if (added > 0) System.out.println("[FOLLOW GRAPH] Refresh added " + added + " follows up to seq " + mark);
+    }
+
+    private void merge() {
+        mergeQueued.set(false);
+        if (loaded.getCount() > 0) return;
+        lock.writeLock().lock();
+        try {
+            if (overlayOut.edges == 0) return;
+            mergingOut = overlayOut;
+            mergingIn = overlayIn;
+            overlayOut = new AdjacencyMap();
+            overlayIn = new AdjacencyMap();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // Only this thread replaces base or clears the merging maps, so both can be read without the lock.
+        Csr merged = base.with(mergingOut, mergingIn);
+        lock.writeLock().lock();
+        try {
+            base = merged;
+            mergingOut = null;
+            mergingIn = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void bulkLoad() {
+        try (Connection conn = DBConnection.getConnection()) {
+            // Taken before the scan, so rows added while loading are pulled again by the first refresh.
+            ResultSet seq = conn.prepareStatement(MAX_SEQ_SQL).executeQuery();
+            if (seq.next()) seqMark = seq.getLong(1);
+            int maxUser = 0;
+            ResultSet max = conn.prepareStatement(MAX_USER_SQL).executeQuery();
+            if (max.next()) maxUser = max.getInt(1);
+
+            int[] outOffsets = new int[maxUser + 2];
+            int[] targets = new int[1024];
+            int edges = 0;
+            int maxTarget = 0;
+            PreparedStatement pstmt = conn.prepareStatement(LOAD_SQL);
+            for (int from = 1; from <= maxUser; from += LOAD_RANGE) {
+                pstmt.setInt(1, from);
+                pstmt.setInt(2, Math.min(maxUser, from + LOAD_RANGE - 1));
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    int follower = rs.getInt(1);
+                    int followee = rs.getInt(2);
+                    if (edges == targets.length) targets = Arrays.copyOf(targets, edges + (edges >> 1));
+                    targets[edges++] = followee;
+                    outOffsets[follower + 1]++;
+                    maxTarget = Math.max(maxTarget, followee);
+                }
+                rs.close();
+            }
+            for (int u = 1; u < outOffsets.length; u++) outOffsets[u] += outOffsets[u - 1];
+            Csr loadedCsr = Csr.build(outOffsets, Arrays.copyOf(targets, edges), Math.max(maxUser, maxTarget));
+
+            lock.writeLock().lock();
+            try {
+                base = loadedCsr;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            available = true;
+            System.out.println("[FOLLOW GRAPH] Loaded " + edges + " edges for " + maxUser + " users");
+        } catch (SQLException e) {
+            System.err.println("[FOLLOW GRAPH] Load failed: " + e.getMessage());
+        } finally {
+            loaded.countDown();
+            // Follows recorded while loading may already be in base; the merge drops the duplicates.
+            merger.execute(this::merge);
+        }
+    }
+
+    /** Immutable adjacency arrays; row u of a direction spans offsets[u] until offsets[u + 1]. */
+    private static final class Csr {
+        static final Csr EMPTY = new Csr(new int[1], NONE, new int[1], NONE);
+
+        final int[] outOffsets;
+        final int[] outTargets;
+        final int[] inOffsets;
+        final int[] inTargets;
+
+        Csr(int[] outOffsets, int[] outTargets, int[] inOffsets, int[] inTargets) {
+            this.outOffsets = outOffsets;
+            this.outTargets = outTargets;
+            this.inOffsets = inOffsets;
+            this.inTargets = inTargets;
+        }
+
+        /** Derives the reverse direction by counting sort; rows come out ascending because sources are visited in order. */
+        static Csr build(int[] outOffsets, int[] outTargets, int maxUser) {
+            if (outOffsets.length < maxUser + 2) {
+                int last = outOffsets[outOffsets.length - 1];
+                int oldLength = outOffsets.length;
+                outOffsets = Arrays.copyOf(outOffsets, maxUser + 2);
+                Arrays.fill(outOffsets, oldLength, outOffsets.length, last);
+            }
+            int[] inOffsets = new int[maxUser + 2];
+            for (int v : outTargets) inOffsets[v + 1]++;
+            for (int u = 1; u < inOffsets.length; u++) inOffsets[u] += inOffsets[u - 1];
+            int[] inTargets = new int[outTargets.length];
+            int[] fill = Arrays.copyOf(inOffsets, inOffsets.length - 1);
+            for (int u = 0; u + 1 < outOffsets.length; u++) {
+                for (int e = outOffsets[u]; e < outOffsets[u + 1]; e++) inTargets[fill[outTargets[e]]++] = u;
+            }
+            return new Csr(outOffsets, outTargets, inOffsets, inTargets);
+        }
+
+        Csr with(AdjacencyMap out, AdjacencyMap in) {
+            int users = Math.max(outOffsets.length - 2, Math.max(out.maxKey(), in.maxKey()));
+            int[][] outRows = withRows(outOffsets, outTargets, out, users);
+            int[][] inRows = withRows(inOffsets, inTargets, in, users);
+            return new Csr(outRows[0], outRows[1], inRows[0], inRows[1]);
+        }
+
+        private static int[][] withRows(int[] offsets, int[] targets, AdjacencyMap extra, int users) {
+            int[] newOffsets = new int[users + 2];
+            int[] newTargets = new int[targets.length + extra.edges];
+            int n = 0;
+            for (int u = 0; u <= users; u++) {
+                newOffsets[u] = n;
+                int from = u + 1 < offsets.length ? offsets[u] : 0;
+                int to = u + 1 < offsets.length ? offsets[u + 1] : 0;
+                int[] add = extra.list(u);
+                int addLen = extra.size(u);
+                int j = 0;
+                for (int i = from; i < to; i++) {
+                    while (j < addLen && add[j] < targets[i]) newTargets[n++] = add[j++];
+                    if (j < addLen && add[j] == targets[i]) j++;
+                    newTargets[n++] = targets[i];
+                }
+                while (j < addLen) newTargets[n++] = add[j++];
+            }
+            newOffsets[users + 1] = n;
+            return new int[][]{newOffsets, n == newTargets.length ? newTargets : Arrays.copyOf(newTargets, n)};
+        }
+
+        static int rowLength(int[] offsets, int u) {
+            return u >= 0 && u + 1 < offsets.length ? offsets[u + 1] - offsets[u] : 0;
+        }
+
+        static boolean contains(int[] offsets, int[] targets, int u, int v) {
+            if (u < 0 || u + 1 >= offsets.length) return false;
+            return Arrays.binarySearch(targets, offsets[u], offsets[u + 1], v) >= 0;
+        }
+    }
+
+    /** Sorted int lists keyed by user id with open addressing, so the overlay never boxes. */
+    private static final class AdjacencyMap {
+        private int[] keys = new int[64];
+        private int[][] lists = new int[64][];
+        private int[] sizes = new int[64];
+        private int used;
+        private int maxKey;
+        int edges;
+
+        boolean add(int key, int value) {
+            int slot = slot(key);
+            if (keys[slot] == 0) {
+                if ((used + 1) * 2 > keys.length) {
+                    grow();
+                    slot = slot(key);
+                }
+                keys[slot] = key;
+                lists[slot] = new int[4];
+                used++;
+                maxKey = Math.max(maxKey, key);
+            }
+            int[] list = lists[slot];
+            int size = sizes[slot];
+            int at = Arrays.binarySearch(list, 0, size, value);
+            if (at >= 0) return false;
+            at = -at - 1;
+            if (size == list.length) list = lists[slot] = Arrays.copyOf(list, size * 2);
+            System.arraycopy(list, at, list, at + 1, size - at);
+            list[at] = value;
+            sizes[slot]++;
+            edges++;
+            return true;
+        }
+
+        int size(int key) {
+            if (key <= 0) return 0;
+            int slot = slot(key);
+            return keys[slot] == 0 ? 0 : sizes[slot];
+        }
+
+        int[] list(int key) {
+            if (key <= 0) return NONE;
+            int slot = slot(key);
+            return keys[slot] == 0 ? NONE : lists[slot];
+        }
+
+        boolean contains(int key, int value) {
+            int size = size(key);
+            return size > 0 && Arrays.binarySearch(list(key), 0, size, value) >= 0;
+        }
+
+        int maxKey() {
+            return maxKey;
+        }
+
+        // User ids start at 1, so key 0 marks an empty slot.
+        private int slot(int key) {
+            int mask = keys.length - 1;
+            int slot = (key * 0x9E3779B9) >>> 7 & mask;
+            while (keys[slot] != 0 && keys[slot] != key) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[][] oldLists = lists;
+            int[] oldSizes = sizes;
+            keys = new int[oldKeys.length * 2];
+            lists = new int[keys.length][];
+            sizes = new int[keys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == 0) continue;
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                lists[slot] = oldLists[i];
+                sizes[slot] = oldSizes[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.twitter.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * "Who to follow": accounts followed by the people a user follows, ranked by
+ * how many of them follow each one. The two-hop walk over {@link FollowGraph}
+ * is split across a fork-join pool by followee range; each leaf counts into a
+ * primitive open-addressing table and the tables are summed on the way back
+ * up. A bounded min-heap keeps the best {@code MAX_RESULTS}, and results are
+ * cached per user for {@code twitter.recommend.ttlMs}.
+ */
+public class FollowRecommender {
+
+    public static class Suggestion {
+        public final int userId;
+        public final String username;
+        public final int mutualFollows;
+        public final int followers;
+
+        public Suggestion(int userId, String username, int mutualFollows, int followers) {
+            this.userId = userId;
+            this.username = username;
+            this.mutualFollows = mutualFollows;
+            this.followers = followers;
+        }
+    }
+
+    private static final int MAX_RESULTS = 50;
+    private static final int LEAF_FOLLOWEES = 32;
+    private static final long TTL_MS = Long.getLong("twitter.recommend.ttlMs", 10 * 60 * 1000L);
+    private static final int CACHED_USERS = Integer.getInteger("twitter.recommend.cachedUsers", 10000);
+
+    private static volatile FollowRecommender instance;
+
+    private final FollowGraph graph = FollowGraph.getInstance();
+    private final ForkJoinPool pool = new ForkJoinPool(
+            Integer.getInteger("twitter.recommend.parallelism", Runtime.getRuntime().availableProcessors()));
+
+    private final Map<Integer, Cached> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Cached> eldest) {
+            return size() > CACHED_USERS;
+        }
+    };
+
+    private static class Cached {
+        final long computedAt = System.currentTimeMillis();
+        final List<Suggestion> suggestions;
+
+        Cached(List<Suggestion> suggestions) {
+            this.suggestions = suggestions;
+        }
+    }
+
+    public static FollowRecommender getInstance() {
+        FollowRecommender r = instance;
+        if (r == null) {
+            synchronized (FollowRecommender.class) {
+                r = instance;
+                if (r == null) {
+                    r = new FollowRecommender();
+                    instance = r;
+                }
+            }
+        }
+        return r;
+    }
+
+    /** Up to {@code limit} suggestions, best first; empty while the follow graph is unavailable. */
+    public List<Suggestion> recommend(int userId, int limit) {
+        Cached cached;
+        synchronized (cache) {
+            cached = cache.get(userId);
+        }
+        if (cached == null || System.currentTimeMillis() - cached.computedAt > TTL_MS) {
+            if (!graph.ready()) return new ArrayList<>();
+            cached = new Cached(compute(userId));
+            synchronized (cache) {
+                cache.put(userId, cached);
+            }
+        }
+        List<Suggestion> all = cached.suggestions;
+        return new ArrayList<>(all.subList(0, Math.min(limit, all.size())));
+    }
+
+    /** Drops the cached suggestions of a user whose followees just changed. */
+    public void invalidate(int userId) {
+        synchronized (cache) {
+            cache.remove(userId);
+        }
+    }
+
+    private List<Suggestion> compute(int userId) {
+        int[] followees = graph.following(userId);
+        IntCounter counts = followees.length == 0 ? new IntCounter()
+                : pool.invoke(new CountTask(graph, followees, 0, followees.length));
+
+        TopK top = new TopK(MAX_RESULTS);
+        for (int slot = 0; slot < counts.keys.length; slot++) {
+            int candidate = counts.keys[slot];
+            if (candidate == 0 || candidate == userId) continue;
+            if (Arrays.binarySearch(followees, candidate) >= 0) continue;
+            top.offer(candidate, counts.values[slot]);
+        }
+
+        int n = top.size;
+        int[] ids = new int[n];
+        int[] scores = new int[n];
+        top.drainDescending(ids, scores);
+        Map<Integer, String> names = UserIdCache.resolveNames(ids);
+        List<Suggestion> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String name = names.get(ids[i]);
+            if (name != null) out.add(new Suggestion(ids[i], name, scores[i], graph.followerCount(ids[i])));
+        }
+        return out;
+    }
+
+    private static class CountTask extends RecursiveTask<IntCounter> {
+        private static final long serialVersionUID = 1L;
+
+        private final FollowGraph graph;
+        private final int[] followees;
+        private final int from;
+        private final int to;
+
+        CountTask(FollowGraph graph, int[] followees, int from, int to) {
+            this.graph = graph;
+            this.followees = followees;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected IntCounter compute() {
+            if (to - from <= LEAF_FOLLOWEES) {
+                IntCounter counts = new IntCounter();
+                for (int i = from; i < to; i++) {
+                    for (int candidate : graph.following(followees[i])) counts.add(candidate, 1);
+                }
+                return counts;
+            }
+            int mid = (from + to) >>> 1;
+            CountTask left = new CountTask(graph, followees, from, mid);
+            left.fork();
+            IntCounter right = new CountTask(graph, followees, mid, to).compute();
+            IntCounter merged = left.join();
+            // Fold the smaller table into the larger one.
+            if (merged.size < right.size) {
+                IntCounter swap = merged;
+                merged = right;
+                right = swap;
+            }
+            for (int slot = 0; slot < right.keys.length; slot++) {
+                if (right.keys[slot] != 0) merged.add(right.keys[slot], right.values[slot]);
+            }
+            return merged;
+        }
+    }
+
+    /** int to int counts with open addressing; user ids start at 1, so key 0 marks an empty slot. */
+    private static final class IntCounter {
+        int[] keys = new int[256];
+        int[] values = new int[256];
+        int size;
+
+        void add(int key, int delta) {
+            int slot = slot(keys, key);
+            if (keys[slot] == 0) {
+                if ((size + 1) * 2 > keys.length) {
+                    grow();
+                    slot = slot(keys, key);
+                }
+                keys[slot] = key;
+                size++;
+            }
+            values[slot] += delta;
+        }
+
+        private static int slot(int[] keys, int key) {
+            int mask = keys.length - 1;
+            int slot = (key * 0x9E3779B9) >>> 7 & mask;
+            while (keys[slot] != 0 && keys[slot] != key) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[keys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == 0) continue;
+                int slot = slot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /** Min-heap of (score, id) capped at {@code capacity}; ties favour the lower (older) id. */
+    private static final class TopK {
+        private final int[] ids;
+        private final int[] scores;
+        int size;
+
+        TopK(int capacity) {
+            ids = new int[capacity];
+            scores = new int[capacity];
+        }
+
+        void offer(int id, int score) {
+            if (size < ids.length) {
+                ids[size] = id;
+                scores[size] = score;
+                siftUp(size++);
+            } else if (less(ids[0], scores[0], id, score)) {
+                ids[0] = id;
+                scores[0] = score;
+                siftDown(0);
+            }
+        }
+
+        void drainDescending(int[] outIds, int[] outScores) {
+            for (int i = size - 1; i >= 0; i--) {
+                outIds[i] = ids[0];
+                outScores[i] = scores[0];
+                size--;
+                ids[0] = ids[size];
+                scores[0] = scores[size];
+                siftDown(0);
+            }
+        }
+
+        private static boolean less(int idA, int scoreA, int idB, int scoreB) {
+            return scoreA != scoreB ? scoreA < scoreB : idA > idB;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!less(ids[i], scores[i], ids[parent], scores[parent])) break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int l = 2 * i + 1;
+                int r = l + 1;
+                if (l < size && less(ids[l], scores[l], ids[smallest], scores[smallest])) smallest = l;
+                if (r < size && less(ids[r], scores[r], ids[smallest], scores[smallest])) smallest = r;
+                if (smallest == i) return;
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int id = ids[a];
+            ids[a] = ids[b];
+            ids[b] = id;
+            int score = scores[a];
+            scores[a] = scores[b];
+            scores[b] = score;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+import com.twitter.util.ShardRouter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trending hashtags over a sliding window, in constant memory. Uses are
+ * counted in a count-min sketch per time bucket, plus a running sketch of the
+ * whole window that an expiring bucket is subtracted from. A fixed set of
+ * candidate tags holds the current heavy hitters; a tag displaces the weakest
+ * candidate once its estimate is higher. Estimates can only overcount.
+ *
+ * <p>On startup the window is replayed from {@code post_hashtags}; after that
+ * {@link PostDAO#createPost} feeds it directly.
+ */
+public class HashtagTrends {
+
+    public static class Trend {
+        public final String tag;
+        public final long count;
+
+        public Trend(String tag, long count) {
+            this.tag = tag;
+            this.count = count;
+        }
+    }
+
+    private static final int DEPTH = 4;
+    private static final String SEED_SQL = "SELECT tag, created_at FROM post_hashtags WHERE created_at >= ? AND created_at < ?";
+
+    private static volatile HashtagTrends instance;
+
+    private final long bucketMillis;
+    private final int width;
+    private final int capacity;
+    private final int[][] buckets;
+    private final long[] window;
+    private final Map<String, long[]> candidates = new HashMap<>();
+    // No candidate is below this; lets most long-tail tags skip the scan for the weakest one.
+    private long floor;
+    private long epoch;
+
+    public HashtagTrends(long bucketMillis, int bucketCount, int width, int capacity) {
+        this.bucketMillis = bucketMillis;
+        this.width = Integer.highestOneBit(Math.max(64, width));
+        this.capacity = capacity;
+        this.buckets = new int[bucketCount][DEPTH * this.width];
+        this.window = new long[DEPTH * this.width];
+        this.epoch = System.currentTimeMillis() / bucketMillis;
+    }
+
+    public static HashtagTrends getInstance() {
+        HashtagTrends t = instance;
+        if (t == null) {
+            synchronized (HashtagTrends.class) {
+                t = instance;
+                if (t == null) {
+                    t = new HashtagTrends(
+                            Long.getLong("twitter.hashtags.bucketMs", 5 * 60 * 1000L),
+                            Integer.getInteger("twitter.hashtags.buckets", 12),
+                            Integer.getInteger("twitter.hashtags.sketchWidth", 2048),
+                            Integer.getInteger("twitter.hashtags.candidates", 100));
+                    HashtagTrends seeded = t;
+                    long until = System.currentTimeMillis();
+                    Thread loader = new Thread(() -> seeded.seed(until), "hashtag-trends-loader");
+                    loader.setDaemon(true);
+                    loader.start();
+                    instance = t;
+                }
+            }
+        }
+        return t;
+    }
+
+    public synchronized void record(List<String> tags, long atMillis) {
+        advance(System.currentTimeMillis() / bucketMillis);
+        long at = Math.min(atMillis / bucketMillis, epoch);
+        if (at <= epoch - buckets.length) return;
+        int[] bucket = buckets[slot(at)];
+        for (String tag : tags) {
+            long estimate = Long.MAX_VALUE;
+            int h1 = tag.hashCode();
+            int h2 = mix(h1);
+            for (int row = 0; row < DEPTH; row++) {
+                int cell = cell(row, h1, h2);
+                bucket[cell]++;
+                estimate = Math.min(estimate, ++window[cell]);
+            }
+            offer(tag, estimate);
+        }
+    }
+
+    /** The {@code k} most used tags in the window, with their estimated counts. */
+    public synchronized List<Trend> top(int k) {
+        advance(System.currentTimeMillis() / bucketMillis);
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(candidates.entrySet());
+        entries.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                ? Long.compare(b.getValue()[0], a.getValue()[0]) : a.getKey().compareTo(b.getKey()));
+        List<Trend> result = new ArrayList<>(Math.min(k, entries.size()));
+        for (int i = 0; i < entries.size() && result.size() < k; i++) {
+            result.add(new Trend(entries.get(i).getKey(), entries.get(i).getValue()[0]));
+        }
+        return result;
+    }
+
+    public long getWindowMinutes() {
+        return bucketMillis * buckets.length / 60_000L;
+    }
+
+    private void offer(String tag, long estimate) {
+        long[] count = candidates.get(tag);
+        if (count != null) {
+            count[0] = estimate;
+            return;
+        }
+        if (candidates.size() < capacity) {
+            candidates.put(tag, new long[]{estimate});
+            return;
+        }
+        if (estimate <= floor) return;
+        String weakest = null;
+        long weakestCount = Long.MAX_VALUE;
+        for (Map.Entry<String, long[]> e : candidates.entrySet()) {
+            if (e.getValue()[0] < weakestCount) {
+                weakest = e.getKey();
+                weakestCount = e.getValue()[0];
+            }
+        }
+        floor = weakestCount;
+        if (estimate > weakestCount) {
+            candidates.remove(weakest);
+            candidates.put(tag, new long[]{estimate});
+        }
+    }
+
+    // Expires every bucket that has slid out of the window; candidates are then re-estimated.
+    private void advance(long now) {
+        if (now <= epoch) return;
+        long from = Math.max(epoch + 1, now - buckets.length + 1);
+        for (long e = from; e <= now; e++) {
+            int[] expired = buckets[slot(e)];
+            for (int i = 0; i < expired.length; i++) {
+                window[i] -= expired[i];
+                expired[i] = 0;
+            }
+        }
+        epoch = now;
+
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, long[]> e : candidates.entrySet()) {
+            long estimate = estimate(e.getKey());
+            if (estimate == 0) stale.add(e.getKey());
+            else e.getValue()[0] = estimate;
+        }
+        stale.forEach(candidates::remove);
+        floor = 0;
+    }
+
+    private long estimate(String tag) {
+        int h1 = tag.hashCode();
+        int h2 = mix(h1);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) estimate = Math.min(estimate, window[cell(row, h1, h2)]);
+        return estimate;
+    }
+
+    // Row hashes are h1 + row * h2 over two independent-enough hashes of the tag.
+    private int cell(int row, int h1, int h2) {
+        return row * width + ((h1 + row * h2) & (width - 1));
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return (h ^ h >>> 16) | 1;
+    }
+
+    private int slot(long e) {
+        return (int) Math.floorMod(e, (long) buckets.length);
+    }
+
+    // Tags written before this process started, from every shard; later ones arrive through record().
+    private void seed(long untilMillis) {
+        long since = (untilMillis / bucketMillis - buckets.length + 1) * bucketMillis;
+        ShardRouter shards = DBConnection.getShards();
+        try {
+            shards.scatter(shards.allShards(), shard -> {
+                try (Connection conn = shards.connection(shard);
+                     PreparedStatement pstmt = conn.prepareStatement(SEED_SQL)) {
+                    pstmt.setTimestamp(1, new Timestamp(since));
+                    pstmt.setTimestamp(2, new Timestamp(untilMillis));
+                    ResultSet rs = pstmt.executeQuery();
+                    List<String> one = new ArrayList<>(1);
+                    one.add(null);
+                    while (rs.next()) {
+                        one.set(0, rs.getString("tag"));
+                        record(one, rs.getTimestamp("created_at").getTime());
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            System.err.println("[HASHTAGS] Could not replay recent hashtags: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+import com.twitter.util.SqlUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Materialized per-user home timelines kept in {@code home_timelines}.
+ * New posts are pushed to followers on write; authors with at least
+ * {@code CELEBRITY_FOLLOWERS} followers are recorded in {@code celebrity_users}
+ * and merged in at read time instead.
+ */
+public class HomeTimelineStore {
+
+    static final int CELEBRITY_FOLLOWERS = Integer.getInteger("twitter.timeline.celebrityFollowers", 10000);
+    static final int MAX_TIMELINE_LENGTH = Integer.getInteger("twitter.timeline.maxLength", 800);
+
+    private static final String COUNT_FOLLOWERS_SQL = "SELECT COUNT(*) FROM follows WHERE following_id = ?";
+    private static final String MARK_CELEBRITY_SQL = "INSERT IGNORE INTO celebrity_users (user_id) VALUES (?)";
+    private static final String CELEBRITIES_SQL = "SELECT user_id FROM celebrity_users ORDER BY user_id";
+    private static final String FAN_OUT_SQL = "INSERT IGNORE INTO home_timelines (user_id, post_id, created_at) " +
+            "SELECT follower_id, ?, ? FROM follows WHERE following_id = ? " +
+            "UNION ALL SELECT ?, ?, ?";
+    private static final String OWN_POST_SQL = "INSERT IGNORE INTO home_timelines (user_id, post_id, created_at) VALUES (?, ?, ?)";
+    private static final String BACKFILL_FOLLOW_SQL = "INSERT IGNORE INTO home_timelines (user_id, post_id, created_at) " +
+            "SELECT ?, p.post_id, p.created_at FROM posts p " +
+            "WHERE p.user_id = ? AND NOT EXISTS (SELECT 1 FROM celebrity_users c WHERE c.user_id = p.user_id) " +
+            "ORDER BY p.created_at DESC LIMIT " + MAX_TIMELINE_LENGTH;
+    private static final int TRIM_BATCH = Integer.getInteger("twitter.timeline.trimBatch", 500);
+    // Trimming walks the primary key a batch of users at a time and deletes per user, so
+    // each statement only touches one index range instead of the whole table.
+    private static final String TRIM_CANDIDATES_SQL = "SELECT user_id, COUNT(*) AS n FROM home_timelines " +
+            "WHERE user_id > ? GROUP BY user_id ORDER BY user_id LIMIT ?";
+    private static final String TRIM_CUTOFF_SQL = "SELECT created_at, post_id FROM home_timelines WHERE user_id = ? " +
+            "ORDER BY created_at DESC, post_id DESC LIMIT 1 OFFSET ?";
+    private static final String TRIM_USER_SQL = "DELETE FROM home_timelines WHERE user_id = ? " +
+            "AND (created_at < ? OR (created_at = ? AND post_id < ?))";
+
+    private static final String HOME_IDS_SQL = buildHomeIdsSql(false, -1);
+    private static final String HOME_IDS_AFTER_SQL = buildHomeIdsSql(true, -1);
+
+    /**
+     * Ids of one page of a user's home timeline: materialized rows unioned with
+     * the posts of followed celebrities, optionally strictly older than a
+     * (created_at, post_id) cursor. Exposes post_id and created_at; bind with
+     * {@link #bindHomeIds}. {@code celebrities} is the length of the list from
+     * {@link #celebrityFollowees}, or -1 to find them with a join on follows.
+     */
+    static String homeIdsSql(boolean afterCursor, int celebrities) {
+        if (celebrities < 0) return afterCursor ? HOME_IDS_AFTER_SQL : HOME_IDS_SQL;
+        return buildHomeIdsSql(afterCursor, celebrities == 0 ? 0 : SqlUtil.paddedSize(celebrities));
+    }
+
+    private static String buildHomeIdsSql(boolean afterCursor, int celebrities) {
+        String ownCursor = afterCursor ? "AND (created_at < ? OR (created_at = ? AND post_id < ?)) " : "";
+        String celebCursor = afterCursor ? "AND (cp.created_at < ? OR (cp.created_at = ? AND cp.post_id < ?)) " : "";
+        String own = "(SELECT post_id, created_at FROM home_timelines WHERE user_id = ? " + ownCursor +
+                "ORDER BY created_at DESC, post_id DESC LIMIT ?)";
+        if (celebrities == 0) return own;
+        String celebs = celebrities < 0
+                ? "FROM follows cf JOIN celebrity_users c ON c.user_id = cf.following_id " +
+                  "JOIN posts cp ON cp.user_id = cf.following_id WHERE cf.follower_id = ? "
+                : "FROM posts cp WHERE cp.user_id IN (" + SqlUtil.placeholders(celebrities) + ") ";
+        return own + " UNION " +
+                "(SELECT cp.post_id, cp.created_at " + celebs + celebCursor +
+                "ORDER BY cp.created_at DESC, cp.post_id DESC LIMIT ?)";
+    }
+
+    // Sorted copy of celebrity_users, reloaded every twitter.timeline.celebrityRefreshMs; null until the first load.
+    private static volatile int[] celebrities;
+
+    /**
+     * Followees of {@code userId} listed in {@code celebrity_users}, whose posts
+     * are merged in at read time; null while the follow graph or the celebrity
+     * list is unavailable. Rows are never removed from {@code celebrity_users},
+     * so an author who has dropped back under the threshold stays listed and
+     * the posts they made as a celebrity, which were never fanned out, are
+     * still found. The UNION drops posts that were fanned out as well.
+     */
+    static int[] celebrityFollowees(int userId) {
+        int[] celebs = celebrities;
+        FollowGraph graph = FollowGraph.getInstance();
+        if (celebs == null || !graph.ready()) return null;
+        int[] followees = graph.following(userId);
+        int n = 0;
+        for (int f : followees) {
+            if (Arrays.binarySearch(celebs, f) >= 0) followees[n++] = f;
+        }
+        return Arrays.copyOf(followees, n);
+    }
+
+    private static void loadCelebrities() {
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(CELEBRITIES_SQL);
+             ResultSet rs = pstmt.executeQuery()) {
+            int[] ids = new int[64];
+            int n = 0;
+            while (rs.next()) {
+                if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+                ids[n++] = rs.getInt(1);
+            }
+            celebrities = Arrays.copyOf(ids, n);
+        } catch (SQLException e) {
+            System.err.println("[TIMELINE] Celebrity reload failed: " + e.getMessage());
+        }
+    }
+
+    private static synchronized void addCelebrity(int userId) {
+        int[] celebs = celebrities;
+        if (celebs == null) return;
+        int at = Arrays.binarySearch(celebs, userId);
+        if (at >= 0) return;
+        at = -at - 1;
+        int[] next = new int[celebs.length + 1];
+        System.arraycopy(celebs, 0, next, 0, at);
+        next[at] = userId;
+        System.arraycopy(celebs, at, next, at + 1, celebs.length - at);
+        celebrities = next;
+    }
+
+    static int bindHomeIds(PreparedStatement ps, int idx, int userId, int[] celebrities, Timestamp afterCreatedAt,
+                           int afterPostId, int limit) throws SQLException {
+        for (int branch = 0; branch < 2; branch++) {
+            if (branch == 1 && celebrities != null) {
+                if (celebrities.length == 0) break;
+                idx = SqlUtil.bindPaddedInts(ps, idx, celebrities, celebrities.length);
+            } else {
+                ps.setInt(idx++, userId);
+            }
+            if (afterCreatedAt != null) {
+                ps.setTimestamp(idx++, afterCreatedAt);
+                ps.setTimestamp(idx++, afterCreatedAt);
+                ps.setInt(idx++, afterPostId);
+            }
+            ps.setInt(idx++, limit);
+        }
+        return idx;
+    }
+
+    private static final ScheduledExecutorService TRIMMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "home-timeline-trimmer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        long period = Long.getLong("twitter.timeline.trimIntervalMs", TimeUnit.MINUTES.toMillis(10));
+        TRIMMER.scheduleWithFixedDelay(HomeTimelineStore::trim, period, period, TimeUnit.MILLISECONDS);
+        long refresh = Long.getLong("twitter.timeline.celebrityRefreshMs", 30_000);
+        TRIMMER.scheduleWithFixedDelay(HomeTimelineStore::loadCelebrities, 0, refresh, TimeUnit.MILLISECONDS);
+    }
+
+    /** Pushes a freshly inserted post to its author's followers. Runs inside the caller's transaction. */
+    static void fanOut(Connection conn, int authorId, int postId, Timestamp createdAt) throws SQLException {
+        int followers = 0;
+        FollowGraph graph = FollowGraph.getInstance();
+        if (graph.ready()) {
+            followers = graph.followerCount(authorId);
+        } else {
+            PreparedStatement count = conn.prepareStatement(COUNT_FOLLOWERS_SQL);
+            count.setInt(1, authorId);
+            ResultSet rs = count.executeQuery();
+            if (rs.next()) followers = rs.getInt(1);
+        }
+
+        if (followers >= CELEBRITY_FOLLOWERS) {
+            PreparedStatement mark = conn.prepareStatement(MARK_CELEBRITY_SQL);
+            mark.setInt(1, authorId);
+            mark.executeUpdate();
+            addCelebrity(authorId);
+
+            PreparedStatement own = conn.prepareStatement(OWN_POST_SQL);
+            own.setInt(1, authorId);
+            own.setInt(2, postId);
+            own.setTimestamp(3, createdAt);
+            own.executeUpdate();
+            return;
+        }
+
+        PreparedStatement fan = conn.prepareStatement(FAN_OUT_SQL);
+        fan.setInt(1, postId);
+        fan.setTimestamp(2, createdAt);
+        fan.setInt(3, authorId);
+        fan.setInt(4, authorId);
+        fan.setInt(5, postId);
+        fan.setTimestamp(6, createdAt);
+        fan.executeUpdate();
+    }
+
+    /** Copies the recent posts of a newly followed account into the follower's timeline. */
+    static void backfillFollow(Connection conn, int followerId, int followeeId) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement(BACKFILL_FOLLOW_SQL);
+        pstmt.setInt(1, followerId);
+        pstmt.setInt(2, followeeId);
+        pstmt.executeUpdate();
+    }
+
+    /** Cuts every home timeline back to {@code MAX_TIMELINE_LENGTH} rows, newest kept. */
+    public static void trim() {
+        try (Connection conn = DBConnection.getConnection()) {
+            int lastUser = 0;
+            while (true) {
+                PreparedStatement candidates = conn.prepareStatement(TRIM_CANDIDATES_SQL);
+                candidates.setInt(1, lastUser);
+                candidates.setInt(2, TRIM_BATCH);
+                ResultSet rs = candidates.executeQuery();
+                int seen = 0;
+                while (rs.next()) {
+                    seen++;
+                    lastUser = rs.getInt("user_id");
+                    if (rs.getInt("n") > MAX_TIMELINE_LENGTH) trimUser(conn, lastUser);
+                }
+                if (seen < TRIM_BATCH) break;
+            }
+        } catch (SQLException e) {
+            System.err.println("[TIMELINE] Trim failed: " + e.getMessage());
+        }
+    }
+
+    private static void trimUser(Connection conn, int userId) throws SQLException {
+        PreparedStatement cutoff = conn.prepareStatement(TRIM_CUTOFF_SQL);
+        cutoff.setInt(1, userId);
+        cutoff.setInt(2, MAX_TIMELINE_LENGTH - 1);
+        ResultSet rs = cutoff.executeQuery();
+        if (!rs.next()) return;
+        Timestamp keptCreatedAt = rs.getTimestamp("created_at");
+        int keptPostId = rs.getInt("post_id");
+
+        PreparedStatement delete = conn.prepareStatement(TRIM_USER_SQL);
+        delete.setInt(1, userId);
+        delete.setTimestamp(2, keptCreatedAt);
+        delete.setTimestamp(3, keptCreatedAt);
+        delete.setInt(4, keptPostId);
+        delete.executeUpdate();
+    }
+}
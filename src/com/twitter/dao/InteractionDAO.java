@@ -1,166 +1,453 @@
 package com.twitter.dao;
 
 import com.twitter.util.DBConnection;
+import com.twitter.util.DBExecutor;
+import com.twitter.util.Metrics;
+import com.twitter.util.ShardRouter;
+import com.twitter.util.SqlUtil;
 
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+@SuppressWarnings("try")
 public class InteractionDAO {
 
-    public void followUser(int followerId, String usernameToFollow) {
-        String sql = "INSERT INTO follows (follower_id, following_id) " +
-                "VALUES (?, (SELECT user_id FROM users WHERE username = ?))";
+    private static final String INSERT_LIKE_SQL = "INSERT IGNORE INTO post_likes (user_id, post_id) VALUES (?, ?)";
+    private static final String DELETE_LIKE_SQL = "DELETE FROM post_likes WHERE user_id = ? AND post_id = ?";
+
+    private static final String INSERT_DM_SQL =
+            "INSERT INTO direct_messages (message_id, sender_id, receiver_id, content, sent_at) VALUES (?, ?, ?, ?, ?)";
+    private static final String UPSERT_CONVERSATIONS_SQL =
+            "INSERT INTO dm_conversations (user_id, peer_id, last_message_id, unread_count) VALUES (?, ?, ?, ?), (?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE last_message_id = GREATEST(last_message_id, VALUES(last_message_id)), " +
+            "unread_count = unread_count + VALUES(unread_count)";
+    private static final String UPSERT_CONVERSATION_SQL =
+            "INSERT INTO dm_conversations (user_id, peer_id, last_message_id, unread_count) VALUES (?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE last_message_id = GREATEST(last_message_id, VALUES(last_message_id)), " +
+            "unread_count = unread_count + VALUES(unread_count)";
+    private static final String CONVERSATIONS_SQL =
+            "SELECT c.peer_id, c.unread_count, m.message_id, m.sender_id, m.content, m.sent_at " +
+            "FROM dm_conversations c JOIN direct_messages m ON m.message_id = c.last_message_id " +
+            "WHERE c.user_id = ? AND c.last_message_id < ? " +
+            "ORDER BY c.last_message_id DESC LIMIT ?";
+    // Each direction seeks the (sender_id, receiver_id, message_id) index; the merge sees at most 2 * (limit + 1) rows.
+    private static final String MESSAGES_SQL =
+            "(SELECT message_id, sender_id, content, sent_at FROM direct_messages " +
+            "WHERE sender_id = ? AND receiver_id = ? AND message_id < ? ORDER BY message_id DESC LIMIT ?) " +
+            "UNION ALL " +
+            "(SELECT message_id, sender_id, content, sent_at FROM direct_messages " +
+            "WHERE sender_id = ? AND receiver_id = ? AND message_id < ? ORDER BY message_id DESC LIMIT ?) " +
+            "ORDER BY message_id DESC LIMIT ?";
+    private static final String MARK_READ_SQL = "UPDATE dm_conversations SET unread_count = 0 WHERE user_id = ? AND peer_id = ?";
+
+    private static final int MAX_TX_ATTEMPTS = 3;
+
+    public static final int DM_PAGE_SIZE = 20;
+    public static final int COMMENT_PAGE_SIZE = 20;
+    public static final int COMMENT_FAN_OUT = 5;
+    public static final int COMMENT_DEPTH = 3;
+
+    private static final CommentTreeCache COMMENT_TREES = new CommentTreeCache();
+    private static final FollowGraph FOLLOWS = FollowGraph.getInstance();
+    private static final NotificationDispatcher NOTIFICATIONS = NotificationDispatcher.getInstance();
+    private static final ShardRouter SHARDS = DBConnection.getShards();
+
+    /** True if the follow was recorded; false if the user is unknown, already followed, or the write failed. */
+    public boolean followUser(int followerId, String usernameToFollow) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.followUser")) {
+            String sql = "INSERT INTO follows (follower_id, following_id) VALUES (?, ?)";
+
+            Connection conn = null;
+            try {
+                int followeeId = UserIdCache.resolveId(usernameToFollow);
+                if (followeeId == UserIdCache.UNKNOWN) throw new SQLException("Unknown user " + usernameToFollow);
+                if (FOLLOWS.ready() && FOLLOWS.follows(followerId, followeeId)) {
+                    throw new SQLException("Already following " + usernameToFollow);
+                }
 
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                conn = DBConnection.getConnection();
+                conn.setAutoCommit(false);
+
+                PreparedStatement pstmt = conn.prepareStatement(sql);
+                pstmt.setInt(1, followerId);
+                pstmt.setInt(2, followeeId);
+                int rows = pstmt.executeUpdate();
+                if (!SHARDS.isSharded()) HomeTimelineStore.backfillFollow(conn, followerId, followeeId);
+
+                conn.commit();
+                DBConnection.markWrite(followerId);
+                if (rows > 0) {
+                    FOLLOWS.addFollow(followerId, followeeId);
+                    FollowRecommender.getInstance().invalidate(followerId);
+                    UserSearchIndex.getInstance().adjustFollowers(followeeId, 1);
+                    System.out.println("Now following " + usernameToFollow);
+                }
+                return rows > 0;
+            } catch (SQLException e) {
+                try {
+                    if (conn != null) conn.rollback();
+                } catch (SQLException ex) {
+                }
+                System.out.println("Could not follow user (User might not exist or already followed).");
+                return false;
+            } finally {
+                try {
+                    if (conn != null) conn.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
 
-            pstmt.setInt(1, followerId);
-            pstmt.setString(2, usernameToFollow);
-            int rows = pstmt.executeUpdate();
-            if (rows > 0) System.out.println("Now following " + usernameToFollow);
+    /**
+     * A message is stored in the mailbox of each participant: on the sender's
+     * shard and, if the receiver lives elsewhere, again under the same id on
+     * theirs. Both transactions are committed only after both writes worked.
+     * A transaction chosen as a deadlock victim is retried. Returns false if
+     * the receiver is unknown or nothing could be stored.
+     */
+    public boolean sendDM(int senderId, String receiverUsername, String content) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.sendDM")) {
+            int receiverId = UserIdCache.resolveId(receiverUsername);
+            if (receiverId == UserIdCache.UNKNOWN) {
+                System.out.println("Failed to send DM.");
+                return false;
+            }
 
-        } catch (SQLException e) {
-            System.out.println("Could not follow user (User might not exist or already followed).");
+            Timestamp sentAt = new Timestamp(System.currentTimeMillis());
+            try {
+                int messageId = SHARDS.allocateId("direct_messages", "message_id");
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        messageId = deliver(messageId, senderId, receiverId, content, sentAt);
+                        break;
+                    } catch (SQLException e) {
+                        if (attempt >= MAX_TX_ATTEMPTS || !SqlUtil.isRetryable(e)) throw e;
+                    }
+                }
+                DBConnection.markWrite(senderId);
+                DBConnection.markWrite(receiverId);
+                NOTIFICATIONS.publish(new NotificationDispatcher.Notification(NotificationDispatcher.MESSAGE,
+                        messageId, receiverId, senderId, null, content, sentAt));
+                System.out.println("DM Sent!");
+                return true;
+            } catch (SQLException e) {
+                System.out.println("Failed to send DM.");
+                return false;
+            }
         }
     }
 
-    public void sendDM(int senderId, String receiverUsername, String content) {
-        String sql = "INSERT INTO direct_messages (sender_id, receiver_id, content) " +
-                "VALUES (?, (SELECT user_id FROM users WHERE username = ?), ?)";
+    /**
+     * One attempt at writing the message and both conversation summaries. When
+     * the two users live on different shards each shard gets its own copy of the
+     * message, written and committed lower shard first, so two senders never
+     * wait on each other's shards in opposite order. Anything before the first
+     * commit is rolled back and rethrown; a failure after it is repaired by
+     * redelivering to the other shard, since the message already counts as sent.
+     */
+    private static int deliver(int messageId, int senderId, int receiverId, String content, Timestamp sentAt)
+            throws SQLException {
+        SHARDS.checkWritable(senderId);
+        SHARDS.checkWritable(receiverId);
+        int senderShard = SHARDS.shardOf(senderId);
+        int receiverShard = SHARDS.shardOf(receiverId);
+        if (senderShard == receiverShard) return deliverLocal(senderShard, messageId, senderId, receiverId, content, sentAt);
+
+        int firstShard = Math.min(senderShard, receiverShard);
+        int secondShard = Math.max(senderShard, receiverShard);
+        int firstOwner = firstShard == senderShard ? senderId : receiverId;
+        int secondOwner = firstShard == senderShard ? receiverId : senderId;
+        Connection first = null;
+        Connection second = null;
+        boolean firstCommitted = false;
+        try {
+            first = SHARDS.connection(firstShard);
+            first.setAutoCommit(false);
+            writeMailbox(first, firstOwner, messageId, senderId, receiverId, content, sentAt);
+            second = SHARDS.connection(secondShard);
+            second.setAutoCommit(false);
+            writeMailbox(second, secondOwner, messageId, senderId, receiverId, content, sentAt);
+            first.commit();
+            firstCommitted = true;
+            second.commit();
+            return messageId;
+        } catch (SQLException e) {
+            try {
+                if (second != null) second.rollback();
+                if (first != null && !firstCommitted) first.rollback();
+            } catch (SQLException ex) {
+            }
+            if (!firstCommitted) throw e;
+            repairMailbox(secondShard, secondOwner, messageId, senderId, receiverId, content, sentAt);
+            return messageId;
+        } finally {
+            try {
+                if (first != null) first.close();
+                if (second != null) second.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
 
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    private static int deliverLocal(int shard, int messageId, int senderId, int receiverId, String content,
+                                    Timestamp sentAt) throws SQLException {
+        Connection conn = null;
+        try {
+            conn = SHARDS.connection(shard);
+            conn.setAutoCommit(false);
+            messageId = insertMessage(conn, messageId, senderId, receiverId, content, sentAt);
+            // Both sides' summaries move to the new message; only the receiver's unread count grows.
+            // Rows go in user id order, so two users messaging each other lock them in the same order.
+            int low = Math.min(senderId, receiverId);
+            int high = Math.max(senderId, receiverId);
+            PreparedStatement conv = conn.prepareStatement(UPSERT_CONVERSATIONS_SQL);
+            conv.setInt(1, low);
+            conv.setInt(2, high);
+            conv.setInt(3, messageId);
+            conv.setInt(4, low == receiverId ? 1 : 0);
+            conv.setInt(5, high);
+            conv.setInt(6, low);
+            conv.setInt(7, messageId);
+            conv.setInt(8, high == receiverId ? 1 : 0);
+            conv.executeUpdate();
+            conn.commit();
+            return messageId;
+        } catch (SQLException e) {
+            try {
+                if (conn != null) conn.rollback();
+            } catch (SQLException ex) {
+            }
+            throw e;
+        } finally {
+            try {
+                if (conn != null) conn.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
 
-            pstmt.setInt(1, senderId);
-            pstmt.setString(2, receiverUsername);
-            pstmt.setString(3, content);
-            pstmt.executeUpdate();
-            System.out.println("DM Sent!");
+    // The owner's copy of the message and their conversation summary; unread only grows for the receiver.
+    private static void writeMailbox(Connection conn, int ownerId, int messageId, int senderId, int receiverId,
+                                     String content, Timestamp sentAt) throws SQLException {
+        insertMessage(conn, messageId, senderId, receiverId, content, sentAt);
+        int peerId = ownerId == senderId ? receiverId : senderId;
+        upsertConversation(conn, ownerId, peerId, messageId, ownerId == receiverId ? 1 : 0);
+    }
 
-        } catch (SQLException e) {
-            System.out.println("Failed to send DM.");
+    // Redelivers one side after the other side committed. A duplicate key means the earlier commit did land.
+    private static void repairMailbox(int shard, int ownerId, int messageId, int senderId, int receiverId,
+                                      String content, Timestamp sentAt) {
+        for (int attempt = 1; attempt <= MAX_TX_ATTEMPTS; attempt++) {
+            Connection conn = null;
+            try {
+                conn = SHARDS.connection(shard);
+                conn.setAutoCommit(false);
+                writeMailbox(conn, ownerId, messageId, senderId, receiverId, content, sentAt);
+                conn.commit();
+                return;
+            } catch (SQLException e) {
+                try {
+                    if (conn != null) conn.rollback();
+                } catch (SQLException ex) {
+                }
+                if (SqlUtil.isDuplicateKey(e)) return;
+                if (attempt == MAX_TX_ATTEMPTS) {
+                    System.err.println("[DM] Message " + messageId + " is missing from user " + ownerId
+                            + "'s mailbox on shard " + shard + ": " + e.getMessage());
+                }
+            } finally {
+                try {
+                    if (conn != null) conn.close();
+                } catch (SQLException e) {
+                }
+            }
         }
     }
 
+    // Returns the message id, taken from AUTO_INCREMENT when {@code messageId} is 0.
+    private static int insertMessage(Connection conn, int messageId, int senderId, int receiverId, String content,
+                                     Timestamp sentAt) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement(INSERT_DM_SQL, Statement.RETURN_GENERATED_KEYS);
+        ShardRouter.bindId(pstmt, 1, messageId);
+        pstmt.setInt(2, senderId);
+        pstmt.setInt(3, receiverId);
+        pstmt.setString(4, content);
+        pstmt.setTimestamp(5, sentAt);
+        pstmt.executeUpdate();
+        if (messageId != 0) return messageId;
+        ResultSet keys = pstmt.getGeneratedKeys();
+        return keys.next() ? keys.getInt(1) : 0;
+    }
+
+    private static void upsertConversation(Connection conn, int userId, int peerId, int messageId, int unread) throws SQLException {
+        PreparedStatement conv = conn.prepareStatement(UPSERT_CONVERSATION_SQL);
+        conv.setInt(1, userId);
+        conv.setInt(2, peerId);
+        conv.setInt(3, messageId);
+        conv.setInt(4, unread);
+        conv.executeUpdate();
+    }
+
     public void toggleLikePost(int userId, int postId) {
-        String checkSql = "SELECT 1 FROM post_likes WHERE user_id = ? AND post_id = ?";
-        String insertSql = "INSERT INTO post_likes (user_id, post_id) VALUES (?, ?)";
-        String deleteSql = "DELETE FROM post_likes WHERE user_id = ? AND post_id = ?";
-
-        try (Connection conn = DBConnection.getConnection()) {
-            PreparedStatement checkStmt = conn.prepareStatement(checkSql);
-            checkStmt.setInt(1, userId);
-            checkStmt.setInt(2, postId);
-            ResultSet rs = checkStmt.executeQuery();
-
-            if (rs.next()) {
-                PreparedStatement delStmt = conn.prepareStatement(deleteSql);
-                delStmt.setInt(1, userId);
-                delStmt.setInt(2, postId);
-                delStmt.executeUpdate();
-                System.out.println("Unliked post.");
-            } else {
-                PreparedStatement inStmt = conn.prepareStatement(insertSql);
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.toggleLikePost")) {
+            Connection conn = null;
+            try {
+                // Likes and their counters live with the post, on its author's shard.
+                int shard = PostOwners.shardForWrite(postId);
+                if (shard < 0) throw new SQLException("No post " + postId);
+                conn = SHARDS.connection(shard);
+                conn.setAutoCommit(false);
+
+                PreparedStatement inStmt = conn.prepareStatement(INSERT_LIKE_SQL);
                 inStmt.setInt(1, userId);
                 inStmt.setInt(2, postId);
-                inStmt.executeUpdate();
-                System.out.println("Liked post!");
+                boolean liked = inStmt.executeUpdate() == 1;
+                // Only a row actually inserted or deleted moves the counter; a concurrent toggle
+                // may already have removed the like we are undoing.
+                boolean changed = liked;
+
+                if (!liked) {
+                    PreparedStatement delStmt = conn.prepareStatement(DELETE_LIKE_SQL);
+                    delStmt.setInt(1, userId);
+                    delStmt.setInt(2, postId);
+                    changed = delStmt.executeUpdate() == 1;
+                }
+                if (changed) LikeCounter.apply(conn, postId, liked ? 1 : -1);
+
+                conn.commit();
+                if (!changed) return;
+                DBConnection.markWrite(userId);
+                TrendingEngine.getInstance().recordLike(postId, liked);
+                System.out.println(liked ? "Liked post!" : "Unliked post.");
+            } catch (SQLException e) {
+                try {
+                    if (conn != null) conn.rollback();
+                } catch (SQLException ex) {
+                }
+                e.printStackTrace();
+            } finally {
+                try {
+                    if (conn != null) conn.close();
+                } catch (SQLException e) {
+                }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
     public void addComment(int userId, int postId, String content, Integer parentId) {
-        String sql = "INSERT INTO comments (user_id, post_id, content, parent_comment_id) VALUES (?, ?, ?, ?)";
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, userId);
-            pstmt.setInt(2, postId);
-            pstmt.setString(3, content);
-            if (parentId == 0) pstmt.setNull(4, Types.INTEGER); // Top level
-            else pstmt.setInt(4, parentId);
-
-            pstmt.executeUpdate();
-            System.out.println("Comment added.");
-
-        } catch (SQLException e) {
-            e.printStackTrace();
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.addComment")) {
+            String sql = "INSERT INTO comments (comment_id, user_id, post_id, content, parent_comment_id) VALUES (?, ?, ?, ?, ?)";
+            int parent = parentId == null ? 0 : parentId;
+            try {
+                int shard = PostOwners.shardForWrite(postId);
+                if (shard < 0) throw new SQLException("No post " + postId);
+                int commentId = SHARDS.allocateId("comments", "comment_id");
+                try (Connection conn = SHARDS.connection(shard);
+                     PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+
+                    ShardRouter.bindId(pstmt, 1, commentId);
+                    pstmt.setInt(2, userId);
+                    pstmt.setInt(3, postId);
+                    pstmt.setString(4, content);
+                    if (parent == 0) pstmt.setNull(5, Types.INTEGER); // Top level
+                    else pstmt.setInt(5, parent);
+
+                    pstmt.executeUpdate();
+                    DBConnection.markWrite(userId);
+                    if (commentId == 0) {
+                        ResultSet keys = pstmt.getGeneratedKeys();
+                        if (keys.next()) commentId = keys.getInt(1);
+                    }
+                    if (commentId != 0) COMMENT_TREES.onCommentAdded(postId, commentId, parent, userId, content);
+                    System.out.println("Comment added.");
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
         }
     }
 
     public void viewComments(int postId) {
-        String sql = "SELECT c.comment_id, c.parent_comment_id, u.username, c.content " +
-                "FROM comments c JOIN users u ON c.user_id = u.user_id " +
-                "WHERE c.post_id = ? ORDER BY c.created_at ASC";
-
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, postId);
-            ResultSet rs = pstmt.executeQuery();
-
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.viewComments")) {
+            CommentPage page = getCommentPage(postId, 0, COMMENT_PAGE_SIZE);
             System.out.println("\n--- Comments ---");
-            while (rs.next()) {
-                int id = rs.getInt("comment_id");
-                int parentId = rs.getInt("parent_comment_id");
-                String user = rs.getString("username");
-                String text = rs.getString("content");
+            for (CommentNode node : page.comments) printComment(node, 0);
+            if (page.hasMore) System.out.println("(more comments after ID " + page.nextCursor() + ")");
+        }
+    }
 
-                if (parentId == 0) {
-                    System.out.printf("[%d] @%s: %s\n", id, user, text);
-                } else {
-                    System.out.printf("    L__ [%d] Reply to [%d] @%s: %s\n", id, parentId, user, text);
-                }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private void printComment(CommentNode node, int depth) {
+        String indent = "    ".repeat(depth);
+        if (depth == 0) {
+            System.out.printf("[%d] @%s: %s\n", node.commentId, node.username, node.content);
+        } else {
+            System.out.printf("%sL__ [%d] Reply to [%d] @%s: %s\n", indent, node.commentId, node.parentId, node.username, node.content);
+        }
+        for (CommentNode child : node.replies) printComment(child, depth + 1);
+        if (node.hasMoreReplies) {
+            System.out.printf("%s    ... %d more replies\n", indent, node.replyCount - node.replies.size());
         }
     }
 
     public List<String> getFollowers(int userId) {
-        List<String> list = new ArrayList<>();
-        String sql = "SELECT u.username FROM follows f " +
-                "JOIN users u ON f.follower_id = u.user_id " +
-                "WHERE f.following_id = ?";
-
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setInt(1, userId);
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                list.add(rs.getString("username"));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.getFollowers")) {
+            String sql = "SELECT follower_id FROM follows WHERE following_id = ?";
+            return toUsernames(FOLLOWS.ready() ? FOLLOWS.followers(userId) : queryIds(sql, userId));
         }
-        return list;
     }
 
     public List<String> getFollowing(int userId) {
-        List<String> list = new ArrayList<>();
-        String sql = "SELECT u.username FROM follows f " +
-                "JOIN users u ON f.following_id = u.user_id " +
-                "WHERE f.follower_id = ?";
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.getFollowing")) {
+            String sql = "SELECT following_id FROM follows WHERE follower_id = ?";
+            return toUsernames(FOLLOWS.ready() ? FOLLOWS.following(userId) : queryIds(sql, userId));
+        }
+    }
+
+    /** Accounts followed by people the user follows, most shared followers first. */
+    public List<FollowRecommender.Suggestion> getWhoToFollow(int userId, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.getWhoToFollow")) {
+            return FollowRecommender.getInstance().recommend(userId, limit);
+        }
+    }
 
+    // SQL fallback for when the in-memory follow graph could not be loaded.
+    private int[] queryIds(String sql, int userId) {
+        int[] ids = new int[16];
+        int n = 0;
         try (Connection conn = DBConnection.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, userId);
             ResultSet rs = pstmt.executeQuery();
             while (rs.next()) {
-                list.add(rs.getString("username"));
+                if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+                ids[n++] = rs.getInt(1);
             }
         } catch (SQLException e) {
             e.printStackTrace();
+            return new int[0];
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    // Maps ids to names through the shared cache.
+    private List<String> toUsernames(int[] ids) {
+        List<String> list = new ArrayList<>();
+        Map<Integer, String> names = UserIdCache.resolveNames(ids);
+        for (int id : ids) {
+            String name = names.get(id);
+            if (name != null) list.add(name);
         }
         return list;
     }
 
     public static class DirectMessage {
+        public int messageId;
+        public int senderId;
         public String sender;
         public String content;
         public String date;
@@ -170,63 +457,197 @@ public class InteractionDAO {
             this.content = content;
             this.date = date;
         }
+
+        public DirectMessage(int messageId, int senderId, String content, String date) {
+            this(null, content, date);
+            this.messageId = messageId;
+            this.senderId = senderId;
+        }
     }
 
-    public List<DirectMessage> getInbox(int userId) {
-        List<DirectMessage> msgs = new ArrayList<>();
-        String sql = "SELECT u.username, m.content, m.sent_at " +
-                "FROM direct_messages m " +
-                "JOIN users u ON m.sender_id = u.user_id " +
-                "WHERE m.receiver_id = ? " +
-                "ORDER BY m.sent_at DESC";
+    public static class Conversation {
+        public int peerId;
+        public String peer;
+        public int unreadCount;
+        public DirectMessage lastMessage;
 
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        public Conversation(int peerId, int unreadCount, DirectMessage lastMessage) {
+            this.peerId = peerId;
+            this.unreadCount = unreadCount;
+            this.lastMessage = lastMessage;
+        }
+    }
 
-            pstmt.setInt(1, userId);
-            ResultSet rs = pstmt.executeQuery();
+    public static class ConversationPage {
+        public final List<Conversation> conversations;
+        public final int nextBeforeMessageId;
 
-            while (rs.next()) {
-                msgs.add(new DirectMessage(
-                        rs.getString("username"),
-                        rs.getString("content"),
-                        rs.getTimestamp("sent_at").toString()
-                ));
+        public ConversationPage(List<Conversation> conversations, int nextBeforeMessageId) {
+            this.conversations = conversations;
+            this.nextBeforeMessageId = nextBeforeMessageId;
+        }
+
+        public boolean hasMore() {
+            return nextBeforeMessageId > 0;
+        }
+    }
+
+    public static class MessagePage {
+        /** Newest first. */
+        public final List<DirectMessage> messages;
+        public final int nextBeforeMessageId;
+
+        public MessagePage(List<DirectMessage> messages, int nextBeforeMessageId) {
+            this.messages = messages;
+            this.nextBeforeMessageId = nextBeforeMessageId;
+        }
+
+        public boolean hasMore() {
+            return nextBeforeMessageId > 0;
+        }
+    }
+
+    /** Latest message of each of the user's most recent conversations; one bounded page. */
+    public List<DirectMessage> getInbox(int userId) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.getInbox")) {
+            List<DirectMessage> msgs = new ArrayList<>();
+            for (Conversation c : getConversations(userId, Integer.MAX_VALUE, DM_PAGE_SIZE).conversations) {
+                msgs.add(c.lastMessage);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return msgs;
         }
-        return msgs;
     }
 
-    public List<String> getCommentsList(int postId) {
-        List<String> comments = new ArrayList<>();
-        String sql = "SELECT c.comment_id, c.parent_comment_id, u.username, c.content " +
-                "FROM comments c JOIN users u ON c.user_id = u.user_id " +
-                "WHERE c.post_id = ? ORDER BY c.created_at ASC";
+    /**
+     * Conversations ordered by their latest message, strictly older than
+     * {@code beforeMessageId} ({@code Integer.MAX_VALUE} for the first page).
+     * Reads at most {@code limit + 1} summary rows however long the history is.
+     */
+    public ConversationPage getConversations(int userId, int beforeMessageId, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.getConversations")) {
+            List<Conversation> conversations = new ArrayList<>();
+            int next = 0;
+            try (Connection conn = SHARDS.readConnection(SHARDS.shardOf(userId), userId);
+                 PreparedStatement pstmt = conn.prepareStatement(CONVERSATIONS_SQL)) {
+                pstmt.setInt(1, userId);
+                pstmt.setInt(2, beforeMessageId);
+                pstmt.setInt(3, limit + 1);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    if (conversations.size() == limit) {
+                        next = conversations.get(limit - 1).lastMessage.messageId;
+                        break;
+                    }
+                    DirectMessage last = new DirectMessage(rs.getInt("message_id"), rs.getInt("sender_id"),
+                            rs.getString("content"), rs.getTimestamp("sent_at").toString());
+                    conversations.add(new Conversation(rs.getInt("peer_id"), rs.getInt("unread_count"), last));
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
 
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            int[] ids = new int[conversations.size() * 2];
+            for (int i = 0; i < conversations.size(); i++) {
+                ids[2 * i] = conversations.get(i).peerId;
+                ids[2 * i + 1] = conversations.get(i).lastMessage.senderId;
+            }
+            Map<Integer, String> names = UserIdCache.resolveNames(ids);
+            for (Conversation c : conversations) {
+                c.peer = names.get(c.peerId);
+                c.lastMessage.sender = names.get(c.lastMessage.senderId);
+            }
+            return new ConversationPage(conversations, next);
+        }
+    }
 
-            pstmt.setInt(1, postId);
-            ResultSet rs = pstmt.executeQuery();
+    /** Messages between the two users older than {@code beforeMessageId}, newest first. */
+    public MessagePage getMessages(int userId, int peerId, int beforeMessageId, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.getMessages")) {
+            List<DirectMessage> messages = new ArrayList<>();
+            int next = 0;
+            try (Connection conn = SHARDS.readConnection(SHARDS.shardOf(userId), userId);
+                 PreparedStatement pstmt = conn.prepareStatement(MESSAGES_SQL)) {
+                pstmt.setInt(1, userId);
+                pstmt.setInt(2, peerId);
+                pstmt.setInt(3, beforeMessageId);
+                pstmt.setInt(4, limit + 1);
+                pstmt.setInt(5, peerId);
+                pstmt.setInt(6, userId);
+                pstmt.setInt(7, beforeMessageId);
+                pstmt.setInt(8, limit + 1);
+                pstmt.setInt(9, limit + 1);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    if (messages.size() == limit) {
+                        next = messages.get(limit - 1).messageId;
+                        break;
+                    }
+                    messages.add(new DirectMessage(rs.getInt("message_id"), rs.getInt("sender_id"),
+                            rs.getString("content"), rs.getTimestamp("sent_at").toString()));
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
 
-            while (rs.next()) {
-                int id = rs.getInt("comment_id");
-                int parentId = rs.getInt("parent_comment_id");
-                String user = rs.getString("username");
-                String text = rs.getString("content");
+            Map<Integer, String> names = UserIdCache.resolveNames(new int[]{userId, peerId});
+            for (DirectMessage m : messages) m.sender = names.get(m.senderId);
+            return new MessagePage(messages, next);
+        }
+    }
+
+    /** Clears the unread counter of one conversation. */
+    public void markConversationRead(int userId, int peerId) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.markConversationRead")) {
+            try (Connection conn = SHARDS.forUser(userId);
+                 PreparedStatement pstmt = conn.prepareStatement(MARK_READ_SQL)) {
+                pstmt.setInt(1, userId);
+                pstmt.setInt(2, peerId);
+                pstmt.executeUpdate();
+                DBConnection.markWrite(userId);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                if (parentId == 0) {
+    public List<String> getCommentsList(int postId) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.getCommentsList")) {
+            List<String> comments = new ArrayList<>();
+            String sql = "SELECT c.comment_id, c.parent_comment_id, c.user_id, c.content " +
+                    "FROM comments c WHERE c.post_id = ? ORDER BY c.created_at ASC";
+
+            List<int[]> rows = new ArrayList<>();
+            List<String> texts = new ArrayList<>();
+            try {
+                int shard = PostOwners.shardOf(postId);
+                if (shard < 0) return comments;
+                try (Connection conn = SHARDS.connection(shard);
+                     PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+                    pstmt.setInt(1, postId);
+                    ResultSet rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        rows.add(new int[]{rs.getInt("comment_id"), rs.getInt("parent_comment_id"), rs.getInt("user_id")});
+                        texts.add(rs.getString("content"));
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+
+            Map<Integer, String> names = UserIdCache.resolveNames(rows.stream().mapToInt(r -> r[2]).toArray());
+            for (int i = 0; i < rows.size(); i++) {
+                int id = rows.get(i)[0];
+                String user = names.get(rows.get(i)[2]);
+                String text = texts.get(i);
+                if (rows.get(i)[1] == 0) {
                     comments.add(String.format("<html><b>@%s</b> [ID:%d]: %s</html>", user, id, text));
                 } else {
                     comments.add(String.format("<html>&nbsp;&nbsp;&nbsp;&nbsp;&#8627; <b>@%s</b> [ID:%d]: %s</html>", user, id, text));
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return comments;
         }
-        return comments;
     }
 
     public static class CommentNode {
@@ -235,6 +656,8 @@ public class InteractionDAO {
         public String username;
         public String content;
         public List<CommentNode> replies;
+        public int replyCount;
+        public boolean hasMoreReplies;
 
         public CommentNode(int id, int pid, String user, String text) {
             this.commentId = id;
@@ -243,46 +666,150 @@ public class InteractionDAO {
             this.content = text;
             this.replies = new ArrayList<>();
         }
+
+        /** Cursor for {@link InteractionDAO#getReplies}: the last reply already shown. */
+        public int lastReplyId() {
+            return replies.isEmpty() ? 0 : replies.get(replies.size() - 1).commentId;
+        }
     }
 
-    public List<CommentNode> getCommentTree(int postId) {
-        List<CommentNode> rootNodes = new ArrayList<>();
-        Map<Integer, CommentNode> lookup = new HashMap<>();
+    public static class CommentPage {
+        public final List<CommentNode> comments;
+        public final boolean hasMore;
 
-        String sql = "SELECT c.comment_id, c.parent_comment_id, u.username, c.content " +
-                "FROM comments c JOIN users u ON c.user_id = u.user_id " +
-                "WHERE c.post_id = ? ORDER BY c.created_at ASC";
+        public CommentPage(List<CommentNode> comments, boolean hasMore) {
+            this.comments = comments;
+            this.hasMore = hasMore;
+        }
 
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        public int nextCursor() {
+            return comments.isEmpty() ? 0 : comments.get(comments.size() - 1).commentId;
+        }
+    }
 
-            pstmt.setInt(1, postId);
-            ResultSet rs = pstmt.executeQuery();
+    /** First page of top-level comments, each expanded to a bounded depth and fan-out. */
+    public List<CommentNode> getCommentTree(int postId) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.getCommentTree")) {
+            return getCommentPage(postId, 0, COMMENT_PAGE_SIZE).comments;
+        }
+    }
 
-            while (rs.next()) {
-                int id = rs.getInt("comment_id");
-                int pid = rs.getInt("parent_comment_id");
-                String user = rs.getString("username");
-                String content = rs.getString("content");
+    /** Top-level comments after {@code afterCommentId} (0 for the first page), oldest first. */
+    public CommentPage getCommentPage(int postId, int afterCommentId, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.getCommentPage")) {
+            return expand(postId, CommentTreeCache.ROOT, afterCommentId, limit, COMMENT_DEPTH);
+        }
+    }
 
-                CommentNode node = new CommentNode(id, pid, user, content);
-                lookup.put(id, node);
-            }
+    /** Replies to {@code parentId} after {@code afterCommentId}, for "show more replies". */
+    public CommentPage getReplies(int postId, int parentId, int afterCommentId, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("InteractionDAO.getReplies")) {
+            return expand(postId, parentId, afterCommentId, limit, COMMENT_DEPTH - 1);
+        }
+    }
 
-            for (CommentNode node : lookup.values()) {
-                if (node.parentId == 0) {
-                    rootNodes.add(node);
-                } else {
-                    CommentNode parent = lookup.get(node.parentId);
-                    if (parent != null) {
-                        parent.replies.add(node);
-                    } else {
-                        rootNodes.add(node);
-                    }
+    private CommentPage expand(int postId, int parentId, int afterCommentId, int limit, int depth) {
+        List<CommentNode> top = new ArrayList<>();
+        List<CommentNode> all = new ArrayList<>();
+        List<Integer> authors = new ArrayList<>();
+        boolean hasMore = false;
+        try {
+            CommentTreeCache.PostComments pc = COMMENT_TREES.forPost(postId);
+            int[] ids = COMMENT_TREES.page(pc, parentId, afterCommentId, limit);
+            hasMore = ids[ids.length - 1] == 1;
+            toNodes(pc, ids, top, all, authors);
+
+            List<CommentNode> frontier = top;
+            for (int level = 1; level < depth && !frontier.isEmpty(); level++) {
+                List<Integer> parents = new ArrayList<>();
+                for (CommentNode node : frontier) if (node.replyCount > 0) parents.add(node.commentId);
+                COMMENT_TREES.prefetchFirstReplies(pc, parents, COMMENT_FAN_OUT);
+
+                List<CommentNode> next = new ArrayList<>();
+                for (CommentNode node : frontier) {
+                    if (node.replyCount == 0) continue;
+                    int[] childIds = COMMENT_TREES.page(pc, node.commentId, 0, COMMENT_FAN_OUT);
+                    node.hasMoreReplies = childIds[childIds.length - 1] == 1;
+                    toNodes(pc, childIds, node.replies, all, authors);
+                    next.addAll(node.replies);
                 }
+                frontier = next;
             }
+            // Nodes on the last expanded level show their replies only on request.
+            for (CommentNode node : frontier) node.hasMoreReplies = node.replyCount > 0;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        Map<Integer, String> names = UserIdCache.resolveNames(authors.stream().mapToInt(Integer::intValue).toArray());
+        for (int i = 0; i < all.size(); i++) all.get(i).username = names.get(authors.get(i));
+        return new CommentPage(top, hasMore);
+    }
+
+    private static void toNodes(CommentTreeCache.PostComments pc, int[] ids, List<CommentNode> into,
+                                List<CommentNode> all, List<Integer> authors) {
+        for (int i = 0; i < ids.length - 1; i++) {
+            CommentTreeCache.Record r = COMMENT_TREES.record(pc, ids[i]);
+            if (r == null) continue;
+            CommentNode node = new CommentNode(r.id, r.parentId, null, r.content);
+            node.replyCount = r.replyCount;
+            into.add(node);
+            all.add(node);
+            authors.add(r.userId);
+        }
+    }
+
+    // Async variants for UI callers; each runs the blocking method above on DBExecutor.
+
+    public CompletableFuture<Boolean> followUserAsync(int followerId, String usernameToFollow) {
+        return DBExecutor.supply(() -> followUser(followerId, usernameToFollow));
+    }
+
+    public CompletableFuture<Boolean> sendDMAsync(int senderId, String receiverUsername, String content) {
+        return DBExecutor.supply(() -> sendDM(senderId, receiverUsername, content));
+    }
+
+    public CompletableFuture<Void> toggleLikePostAsync(int userId, int postId) {
+        return DBExecutor.run(() -> toggleLikePost(userId, postId));
+    }
+
+    public CompletableFuture<Void> addCommentAsync(int userId, int postId, String content, Integer parentId) {
+        return DBExecutor.run(() -> addComment(userId, postId, content, parentId));
+    }
+
+    public CompletableFuture<CommentPage> getCommentPageAsync(int postId, int afterCommentId, int limit) {
+        return DBExecutor.supply(() -> getCommentPage(postId, afterCommentId, limit));
+    }
+
+    public CompletableFuture<CommentPage> getRepliesAsync(int postId, int parentId, int afterCommentId, int limit) {
+        return DBExecutor.supply(() -> getReplies(postId, parentId, afterCommentId, limit));
+    }
+
+    public CompletableFuture<List<String>> getFollowersAsync(int userId) {
+        return DBExecutor.supply(() -> getFollowers(userId));
+    }
+
+    public CompletableFuture<List<String>> getFollowingAsync(int userId) {
+        return DBExecutor.supply(() -> getFollowing(userId));
+    }
+
+    public CompletableFuture<List<FollowRecommender.Suggestion>> getWhoToFollowAsync(int userId, int limit) {
+        return DBExecutor.supply(() -> getWhoToFollow(userId, limit));
+    }
+
+    public CompletableFuture<List<DirectMessage>> getInboxAsync(int userId) {
+        return DBExecutor.supply(() -> getInbox(userId));
+    }
+
+    public CompletableFuture<ConversationPage> getConversationsAsync(int userId, int beforeMessageId, int limit) {
+        return DBExecutor.supply(() -> getConversations(userId, beforeMessageId, limit));
+    }
+
+    public CompletableFuture<MessagePage> getMessagesAsync(int userId, int peerId, int beforeMessageId, int limit) {
+        return DBExecutor.supply(() -> getMessages(userId, peerId, beforeMessageId, limit));
+    }
 
-        } catch (SQLException e) { e.printStackTrace(); }
-        return rootNodes;
+    public CompletableFuture<Void> markConversationReadAsync(int userId, int peerId) {
+        return DBExecutor.run(() -> markConversationRead(userId, peerId));
     }
-}
\ No newline at end of file
+}
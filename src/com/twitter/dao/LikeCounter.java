@@ -0,0 +1,151 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+import com.twitter.util.ShardRouter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Denormalized like counts in {@code post_like_counts}, split across
+ * {@code SLOTS} rows per post so concurrent likers of a viral post update
+ * different rows. Reads sum the slots; a periodic job repairs drift against
+ * {@code post_likes}.
+ */
+public class LikeCounter {
+
+    static final int SLOTS = Integer.getInteger("twitter.likes.counterSlots", 8);
+    private static final int RECONCILE_BATCH = 1000;
+
+    /** Correlated expression for a post's like count; the outer query must alias posts as {@code p}. */
+    static final String LIKE_COUNT_EXPR =
+            "(SELECT COALESCE(SUM(like_count), 0) FROM post_like_counts WHERE post_id = p.post_id)";
+
+    private static final String APPLY_SQL = "INSERT INTO post_like_counts (post_id, slot, like_count) VALUES (?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE like_count = like_count + VALUES(like_count)";
+    private static final String READ_SQL = "SELECT COALESCE(SUM(like_count), 0) FROM post_like_counts WHERE post_id = ?";
+
+    private static final String DRIFT_SQL = "SELECT p.post_id, " +
+            "(SELECT COUNT(*) FROM post_likes pl WHERE pl.post_id = p.post_id) AS actual, " +
+            "(SELECT COALESCE(SUM(like_count), 0) FROM post_like_counts c WHERE c.post_id = p.post_id) AS counted " +
+            "FROM posts p WHERE p.post_id > ? ORDER BY p.post_id LIMIT ?";
+    private static final String LOCK_SLOTS_SQL = "SELECT slot FROM post_like_counts WHERE post_id = ? FOR UPDATE";
+    private static final String RECOUNT_SQL = "SELECT COUNT(*) FROM post_likes WHERE post_id = ?";
+    private static final String CLEAR_SLOTS_SQL = "DELETE FROM post_like_counts WHERE post_id = ?";
+
+    private static final ScheduledExecutorService RECONCILER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "like-counter-reconciler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        long period = Long.getLong("twitter.likes.reconcileIntervalMs", TimeUnit.MINUTES.toMillis(30));
+        RECONCILER.scheduleWithFixedDelay(LikeCounter::reconcile, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /** Adds {@code delta} to a random slot of the post's counter. Runs inside the caller's transaction. */
+    static void apply(Connection conn, int postId, int delta) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement(APPLY_SQL);
+        pstmt.setInt(1, postId);
+        pstmt.setInt(2, SLOTS <= 1 ? 0 : ThreadLocalRandom.current().nextInt(SLOTS));
+        pstmt.setInt(3, delta);
+        pstmt.executeUpdate();
+    }
+
+    public static int read(int postId) {
+        try {
+            int shard = PostOwners.shardOf(postId);
+            if (shard < 0) return 0;
+            try (Connection conn = DBConnection.getShards().connection(shard);
+                 PreparedStatement pstmt = conn.prepareStatement(READ_SQL)) {
+                pstmt.setInt(1, postId);
+                ResultSet rs = pstmt.executeQuery();
+                if (rs.next()) return rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    /**
+     * Walks all posts of every shard in id order and rewrites the counter of
+     * any post whose slots disagree with post_likes.
+     */
+    public static int reconcile() {
+        ShardRouter shards = DBConnection.getShards();
+        int repaired = 0;
+        for (int shard : shards.allShards()) repaired += reconcile(shards, shard);
+        if (repaired > 0) System.out.println("[LIKES] Repaired " + repaired + " like counters.");
+        return repaired;
+    }
+
+    private static int reconcile(ShardRouter shards, int shard) {
+        int repaired = 0;
+        int lastId = 0;
+        try {
+            while (true) {
+                List<Integer> drifted = new ArrayList<>();
+                int scanned = 0;
+                try (Connection conn = shards.connection(shard);
+                     PreparedStatement pstmt = conn.prepareStatement(DRIFT_SQL)) {
+                    pstmt.setInt(1, lastId);
+                    pstmt.setInt(2, RECONCILE_BATCH);
+                    ResultSet rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        scanned++;
+                        lastId = rs.getInt("post_id");
+                        if (rs.getInt("actual") != rs.getInt("counted")) drifted.add(lastId);
+                    }
+                }
+                for (int postId : drifted) {
+                    repair(shards, shard, postId);
+                    repaired++;
+                }
+                if (scanned < RECONCILE_BATCH) break;
+            }
+        } catch (SQLException e) {
+            System.err.println("[LIKES] Reconciliation of shard " + shard + " stopped: " + e.getMessage());
+        }
+        return repaired;
+    }
+
+    private static void repair(ShardRouter shards, int shard, int postId) throws SQLException {
+        Connection conn = null;
+        try {
+            conn = shards.connection(shard);
+            conn.setAutoCommit(false);
+
+            PreparedStatement lock = conn.prepareStatement(LOCK_SLOTS_SQL);
+            lock.setInt(1, postId);
+            lock.executeQuery();
+
+            int actual = 0;
+            PreparedStatement recount = conn.prepareStatement(RECOUNT_SQL);
+            recount.setInt(1, postId);
+            ResultSet rs = recount.executeQuery();
+            if (rs.next()) actual = rs.getInt(1);
+
+            PreparedStatement clear = conn.prepareStatement(CLEAR_SLOTS_SQL);
+            clear.setInt(1, postId);
+            clear.executeUpdate();
+            if (actual > 0) apply(conn, postId, actual);
+
+            conn.commit();
+        } catch (SQLException e) {
+            if (conn != null) conn.rollback();
+            throw e;
+        } finally {
+            if (conn != null) conn.close();
+        }
+    }
+}
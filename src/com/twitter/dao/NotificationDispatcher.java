@@ -0,0 +1,97 @@
+package com.twitter.dao;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process fan-out of mention and DM events to the sessions of their
+ * recipients. DAOs publish after their transaction commits; listeners run on
+ * a single dispatcher thread, so a slow subscriber never holds up the write
+ * path. Events published while a user has no session are not kept: sessions
+ * catch up from the database with {@link UserDAO#getNotificationSummary}.
+ */
+public class NotificationDispatcher {
+
+    public static final String MENTION = "mention";
+    public static final String MESSAGE = "message";
+
+    public static class Notification {
+        public final String type;
+        /** mention_id for mentions, message_id for messages; the catch-up cursors compare against these. */
+        public final int id;
+        public final int recipientId;
+        public final int actorId;
+        /** Filled in on the dispatcher thread when the publisher only knew the id. */
+        public String actor;
+        public final String text;
+        public final Timestamp createdAt;
+
+        public Notification(String type, int id, int recipientId, int actorId, String actor, String text, Timestamp createdAt) {
+            this.type = type;
+            this.id = id;
+            this.recipientId = recipientId;
+            this.actorId = actorId;
+            this.actor = actor;
+            this.text = text;
+            this.createdAt = createdAt;
+        }
+    }
+
+    public interface Listener {
+        void onNotification(Notification notification);
+    }
+
+    private static volatile NotificationDispatcher instance;
+
+    private final Map<Integer, List<Listener>> listeners = new ConcurrentHashMap<>();
+    private final ExecutorService delivery = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "notification-dispatcher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static NotificationDispatcher getInstance() {
+        NotificationDispatcher d = instance;
+        if (d == null) {
+            synchronized (NotificationDispatcher.class) {
+                d = instance;
+                if (d == null) {
+                    d = new NotificationDispatcher();
+                    instance = d;
+                }
+            }
+        }
+        return d;
+    }
+
+    /** Registers a listener for one user's events; run the returned task to unsubscribe. */
+    public Runnable subscribe(int userId, Listener listener) {
+        listeners.computeIfAbsent(userId, k -> new CopyOnWriteArrayList<>()).add(listener);
+        return () -> listeners.computeIfPresent(userId, (k, list) -> {
+            list.remove(listener);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    public void publish(Notification notification) {
+        if (notification.recipientId == notification.actorId) return;
+        if (!listeners.containsKey(notification.recipientId)) return;
+        delivery.execute(() -> {
+            List<Listener> targets = listeners.get(notification.recipientId);
+            if (targets == null) return;
+            if (notification.actor == null) notification.actor = UserIdCache.resolveName(notification.actorId);
+            for (Listener listener : targets) {
+                try {
+                    listener.onNotification(notification);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+}
@@ -1,23 +1,37 @@
 package com.twitter.dao;
 
 import com.twitter.util.DBConnection;
+import com.twitter.util.DBExecutor;
+import com.twitter.util.Metrics;
+import com.twitter.util.ShardRouter;
+import com.twitter.util.SqlUtil;
 
 import java.sql.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 
+@SuppressWarnings("try")
 public class PostDAO {
 
     public static class TimelinePost {
         public int postId;
+        public int authorId;
         public String username;
         public String content;
         public int viewCount;
+        /** Distinct viewers as of the last {@link UniqueViewers} flush. */
+        public int uniqueViewers;
         public int likeCount;
         public boolean isLikedByCurrentUser;
+        public Timestamp createdAt;
 
         public TimelinePost(int id, String user, String text, int views, int likes, boolean liked) {
             this.postId = id;
@@ -27,242 +41,655 @@ public class PostDAO {
             this.likeCount = likes;
             this.isLikedByCurrentUser = liked;
         }
+
+        public TimelinePost(int id, String user, String text, int views, int likes, boolean liked, Timestamp createdAt) {
+            this(id, user, text, views, likes, liked);
+            this.createdAt = createdAt;
+        }
     }
 
-    private static final Pattern MENTION_PATTERN = Pattern.compile("@(\\w+)");
+    /** Position in a timeline: the (created_at, post_id) of the last post already shown. */
+    public static class TimelineCursor {
+        public final Timestamp createdAt;
+        public final int postId;
+
+        public TimelineCursor(Timestamp createdAt, int postId) {
+            this.createdAt = createdAt;
+            this.postId = postId;
+        }
+    }
 
-    public void createPost(int userId, String content) {
-        String insertPostSql = "INSERT INTO posts (user_id, content) VALUES (?, ?)";
-        String insertMentionSql = "INSERT INTO mentions (mentioned_user_id, post_id) VALUES ((SELECT user_id FROM users WHERE username = ?), ?)";
+    public static class TimelinePage {
+        public List<TimelinePost> posts;
+        public TimelineCursor next;
 
-        Connection conn = null;
-        try {
-            conn = DBConnection.getConnection();
-            conn.setAutoCommit(false);
-
-            PreparedStatement postStmt = conn.prepareStatement(insertPostSql, Statement.RETURN_GENERATED_KEYS);
-            postStmt.setInt(1, userId);
-            postStmt.setString(2, content);
-            postStmt.executeUpdate();
-
-            ResultSet rs = postStmt.getGeneratedKeys();
-            int postId = 0;
-            if (rs.next()) postId = rs.getInt(1);
-
-            Matcher matcher = MENTION_PATTERN.matcher(content);
-            PreparedStatement mentionStmt = conn.prepareStatement(insertMentionSql);
-            while (matcher.find()) {
-                mentionStmt.setString(1, matcher.group(1));
-                mentionStmt.setInt(2, postId);
+        public TimelinePage(List<TimelinePost> posts, TimelineCursor next) {
+            this.posts = posts;
+            this.next = next;
+        }
+
+        public boolean hasMore() {
+            return next != null;
+        }
+    }
+
+    public static final int DEFAULT_PAGE_SIZE = 20;
+
+    private static final Comparator<TimelinePost> NEWEST_FIRST = (a, b) -> {
+        int c = b.createdAt.compareTo(a.createdAt);
+        return c != 0 ? c : Integer.compare(b.postId, a.postId);
+    };
+
+    private static final ViewCountBuffer VIEW_COUNTS = new ViewCountBuffer(
+            Integer.getInteger("twitter.views.stripes", 16),
+            Long.getLong("twitter.views.flushIntervalMs", 2000),
+            Long.getLong("twitter.views.maxUnflushed", 10000));
+
+    private static final UniqueViewers UNIQUE_VIEWERS = new UniqueViewers(
+            Long.getLong("twitter.views.uniqueFlushIntervalMs", 10000),
+            Integer.getInteger("twitter.views.maxPendingPosts", 5000),
+            Integer.getInteger("twitter.views.retentionDays", 30));
+
+    private static final TrendingEngine TRENDING = TrendingEngine.getInstance();
+    private static final NotificationDispatcher NOTIFICATIONS = NotificationDispatcher.getInstance();
+    private static final HashtagTrends HASHTAGS = HashtagTrends.getInstance();
+    private static final ShardRouter SHARDS = DBConnection.getShards();
+
+    private static final String INSERT_POST_SQL = "INSERT INTO posts (post_id, user_id, content, created_at) VALUES (?, ?, ?, ?)";
+    private static final String INSERT_MENTION_SQL = "INSERT INTO mentions (mention_id, mentioned_user_id, post_id) VALUES (?, ?, ?)";
+    private static final String INSERT_HASHTAG_SQL = "INSERT INTO post_hashtags (tag, post_id, created_at) VALUES (?, ?, ?)";
+    private static final String HASHTAG_POSTS_SQL =
+            "SELECT post_id FROM post_hashtags WHERE tag = ? AND post_id < ? ORDER BY post_id DESC LIMIT ?";
+    private static final String FOLLOWING_SQL = "SELECT following_id FROM follows WHERE follower_id = ?";
+    private static final String TRENDING_SQL = "SELECT post_id, score FROM trending_posts ORDER BY score DESC LIMIT ?";
+    // Keyed by padded celebrity count (-1 for the join form) and cursor; only a handful of shapes exist.
+    private static final Map<Integer, String> TIMELINE_SQL = new ConcurrentHashMap<>();
+    // Keyed by padded author count and cursor.
+    private static final Map<Integer, String> SHARD_TIMELINE_SQL = new ConcurrentHashMap<>();
+
+    private static String timelineSql(boolean afterCursor, int celebrities) {
+        int padded = celebrities <= 0 ? celebrities : SqlUtil.paddedSize(celebrities);
+        return TIMELINE_SQL.computeIfAbsent(padded * 2 + (afterCursor ? 1 : 0), k -> buildTimelineSql(afterCursor, padded));
+    }
+
+    private static String buildTimelineSql(boolean afterCursor, int celebrities) {
+        return "SELECT p.post_id, p.user_id, u.username, p.content, p.view_count, p.unique_view_count, p.created_at, " +
+                LikeCounter.LIKE_COUNT_EXPR + " as like_count, " +
+                "(SELECT COUNT(*) FROM post_likes WHERE post_id = p.post_id AND user_id = ?) as is_liked " +
+                "FROM (" + HomeTimelineStore.homeIdsSql(afterCursor, celebrities) + ") t " +
+                "JOIN posts p ON p.post_id = t.post_id " +
+                "JOIN users u ON p.user_id = u.user_id " +
+                "ORDER BY t.created_at DESC, t.post_id DESC LIMIT ?";
+    }
+
+    private static String shardTimelineSql(boolean afterCursor, int authors) {
+        int padded = SqlUtil.paddedSize(authors);
+        return SHARD_TIMELINE_SQL.computeIfAbsent(padded * 2 + (afterCursor ? 1 : 0), k ->
+                "SELECT p.post_id, p.user_id, p.content, p.view_count, p.unique_view_count, p.created_at, " +
+                LikeCounter.LIKE_COUNT_EXPR + " as like_count, " +
+                "(SELECT COUNT(*) FROM post_likes WHERE post_id = p.post_id AND user_id = ?) as is_liked " +
+                "FROM posts p WHERE p.user_id IN (" + SqlUtil.placeholders(padded) + ") " +
+                (afterCursor ? "AND (p.created_at < ? OR (p.created_at = ? AND p.post_id < ?)) " : "") +
+                "ORDER BY p.created_at DESC, p.post_id DESC LIMIT ?");
+    }
+
+    public static class PostResult {
+        public int postId;
+        public List<String> unknownMentions;
+
+        public PostResult(int postId, List<String> unknownMentions) {
+            this.postId = postId;
+            this.unknownMentions = unknownMentions;
+        }
+    }
+
+    public PostResult createPost(int userId, String content) {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.createPost")) {
+            ContentTokens tokens = ContentTokens.scan(content);
+            List<String> mentioned = tokens.mentions;
+            Map<String, Integer> mentionIds = UserIdCache.resolveIds(mentioned);
+
+            Connection conn = null;
+            try {
+                int resolved = 0;
+                for (String name : mentioned) if (mentionIds.get(name) != null) resolved++;
+                // Ids are taken before the transaction, one statement per table, so the id_blocks row is never locked inside it.
+                int postId = SHARDS.allocateId("posts", "post_id");
+                int firstMentionId = SHARDS.allocateIds("mentions", "mention_id", resolved);
+                conn = SHARDS.forUser(userId);
+                conn.setAutoCommit(false);
+
+                Timestamp createdAt = new Timestamp(System.currentTimeMillis());
+                PreparedStatement postStmt = conn.prepareStatement(INSERT_POST_SQL, Statement.RETURN_GENERATED_KEYS);
+                ShardRouter.bindId(postStmt, 1, postId);
+                postStmt.setInt(2, userId);
+                postStmt.setString(3, content);
+                postStmt.setTimestamp(4, createdAt);
+                postStmt.executeUpdate();
+
+                if (postId == 0) {
+                    ResultSet rs = postStmt.getGeneratedKeys();
+                    if (rs.next()) postId = rs.getInt(1);
+                }
+
+                List<int[]> delivered = new ArrayList<>();
+                List<String> unknown = insertMentions(conn, postId, firstMentionId, mentioned, mentionIds, delivered);
+                insertHashtags(conn, postId, tokens.hashtags, createdAt);
+                // Sharded timelines are pulled from the authors' shards (mergeShardTimelines), not fanned out.
+                if (!SHARDS.isSharded()) HomeTimelineStore.fanOut(conn, userId, postId, createdAt);
+
+                conn.commit();
+                PostOwners.put(postId, userId);
+                DBConnection.markWrite(userId);
+                PostSearchIndex.getInstance().add(postId, content);
+                if (!tokens.hashtags.isEmpty()) HASHTAGS.record(tokens.hashtags, createdAt.getTime());
+                for (int[] mention : delivered) {
+                    // The mentioned user is being told to look; make sure they will find it.
+                    DBConnection.markWrite(mention[0]);
+                    NOTIFICATIONS.publish(new NotificationDispatcher.Notification(NotificationDispatcher.MENTION,
+                            mention[1], mention[0], userId, null, content, createdAt));
+                }
+                return new PostResult(postId, unknown);
+            } catch (SQLException e) {
                 try {
-                    mentionStmt.executeUpdate();
+                    if (conn != null) conn.rollback();
                 } catch (SQLException ex) {
                 }
+                e.printStackTrace();
+                return null;
+            } finally {
+                try {
+                    if (conn != null) {
+                        conn.setAutoCommit(true);
+                        conn.close();
+                    }
+                } catch (SQLException e) {
+                }
             }
+        }
+    }
 
-            conn.commit();
-        } catch (SQLException e) {
-            try {
-                if (conn != null) conn.rollback();
-            } catch (SQLException ex) {
+    // Mentioned names are resolved through the shared id cache before the transaction; rows go out as one batch.
+    // Each inserted mention is added to {@code delivered} as {mentioned user id, mention_id}. Sharded, the mention_ids
+    // are the consecutive ids from {@code firstMentionId}; otherwise firstMentionId is 0 and AUTO_INCREMENT assigns them.
+    private List<String> insertMentions(Connection conn, int postId, int firstMentionId, List<String> names,
+                                        Map<String, Integer> resolved, List<int[]> delivered) throws SQLException {
+        List<String> unknown = new ArrayList<>();
+        if (names.isEmpty()) return unknown;
+
+        PreparedStatement mentionStmt = conn.prepareStatement(INSERT_MENTION_SQL, Statement.RETURN_GENERATED_KEYS);
+        int batched = 0;
+        for (String name : names) {
+            Integer mentionedId = resolved.get(name);
+            if (mentionedId == null) {
+                unknown.add(name);
+                continue;
             }
-            e.printStackTrace();
-        } finally {
-            try {
-                if (conn != null) conn.setAutoCommit(true);
-                conn.close();
-            } catch (SQLException e) {
+            int mentionId = firstMentionId == 0 ? 0 : firstMentionId + batched;
+            ShardRouter.bindId(mentionStmt, 1, mentionId);
+            mentionStmt.setInt(2, mentionedId);
+            mentionStmt.setInt(3, postId);
+            mentionStmt.addBatch();
+            delivered.add(new int[]{mentionedId, mentionId});
+            batched++;
+        }
+        if (batched > 0) {
+            mentionStmt.executeBatch();
+            if (!SHARDS.isSharded()) {
+                ResultSet keys = mentionStmt.getGeneratedKeys();
+                for (int i = 0; i < delivered.size() && keys.next(); i++) delivered.get(i)[1] = keys.getInt(1);
             }
         }
+        return unknown;
+    }
+
+    private void insertHashtags(Connection conn, int postId, List<String> tags, Timestamp createdAt) throws SQLException {
+        if (tags.isEmpty()) return;
+        PreparedStatement tagStmt = conn.prepareStatement(INSERT_HASHTAG_SQL);
+        for (String tag : tags) {
+            tagStmt.setString(1, tag);
+            tagStmt.setInt(2, postId);
+            tagStmt.setTimestamp(3, createdAt);
+            tagStmt.addBatch();
+        }
+        tagStmt.executeBatch();
     }
 
     public List<TimelinePost> getTimelinePosts(int currentUserId) {
-        List<TimelinePost> posts = new ArrayList<>();
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.getTimelinePosts")) {
+            return getTimelinePage(currentUserId, null, DEFAULT_PAGE_SIZE).posts;
+        }
+    }
 
-        String sql = "SELECT p.post_id, u.username, p.content, p.view_count, " +
-                "(SELECT COUNT(*) FROM post_likes WHERE post_id = p.post_id) as like_count, " +
-                "(SELECT COUNT(*) FROM post_likes WHERE post_id = p.post_id AND user_id = ?) as is_liked " +
-                "FROM posts p " +
-                "JOIN users u ON p.user_id = u.user_id " +
-                "WHERE p.user_id = ? " +
-                "OR p.user_id IN (SELECT following_id FROM follows WHERE follower_id = ?) " +
-                "ORDER BY p.created_at DESC LIMIT 20";
+    // Keyset pagination: each page seeks past the cursor, so cost stays O(page) however deep the scroll.
+    public TimelinePage getTimelinePage(int currentUserId, TimelineCursor after, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.getTimelinePage")) {
+            TimelinePage page = SHARDS.isSharded()
+                    ? mergeShardTimelines(currentUserId, after, limit)
+                    : readHomeTimeline(currentUserId, after, limit);
+            // Reloading a page adds no one: a viewer already in a post's sketch leaves it unchanged.
+            for (TimelinePost post : page.posts) UNIQUE_VIEWERS.record(post.postId, currentUserId);
+            return page;
+        }
+    }
 
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    private TimelinePage readHomeTimeline(int currentUserId, TimelineCursor after, int limit) {
+        List<TimelinePost> posts = new ArrayList<>();
+        TimelineCursor next = null;
+        int[] celebrities = HomeTimelineStore.celebrityFollowees(currentUserId);
+
+        try (Connection conn = DBConnection.getReadConnection(currentUserId);
+             PreparedStatement pstmt = conn.prepareStatement(
+                     timelineSql(after != null, celebrities == null ? -1 : celebrities.length))) {
 
             pstmt.setInt(1, currentUserId);
-            pstmt.setInt(2, currentUserId);
-            pstmt.setInt(3, currentUserId);
+            int idx = HomeTimelineStore.bindHomeIds(pstmt, 2, currentUserId, celebrities,
+                    after == null ? null : after.createdAt, after == null ? 0 : after.postId, limit + 1);
+            pstmt.setInt(idx, limit + 1);
 
             ResultSet rs = pstmt.executeQuery();
             while (rs.next()) {
-                posts.add(new TimelinePost(
+                if (posts.size() == limit) {
+                    TimelinePost last = posts.get(posts.size() - 1);
+                    next = new TimelineCursor(last.createdAt, last.postId);
+                    break;
+                }
+                TimelinePost post = new TimelinePost(
                         rs.getInt("post_id"),
                         rs.getString("username"),
                         rs.getString("content"),
                         rs.getInt("view_count"),
                         rs.getInt("like_count"),
-                        rs.getInt("is_liked") > 0
-                ));
+                        rs.getInt("is_liked") > 0,
+                        rs.getTimestamp("created_at")
+                );
+                post.authorId = rs.getInt("user_id");
+                post.uniqueViewers = rs.getInt("unique_view_count");
+                posts.add(post);
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return posts;
+        return new TimelinePage(posts, next);
     }
 
+    /**
+     * Timeline over sharded posts: the followed authors are grouped by shard,
+     * every shard returns its newest {@code limit + 1} posts by its authors
+     * past the cursor (all shards at once), and the sorted lists are k-way
+     * merged on (created_at, post_id).
+     */
+    private TimelinePage mergeShardTimelines(int currentUserId, TimelineCursor after, int limit) {
+        Map<Integer, List<Integer>> authorsByShard = SHARDS.groupByShard(timelineAuthors(currentUserId));
+        int[] shards = authorsByShard.keySet().stream().mapToInt(Integer::intValue).toArray();
+        List<List<TimelinePost>> perShard;
+        try {
+            perShard = SHARDS.scatter(shards, shard -> {
+                int[] authors = authorsByShard.get(shard).stream().mapToInt(Integer::intValue).toArray();
+                List<TimelinePost> rows = new ArrayList<>();
+                try (Connection conn = SHARDS.readConnection(shard, currentUserId);
+                     PreparedStatement pstmt = conn.prepareStatement(shardTimelineSql(after != null, authors.length))) {
+                    pstmt.setInt(1, currentUserId);
+                    int idx = SqlUtil.bindPaddedInts(pstmt, 2, authors, authors.length);
+                    if (after != null) {
+                        pstmt.setTimestamp(idx++, after.createdAt);
+                        pstmt.setTimestamp(idx++, after.createdAt);
+                        pstmt.setInt(idx++, after.postId);
+                    }
+                    pstmt.setInt(idx, limit + 1);
+                    ResultSet rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        TimelinePost post = new TimelinePost(
+                                rs.getInt("post_id"),
+                                null,
+                                rs.getString("content"),
+                                rs.getInt("view_count"),
+                                rs.getInt("like_count"),
+                                rs.getInt("is_liked") > 0,
+                                rs.getTimestamp("created_at"));
+                        post.authorId = rs.getInt("user_id");
+                        post.uniqueViewers = rs.getInt("unique_view_count");
+                        rows.add(post);
+                    }
+                }
+                return rows;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new TimelinePage(new ArrayList<>(), null);
+        }
 
-    public void printTimeline(int currentUserId) {
-        String sql = "SELECT p.post_id, u.username, p.content, p.view_count, p.created_at " +
-                "FROM posts p " +
-                "JOIN users u ON p.user_id = u.user_id " +
-                "LEFT JOIN follows f ON f.following_id = p.user_id " +
-                "WHERE p.user_id = ? OR f.follower_id = ? " +
-                "ORDER BY p.created_at DESC LIMIT 10";
+        // Heads are {shard index, position}; each list is already newest first.
+        PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) ->
+                NEWEST_FIRST.compare(perShard.get(a[0]).get(a[1]), perShard.get(b[0]).get(b[1])));
+        for (int i = 0; i < perShard.size(); i++) if (!perShard.get(i).isEmpty()) heads.add(new int[]{i, 0});
+        List<TimelinePost> posts = new ArrayList<>(limit + 1);
+        while (!heads.isEmpty() && posts.size() <= limit) {
+            int[] head = heads.poll();
+            posts.add(perShard.get(head[0]).get(head[1]));
+            if (++head[1] < perShard.get(head[0]).size()) heads.add(head);
+        }
 
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        TimelineCursor next = null;
+        if (posts.size() > limit) {
+            posts.remove(limit);
+            TimelinePost last = posts.get(limit - 1);
+            next = new TimelineCursor(last.createdAt, last.postId);
+        }
+        int[] authors = new int[posts.size()];
+        for (int i = 0; i < authors.length; i++) {
+            authors[i] = posts.get(i).authorId;
+            PostOwners.put(posts.get(i).postId, authors[i]);
+        }
+        Map<Integer, String> names = UserIdCache.resolveNames(authors);
+        for (TimelinePost post : posts) post.username = names.get(post.authorId);
+        return new TimelinePage(posts, next);
+    }
 
-            pstmt.setInt(1, currentUserId);
-            pstmt.setInt(2, currentUserId);
+    // The user and everyone they follow, from the in-memory graph when it is loaded.
+    private int[] timelineAuthors(int userId) {
+        FollowGraph graph = FollowGraph.getInstance();
+        int[] following;
+        if (graph.ready()) {
+            following = graph.following(userId);
+        } else {
+            following = new int[16];
+            int n = 0;
+            try (Connection conn = DBConnection.getReadConnection(userId);
+                 PreparedStatement pstmt = conn.prepareStatement(FOLLOWING_SQL)) {
+                pstmt.setInt(1, userId);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    if (n == following.length) following = Arrays.copyOf(following, n * 2);
+                    following[n++] = rs.getInt(1);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            following = Arrays.copyOf(following, n);
+        }
+        int[] authors = Arrays.copyOf(following, following.length + 1);
+        authors[following.length] = userId;
+        return authors;
+    }
 
-            ResultSet rs = pstmt.executeQuery();
-            System.out.println("\n--- Your Timeline ---");
-            while (rs.next()) {
-                System.out.printf("[%s] @%s: %s (Views: %d)\n",
-                        rs.getTimestamp("created_at"),
-                        rs.getString("username"),
-                        rs.getString("content"),
-                        rs.getInt("view_count"));
 
-                incrementViewCount(rs.getInt("post_id"));
+    public void printTimeline(int currentUserId) {
+        printTimeline(currentUserId, null);
+    }
+
+    public TimelineCursor printTimeline(int currentUserId, TimelineCursor after) {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.printTimeline")) {
+            TimelinePage page = getTimelinePage(currentUserId, after, 10);
+
+            System.out.println(after == null ? "\n--- Your Timeline ---" : "\n--- Older Posts ---");
+            for (TimelinePost post : page.posts) {
+                System.out.printf("[%s] @%s: %s (Views: %d, unique: %d)\n",
+                        post.createdAt,
+                        post.username,
+                        post.content,
+                        post.viewCount,
+                        post.uniqueViewers);
+
+                incrementViewCount(post.postId);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return page.next;
         }
     }
 
     private void incrementViewCount(int postId) {
-        String sql = "UPDATE posts SET view_count = view_count + 1 WHERE post_id = ?";
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setInt(1, postId);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
+        VIEW_COUNTS.increment(postId);
+    }
+
+    public static class SearchPage {
+        public List<TimelinePost> posts;
+        public int nextBeforePostId;
+
+        public SearchPage(List<TimelinePost> posts, int nextBeforePostId) {
+            this.posts = posts;
+            this.nextBeforePostId = nextBeforePostId;
+        }
+
+        public boolean hasMore() {
+            return nextBeforePostId > 0;
         }
     }
 
     public void searchPosts(String keyword) {
-        String sql = "SELECT u.username, p.content, p.created_at FROM posts p " +
-                "JOIN users u ON p.user_id = u.user_id " +
-                "WHERE p.content LIKE ? ORDER BY p.created_at DESC";
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        SearchPage page = searchPosts(keyword, Integer.MAX_VALUE, DEFAULT_PAGE_SIZE);
 
-            pstmt.setString(1, "%" + keyword + "%");
-            ResultSet rs = pstmt.executeQuery();
+        System.out.println("\n--- Search Results (Posts) ---");
+        for (TimelinePost post : page.posts) {
+            System.out.printf("@%s: %s\n", post.username, post.content);
+        }
+        if (page.hasMore()) System.out.println("(more results available)");
+    }
 
-            System.out.println("\n--- Search Results (Posts) ---");
-            while (rs.next()) {
-                System.out.printf("@%s: %s\n", rs.getString("username"), rs.getString("content"));
+    // Matches come from the in-memory index (all terms, newest first); MySQL only hydrates the page.
+    public SearchPage searchPosts(String query, int beforePostId, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.searchPosts")) {
+            String trimmed = query.trim();
+            if (trimmed.startsWith("#") && trimmed.indexOf(' ') < 0) {
+                List<String> tags = ContentTokens.scan(trimmed).hashtags;
+                if (tags.size() == 1) return getPostsByHashtag(tags.get(0), beforePostId, limit);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            int[] ids = PostSearchIndex.getInstance().search(query, beforePostId, limit + 1);
+            int count = Math.min(ids.length, limit);
+            List<TimelinePost> posts = hydrate(ids, count);
+            int next = ids.length > limit ? ids[limit - 1] : 0;
+            return new SearchPage(posts, next);
         }
     }
 
-    public void refreshTrending() {
-        String sql = "INSERT INTO trending_posts (post_id, score) " +
-                "SELECT p.post_id, (COUNT(pl.user_id) * 10 + p.view_count) as score " +
-                "FROM posts p " +
-                "LEFT JOIN post_likes pl ON p.post_id = pl.post_id " +
-                "GROUP BY p.post_id " +
-                "ORDER BY score DESC LIMIT 5 " +
-                "ON DUPLICATE KEY UPDATE score = VALUES(score)";
+    /** Newest-first posts tagged {@code #tag}, strictly below {@code beforePostId}. Asks every shard. */
+    public SearchPage getPostsByHashtag(String tag, int beforePostId, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.getPostsByHashtag")) {
+            int[] ids = new int[0];
+            int found = 0;
+            try {
+                List<int[]> perShard = SHARDS.scatter(SHARDS.allShards(), shard -> {
+                    int[] page = new int[limit + 1];
+                    int n = 0;
+                    try (Connection conn = SHARDS.connection(shard);
+                         PreparedStatement pstmt = conn.prepareStatement(HASHTAG_POSTS_SQL)) {
+                        pstmt.setString(1, tag.toLowerCase());
+                        pstmt.setInt(2, beforePostId);
+                        pstmt.setInt(3, limit + 1);
+                        ResultSet rs = pstmt.executeQuery();
+                        while (rs.next()) page[n++] = rs.getInt("post_id");
+                    }
+                    return Arrays.copyOf(page, n);
+                });
+                ids = mergeNewestIds(perShard, limit + 1);
+                found = ids.length;
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            int count = Math.min(found, limit);
+            int next = found > limit ? ids[limit - 1] : 0;
+            return new SearchPage(hydrate(ids, count), next);
+        }
+    }
 
-        try (Connection conn = DBConnection.getConnection();
-             Statement stmt = conn.createStatement()) {
+    // Each shard's ids are sorted descending; keeps the newest {@code limit} over all of them, once each
+    // (a post can briefly be on two shards while its bucket moves).
+    private static int[] mergeNewestIds(List<int[]> perShard, int limit) {
+        PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) ->
+                Integer.compare(perShard.get(b[0])[b[1]], perShard.get(a[0])[a[1]]));
+        for (int i = 0; i < perShard.size(); i++) if (perShard.get(i).length > 0) heads.add(new int[]{i, 0});
+        int[] out = new int[limit];
+        int n = 0;
+        while (!heads.isEmpty() && n < limit) {
+            int[] head = heads.poll();
+            int id = perShard.get(head[0])[head[1]];
+            if (n == 0 || out[n - 1] != id) out[n++] = id;
+            if (++head[1] < perShard.get(head[0]).length) heads.add(head);
+        }
+        return Arrays.copyOf(out, n);
+    }
 
-            stmt.execute("DELETE FROM trending_posts");
-            stmt.executeUpdate(sql);
+    // Posts in the order of {@code ids}, read from the shards that hold them; names come from the id cache.
+    private List<TimelinePost> hydrate(int[] ids, int count) {
+        List<TimelinePost> posts = new ArrayList<>();
+        if (count == 0) return posts;
 
+        Map<Integer, TimelinePost> byId = new HashMap<>();
+        try {
+            Map<Integer, List<Integer>> byShard = PostOwners.groupByShard(ids, count);
+            int[] shards = byShard.keySet().stream().mapToInt(Integer::intValue).toArray();
+            for (List<TimelinePost> part : SHARDS.scatter(shards, shard -> hydrateShard(shard, byShard.get(shard)))) {
+                for (TimelinePost post : part) byId.put(post.postId, post);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        int[] authors = new int[byId.size()];
+        int n = 0;
+        for (TimelinePost post : byId.values()) authors[n++] = post.authorId;
+        Map<Integer, String> names = UserIdCache.resolveNames(authors);
+        for (int i = 0; i < count; i++) {
+            TimelinePost post = byId.get(ids[i]);
+            if (post == null) continue;
+            post.username = names.get(post.authorId);
+            posts.add(post);
+        }
+        return posts;
     }
 
-    public void viewTrending() {
-        refreshTrending();
-
-        String sql = "SELECT t.score, p.content, u.username FROM trending_posts t " +
-                "JOIN posts p ON t.post_id = p.post_id " +
-                "JOIN users u ON p.user_id = u.user_id " +
-                "ORDER BY t.score DESC";
+    private List<TimelinePost> hydrateShard(int shard, List<Integer> postIds) throws SQLException {
+        int[] ids = postIds.stream().mapToInt(Integer::intValue).toArray();
+        String sql = "SELECT p.post_id, p.user_id, p.content, p.view_count, p.unique_view_count, p.created_at, " +
+                LikeCounter.LIKE_COUNT_EXPR + " as like_count " +
+                "FROM posts p WHERE p.post_id IN (" + SqlUtil.paddedPlaceholders(ids.length) + ")";
+        List<TimelinePost> posts = new ArrayList<>();
+        try (Connection conn = SHARDS.connection(shard);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            SqlUtil.bindPaddedInts(pstmt, 1, ids, ids.length);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                TimelinePost post = new TimelinePost(
+                        rs.getInt("post_id"),
+                        null,
+                        rs.getString("content"),
+                        rs.getInt("view_count"),
+                        rs.getInt("like_count"),
+                        false,
+                        rs.getTimestamp("created_at"));
+                post.authorId = rs.getInt("user_id");
+                post.uniqueViewers = rs.getInt("unique_view_count");
+                posts.add(post);
+            }
+        }
+        return posts;
+    }
 
+    // trending_posts stays on shard 0 while posts may not, so the ranking is read first and the posts hydrated.
+    private List<TimelinePost> trendingPosts(Map<Integer, Double> scores) {
+        int[] ids = new int[16];
+        int n = 0;
         try (Connection conn = DBConnection.getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+             PreparedStatement pstmt = conn.prepareStatement(TRENDING_SQL)) {
+            pstmt.setInt(1, TRENDING.getPublishSize());
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+                ids[n] = rs.getInt("post_id");
+                scores.put(ids[n++], rs.getDouble("score"));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return hydrate(ids, n);
+    }
+
+    public void refreshTrending() {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.refreshTrending")) {
+            TRENDING.publish();
+        }
+    }
+
+    public void viewTrending() {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.viewTrending")) {
+            Map<Integer, Double> scores = new HashMap<>();
+            List<TimelinePost> posts = trendingPosts(scores);
 
             System.out.println("\n--- TRENDING NOW ---");
             int rank = 1;
-            while (rs.next()) {
+            for (TimelinePost post : posts) {
                 System.out.printf("#%d (Score: %.0f) @%s: %s\n",
-                        rank++, rs.getDouble("score"), rs.getString("username"), rs.getString("content"));
+                        rank++, scores.get(post.postId), post.username, post.content);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
     public List<String> getTimelineList(int currentUserId) {
-        List<String> tweets = new ArrayList<>();
-        String sql = "SELECT u.username, p.content, p.view_count, p.created_at " +
-                "FROM posts p " +
-                "JOIN users u ON p.user_id = u.user_id " +
-                "LEFT JOIN follows f ON f.following_id = p.user_id " +
-                "WHERE p.user_id = ? OR f.follower_id = ? " +
-                "ORDER BY p.created_at DESC LIMIT 20";
-
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setInt(1, currentUserId);
-            pstmt.setInt(2, currentUserId);
-            ResultSet rs = pstmt.executeQuery();
+        return getTimelineList(currentUserId, null, DEFAULT_PAGE_SIZE);
+    }
 
-            while (rs.next()) {
+    public List<String> getTimelineList(int currentUserId, TimelineCursor after, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.getTimelineList")) {
+            List<String> tweets = new ArrayList<>();
+            for (TimelinePost post : getTimelinePage(currentUserId, after, limit).posts) {
                 String tweet = String.format("<html><b>@%s</b> <font color='gray'>(%d views)</font><br>%s</html>",
-                        rs.getString("username"),
-                        rs.getInt("view_count"),
-                        rs.getString("content"));
+                        post.username,
+                        post.viewCount,
+                        post.content);
                 tweets.add(tweet);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return tweets;
         }
-        return tweets;
     }
 
     public List<String> getTrendingList() {
-        refreshTrending();
-        List<String> trends = new ArrayList<>();
-        String sql = "SELECT t.score, p.content, u.username FROM trending_posts t " +
-                "JOIN posts p ON t.post_id = p.post_id " +
-                "JOIN users u ON p.user_id = u.user_id " +
-                "ORDER BY t.score DESC";
-
-        try (Connection conn = DBConnection.getConnection();
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.getTrendingList")) {
+            List<String> trends = new ArrayList<>();
+            Map<Integer, Double> scores = new HashMap<>();
             int rank = 1;
-            while (rs.next()) {
+            for (TimelinePost post : trendingPosts(scores)) {
                 trends.add(String.format("<html><b>#%d (Score: %.0f)</b> @%s<br>%s</html>",
-                        rank++, rs.getDouble("score"), rs.getString("username"), rs.getString("content")));
+                        rank++, scores.get(post.postId), post.username, post.content));
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return trends;
+        }
+    }
+
+    /** Distinct viewers over the last {@code days} days, or all time for 0, merged from the daily sketches. */
+    public long getUniqueViewers(int postId, int days) {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.getUniqueViewers")) {
+            return UNIQUE_VIEWERS.estimate(postId, days);
+        }
+    }
+
+    /** Answered from {@link HashtagTrends}; never touches the database. */
+    public List<HashtagTrends.Trend> getTrendingHashtags(int limit) {
+        try (Metrics.Scope scope = Metrics.enter("PostDAO.getTrendingHashtags")) {
+            return HASHTAGS.top(limit);
         }
-        return trends;
     }
 
-}
\ No newline at end of file
+    // Async variants for UI callers; each runs the blocking method above on DBExecutor.
+
+    public CompletableFuture<PostResult> createPostAsync(int userId, String content) {
+        return DBExecutor.supply(() -> createPost(userId, content));
+    }
+
+    public CompletableFuture<TimelinePage> getTimelinePageAsync(int currentUserId, TimelineCursor after, int limit) {
+        return DBExecutor.supply(() -> getTimelinePage(currentUserId, after, limit));
+    }
+
+    public CompletableFuture<SearchPage> searchPostsAsync(String query, int beforePostId, int limit) {
+        return DBExecutor.supply(() -> searchPosts(query, beforePostId, limit));
+    }
+
+    public CompletableFuture<List<String>> getTrendingListAsync() {
+        return DBExecutor.supply(this::getTrendingList);
+    }
+
+    public CompletableFuture<List<HashtagTrends.Trend>> getTrendingHashtagsAsync(int limit) {
+        return DBExecutor.supply(() -> getTrendingHashtags(limit));
+    }
+
+    public CompletableFuture<SearchPage> getPostsByHashtagAsync(String tag, int beforePostId, int limit) {
+        return DBExecutor.supply(() -> getPostsByHashtag(tag, beforePostId, limit));
+    }
+}
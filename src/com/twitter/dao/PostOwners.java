@@ -0,0 +1,113 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+import com.twitter.util.ShardRouter;
+import com.twitter.util.SqlUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Author of each recently seen post, which decides the shard of the post and
+ * of everything stored with it (likes, comments, counters, sketches). Filled
+ * by whatever reads or writes posts; a miss asks every shard. An author never
+ * changes, so entries stay valid across bucket moves. Without sharding every
+ * post is on shard 0 and nothing is cached.
+ */
+final class PostOwners {
+
+    private static final int CAPACITY = Integer.getInteger("twitter.shards.postOwnerCache", 200_000);
+    private static final int LOOKUP_BATCH = 256;
+
+    private static final Map<Integer, Integer> AUTHORS = new LinkedHashMap<Integer, Integer>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private PostOwners() {
+    }
+
+    static void put(int postId, int authorId) {
+        if (!DBConnection.getShards().isSharded()) return;
+        synchronized (AUTHORS) {
+            AUTHORS.put(postId, authorId);
+        }
+    }
+
+    /** Shard holding the post, or -1 if no shard has it. */
+    static int shardOf(int postId) throws SQLException {
+        ShardRouter shards = DBConnection.getShards();
+        if (!shards.isSharded()) return 0;
+        Map<Integer, List<Integer>> groups = groupByShard(new int[]{postId}, 1);
+        return groups.isEmpty() ? -1 : groups.keySet().iterator().next();
+    }
+
+    /** Like {@link #shardOf}, but fails while the author's bucket is frozen by a move. */
+    static int shardForWrite(int postId) throws SQLException {
+        int shard = shardOf(postId);
+        if (shard < 0) return shard;
+        Integer author;
+        synchronized (AUTHORS) {
+            author = AUTHORS.get(postId);
+        }
+        if (author != null) DBConnection.getShards().checkWritable(author);
+        return shard;
+    }
+
+    /** The first {@code count} ids grouped by the shard that holds them; with several shards, ids found on none are left out. */
+    static Map<Integer, List<Integer>> groupByShard(int[] postIds, int count) throws SQLException {
+        ShardRouter shards = DBConnection.getShards();
+        Map<Integer, List<Integer>> groups = new TreeMap<>();
+        if (!shards.isSharded()) {
+            List<Integer> all = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) all.add(postIds[i]);
+            if (count > 0) groups.put(0, all);
+            return groups;
+        }
+        List<Integer> missing = new ArrayList<>();
+        synchronized (AUTHORS) {
+            for (int i = 0; i < count; i++) {
+                Integer author = AUTHORS.get(postIds[i]);
+                if (author == null) missing.add(postIds[i]);
+                else groups.computeIfAbsent(shards.shardOf(author), k -> new ArrayList<>()).add(postIds[i]);
+            }
+        }
+        for (int from = 0; from < missing.size(); from += LOOKUP_BATCH) {
+            List<Integer> chunk = missing.subList(from, Math.min(missing.size(), from + LOOKUP_BATCH));
+            for (Map.Entry<Integer, Integer> found : lookup(shards, chunk).entrySet()) {
+                put(found.getKey(), found.getValue());
+                groups.computeIfAbsent(shards.shardOf(found.getValue()), k -> new ArrayList<>()).add(found.getKey());
+            }
+        }
+        return groups;
+    }
+
+    private static Map<Integer, Integer> lookup(ShardRouter shards, List<Integer> ids) throws SQLException {
+        int[] keys = ids.stream().mapToInt(Integer::intValue).toArray();
+        String sql = "SELECT post_id, user_id FROM posts WHERE post_id IN (" + SqlUtil.paddedPlaceholders(keys.length) + ")";
+        Map<Integer, Integer> authors = new HashMap<>();
+        for (Map<Integer, Integer> part : shards.scatter(shards.allShards(), shard -> {
+            Map<Integer, Integer> found = new HashMap<>();
+            try (Connection conn = shards.connection(shard);
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                SqlUtil.bindPaddedInts(pstmt, 1, keys, keys.length);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) found.put(rs.getInt("post_id"), rs.getInt("user_id"));
+            }
+            return found;
+        })) {
+            authors.putAll(part);
+        }
+        return authors;
+    }
+}
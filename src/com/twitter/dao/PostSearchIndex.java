@@ -0,0 +1,202 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+import com.twitter.util.InvertedIndex;
+import com.twitter.util.ShardRouter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Process-wide inverted index over post content. Built in bulk from
+ * {@code posts} when the application starts and kept current by
+ * {@link PostDAO#createPost}. Posts created during the bulk load are held
+ * back and merged in id order once it finishes, so the posting lists are
+ * only ever appended to; until then searches see the loaded part plus the
+ * held-back posts.
+ */
+public class PostSearchIndex {
+
+    private static final int LOAD_BATCH = 5000;
+    private static final String LOAD_SQL = "SELECT post_id, content FROM posts WHERE post_id > ? ORDER BY post_id LIMIT ?";
+
+    private static volatile PostSearchIndex instance;
+
+    private final InvertedIndex index = new InvertedIndex();
+    // Posts created while the bulk load runs, in arrival order; null once merged.
+    private List<Pending> pending = new ArrayList<>();
+    private volatile boolean loaded;
+
+    private static final class Pending {
+        final int postId;
+        final String content;
+        final Set<String> tokens;
+
+        Pending(int postId, String content) {
+            this.postId = postId;
+            this.content = content;
+            this.tokens = InvertedIndex.tokenize(content);
+        }
+    }
+
+    public static PostSearchIndex getInstance() {
+        PostSearchIndex i = instance;
+        if (i == null) {
+            synchronized (PostSearchIndex.class) {
+                i = instance;
+                if (i == null) {
+                    i = new PostSearchIndex();
+                    Thread loader = new Thread(i::bulkLoad, "post-index-loader");
+                    loader.setDaemon(true);
+                    loader.start();
+                    instance = i;
+                }
+            }
+        }
+        return i;
+    }
+
+    public void add(int postId, String content) {
+        if (!loaded) {
+            synchronized (this) {
+                if (pending != null) {
+                    pending.add(new Pending(postId, content));
+                    return;
+                }
+            }
+        }
+        index.add(postId, content);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Newest-first post ids matching every term, strictly below {@code beforePostId}.
+     * Never waits for the bulk load; while it runs, older posts may be missing.
+     */
+    public int[] search(String query, int beforePostId, int limit) {
+        if (loaded) return index.search(query, beforePostId, limit);
+
+        List<Integer> recent = new ArrayList<>();
+        Set<String> terms = InvertedIndex.tokenize(query);
+        synchronized (this) {
+            if (pending != null && !terms.isEmpty()) {
+                for (Pending p : pending) {
+                    if (p.postId < beforePostId && p.tokens.containsAll(terms)) recent.add(p.postId);
+                }
+            }
+        }
+        int[] indexed = index.search(query, beforePostId, limit);
+        if (recent.isEmpty()) return indexed;
+        recent.sort(Collections.reverseOrder());
+        int[] out = new int[Math.min(limit, recent.size() + indexed.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (n < out.length && (i < recent.size() || j < indexed.length)) {
+            int next = j >= indexed.length || (i < recent.size() && recent.get(i) >= indexed[j]) ? recent.get(i++) : indexed[j++];
+            if (n == 0 || out[n - 1] != next) out[n++] = next;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    public InvertedIndex getIndex() {
+        return index;
+    }
+
+    // One id-ordered batch of a shard's posts; refills itself as it is consumed.
+    private static final class ShardBatch {
+        final PreparedStatement pstmt;
+        final int[] ids = new int[LOAD_BATCH];
+        final String[] contents = new String[LOAD_BATCH];
+        int size;
+        int pos;
+
+        ShardBatch(PreparedStatement pstmt) {
+            this.pstmt = pstmt;
+        }
+
+        boolean fill() throws SQLException {
+            pstmt.setInt(1, size == 0 ? 0 : ids[size - 1]);
+            pstmt.setInt(2, LOAD_BATCH);
+            size = 0;
+            pos = 0;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ids[size] = rs.getInt("post_id");
+                    contents[size++] = rs.getString("content");
+                }
+            }
+            return size > 0;
+        }
+
+        int current() {
+            return ids[pos];
+        }
+
+        boolean advance() throws SQLException {
+            if (++pos < size) return true;
+            return size == LOAD_BATCH && fill();
+        }
+    }
+
+    // Shards are read side by side and merged on post_id, so ids reach the posting lists in increasing order.
+    private void bulkLoad() {
+        long start = System.currentTimeMillis();
+        ShardRouter shards = DBConnection.getShards();
+        List<Connection> conns = new ArrayList<>();
+        try {
+            PriorityQueue<ShardBatch> queue = new PriorityQueue<>(Comparator.comparingInt(ShardBatch::current));
+            for (int shard : shards.allShards()) {
+                Connection conn = shards.connection(shard);
+                conns.add(conn);
+                ShardBatch batch = new ShardBatch(conn.prepareStatement(LOAD_SQL));
+                if (batch.fill()) queue.add(batch);
+            }
+            int lastId = 0;
+            while (!queue.isEmpty()) {
+                ShardBatch batch = queue.poll();
+                // A post seen twice is one whose bucket is being moved.
+                if (batch.current() != lastId) {
+                    lastId = batch.current();
+                    index.add(lastId, batch.contents[batch.pos]);
+                }
+                if (batch.advance()) queue.add(batch);
+            }
+            mergePending();
+            System.out.printf("[SEARCH] Indexed %d posts, %d terms, %d KB in %d ms%n",
+                    index.documentCount(), index.termCount(), index.sizeInBytes() / 1024,
+                    System.currentTimeMillis() - start);
+        } catch (SQLException e) {
+            System.err.println("[SEARCH] Bulk load failed: " + e.getMessage());
+            mergePending();
+        } finally {
+            for (Connection conn : conns) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    // One sorted pass over the held-back posts; most are newer than anything loaded and append.
+    private synchronized void mergePending() {
+        if (pending == null) return;
+        pending.sort(Comparator.comparingInt(p -> p.postId));
+        for (Pending p : pending) index.add(p.postId, p.content);
+        pending = null;
+        loaded = true;
+    }
+}
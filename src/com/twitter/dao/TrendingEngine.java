@@ -0,0 +1,267 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process trending engine. Like and view events are folded into
+ * exponentially time-decayed scores as they happen, and on a schedule each
+ * instance adds what its best posts gained since its last publish to
+ * {@code trending_posts}, so reading the trending list never aggregates over
+ * {@code posts} or {@code post_likes}. The stored scores are decayed to the
+ * publish time first and the table is trimmed to the best
+ * {@code twitter.trending.sharedSize} rows, so instances that each see only
+ * part of the traffic add up to one ranking instead of overwriting each other.
+ *
+ * <p>Scores use forward decay: an event at time t adds {@code w * e^(lambda * (t - landmark))},
+ * and the current value is that sum times {@code e^(-lambda * (now - landmark))}. Nothing
+ * has to be touched when time passes; the landmark is moved forward occasionally
+ * to keep the exponents small.
+ */
+public class TrendingEngine {
+
+    public static final double LIKE_WEIGHT = 10.0;
+    public static final double VIEW_WEIGHT = 1.0;
+    /** Score distinct viewers (from {@link UniqueViewers}) instead of every render counted in view_count. */
+    public static final boolean UNIQUE_VIEWS = Boolean.getBoolean("twitter.trending.uniqueViews");
+
+    private static final String LOAD_SQL = "SELECT post_id, score FROM trending_posts";
+    private static final String DECAY_SQL = "UPDATE trending_posts " +
+            "SET score = score * EXP(? * TIMESTAMPDIFF(MICROSECOND, updated_at, NOW(3))), updated_at = NOW(3)";
+    private static final String ADD_SQL = "INSERT INTO trending_posts (post_id, score, updated_at) VALUES (?, ?, NOW(3)) " +
+            "ON DUPLICATE KEY UPDATE score = LEAST(GREATEST(0, score + VALUES(score)), 99999999.99)";
+    // The extra derived table lets MySQL take a LIMIT in the subquery and read the table it deletes from.
+    private static final String TRIM_SQL = "DELETE FROM trending_posts WHERE score <= 0 OR post_id NOT IN " +
+            "(SELECT post_id FROM (SELECT post_id FROM trending_posts ORDER BY score DESC LIMIT ?) keep)";
+
+    private static volatile TrendingEngine instance;
+
+    private final double lambdaPerMilli;
+    private final int capacity;
+    private final int publishSize;
+    private final int sharedSize;
+    // Per post: {score, part of it already added to trending_posts}, both relative to the landmark.
+    private final Map<Integer, double[]> scores = new HashMap<>();
+    private final Object publishLock = new Object();
+    private long landmark = System.currentTimeMillis();
+    private final ScheduledExecutorService publisher;
+
+    public TrendingEngine(double halfLifeMinutes, int capacity, int publishSize, int sharedSize, long publishIntervalMillis) {
+        this.lambdaPerMilli = Math.log(2) / (halfLifeMinutes * 60_000.0);
+        this.capacity = capacity;
+        this.publishSize = publishSize;
+        this.sharedSize = Math.max(publishSize, sharedSize);
+        this.publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "trending-publisher");
+            t.setDaemon(true);
+            return t;
+        });
+        publisher.execute(this::seedFromSnapshot);
+        publisher.scheduleWithFixedDelay(this::publish, publishIntervalMillis, publishIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static TrendingEngine getInstance() {
+        TrendingEngine e = instance;
+        if (e == null) {
+            synchronized (TrendingEngine.class) {
+                e = instance;
+                if (e == null) {
+                    e = new TrendingEngine(
+                            Double.parseDouble(System.getProperty("twitter.trending.halfLifeMinutes", "360")),
+                            Integer.getInteger("twitter.trending.capacity", 10000),
+                            Integer.getInteger("twitter.trending.publishSize", 5),
+                            Integer.getInteger("twitter.trending.sharedSize", 200),
+                            Long.getLong("twitter.trending.publishIntervalMs", 10000));
+                    instance = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    public void recordLike(int postId, boolean liked) {
+        record(postId, liked ? LIKE_WEIGHT : -LIKE_WEIGHT);
+    }
+
+    public void recordViews(int postId, int views) {
+        record(postId, views * VIEW_WEIGHT);
+    }
+
+    public void record(int postId, double weight) {
+        add(postId, weight, false);
+    }
+
+    // A seeded score came from trending_posts, so it counts as published already.
+    private synchronized void add(int postId, double weight, boolean seeded) {
+        long now = System.currentTimeMillis();
+        double growth = Math.exp(lambdaPerMilli * (now - landmark));
+        if (growth > 1e100) {
+            rebase(now);
+            growth = 1.0;
+        }
+        double[] cell = scores.get(postId);
+        if (cell == null) {
+            if (weight <= 0) return;
+            cell = new double[2];
+            scores.put(postId, cell);
+        }
+        cell[0] = Math.max(0, cell[0] + weight * growth);
+        if (seeded) cell[1] = cell[0];
+        if (scores.size() > capacity + capacity / 4) evictLowest();
+    }
+
+    public int getPublishSize() {
+        return publishSize;
+    }
+
+    public synchronized List<double[]> top(int k) {
+        double decay = Math.exp(-lambdaPerMilli * (System.currentTimeMillis() - landmark));
+        List<double[]> result = new ArrayList<>();
+        if (k <= 0) return result;
+        // Min-heap of the best k seen so far; the root is the one to drop next.
+        PriorityQueue<double[]> best = new PriorityQueue<>(k + 1, (a, b) -> Double.compare(a[1], b[1]));
+        for (Map.Entry<Integer, double[]> entry : scores.entrySet()) {
+            double raw = entry.getValue()[0];
+            if (raw <= 0) continue;
+            if (best.size() == k && raw <= best.peek()[1]) continue;
+            best.add(new double[]{entry.getKey(), raw});
+            if (best.size() > k) best.poll();
+        }
+        while (!best.isEmpty()) {
+            double[] entry = best.poll();
+            entry[1] *= decay;
+            result.add(entry);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Adds what this instance's best {@code sharedSize} posts gained since the
+     * last publish to trending_posts, in one transaction with decaying and
+     * trimming the shared table.
+     */
+    public void publish() {
+        synchronized (publishLock) {
+            long base;
+            List<double[]> gains;
+            synchronized (this) {
+                base = landmark;
+                gains = unpublished(sharedSize);
+            }
+            if (writeGains(gains)) markPublished(gains, base);
+        }
+    }
+
+    // {post id, raw gain, gain decayed to now} of the top {@code k} posts that changed since the last publish.
+    private synchronized List<double[]> unpublished(int k) {
+        double decay = Math.exp(-lambdaPerMilli * (System.currentTimeMillis() - landmark));
+        List<double[]> gains = new ArrayList<>();
+        for (double[] entry : top(k)) {
+            double[] cell = scores.get((int) entry[0]);
+            double gain = cell[0] - cell[1];
+            if (gain != 0) gains.add(new double[]{entry[0], gain, gain * decay});
+        }
+        return gains;
+    }
+
+    private synchronized void markPublished(List<double[]> gains, long base) {
+        // A rebase in between changed the units; the gains are then published again next time.
+        if (base != landmark) return;
+        for (double[] gain : gains) {
+            double[] cell = scores.get((int) gain[0]);
+            if (cell != null) cell[1] += gain[1];
+        }
+    }
+
+    private boolean writeGains(List<double[]> gains) {
+        Connection conn = null;
+        try {
+            conn = DBConnection.getConnection();
+            conn.setAutoCommit(false);
+            PreparedStatement decay = conn.prepareStatement(DECAY_SQL);
+            decay.setDouble(1, -lambdaPerMilli / 1000.0);
+            decay.executeUpdate();
+            if (!gains.isEmpty()) {
+                PreparedStatement add = conn.prepareStatement(ADD_SQL);
+                for (double[] gain : gains) {
+                    add.setInt(1, (int) gain[0]);
+                    add.setDouble(2, Math.max(-99_999_999.99, Math.min(gain[2], 99_999_999.99)));
+                    add.addBatch();
+                }
+                add.executeBatch();
+            }
+            PreparedStatement trim = conn.prepareStatement(TRIM_SQL);
+            trim.setInt(1, sharedSize);
+            trim.executeUpdate();
+            conn.commit();
+            return true;
+        } catch (SQLException e) {
+            try {
+                if (conn != null) conn.rollback();
+            } catch (SQLException ex) {
+            }
+            System.err.println("[TRENDING] Publish failed: " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                if (conn != null) conn.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return scores.size();
+    }
+
+    // Starts from the last published snapshot so a restart does not empty the trending list.
+    private void seedFromSnapshot() {
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(LOAD_SQL)) {
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                add(rs.getInt("post_id"), rs.getDouble("score"), true);
+            }
+        } catch (SQLException e) {
+            System.err.println("[TRENDING] Could not load snapshot: " + e.getMessage());
+        }
+    }
+
+    private void rebase(long now) {
+        double decay = Math.exp(-lambdaPerMilli * (now - landmark));
+        for (double[] cell : scores.values()) {
+            cell[0] *= decay;
+            cell[1] *= decay;
+        }
+        landmark = now;
+    }
+
+    private void evictLowest() {
+        int excess = scores.size() - capacity;
+        // Max-heap of the lowest {@code excess} scores.
+        PriorityQueue<Map.Entry<Integer, double[]>> lowest =
+                new PriorityQueue<>(excess + 1, (a, b) -> Double.compare(b.getValue()[0], a.getValue()[0]));
+        for (Map.Entry<Integer, double[]> entry : scores.entrySet()) {
+            if (lowest.size() == excess && entry.getValue()[0] >= lowest.peek().getValue()[0]) continue;
+            lowest.add(entry);
+            if (lowest.size() > excess) lowest.poll();
+        }
+        List<Integer> evicted = new ArrayList<>(excess);
+        for (Map.Entry<Integer, double[]> entry : lowest) evicted.add(entry.getKey());
+        for (Integer postId : evicted) scores.remove(postId);
+    }
+}
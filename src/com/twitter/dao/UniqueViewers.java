@@ -0,0 +1,281 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+import com.twitter.util.HyperLogLog;
+import com.twitter.util.SqlUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Distinct viewers per post, counted with {@link HyperLogLog} sketches.
+ * Views since the last flush are collected in memory; a flush merges them
+ * into {@code post_view_sketches} under the post's all-time bucket (0) and
+ * the bucket of the current UTC day, then stores the all-time estimate in
+ * {@code posts.unique_view_count}. Merging takes register maxima, so any
+ * number of app instances can flush into the same rows, and retrying a
+ * flush that failed halfway cannot count anyone twice. Day buckets older
+ * than the retention window are purged every hour; {@link #estimate} serves
+ * windows up to that length.
+ */
+public class UniqueViewers {
+
+    public static final int PRECISION = 10;
+    public static final int ALL_TIME = 0;
+
+    private static final int MAX_POSTS_PER_FLUSH = 256;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final String UPSERT_SQL = "INSERT INTO post_view_sketches (post_id, bucket, sketch) VALUES (?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE sketch = VALUES(sketch)";
+    private static final String UPDATE_TOTAL_SQL = "UPDATE posts SET unique_view_count = ? WHERE post_id = ?";
+    private static final String PURGE_SQL = "DELETE FROM post_view_sketches WHERE bucket > 0 AND bucket < ? LIMIT ?";
+    private static final int PURGE_BATCH = 1000;
+
+    private final int maxPendingPosts;
+    private final int retentionDays;
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private volatile Map<Integer, HyperLogLog> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+
+    public UniqueViewers(long flushIntervalMillis, int maxPendingPosts, int retentionDays) {
+        this.maxPendingPosts = maxPendingPosts;
+        this.retentionDays = Math.max(1, retentionDays);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "unique-viewers-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(this::purge, 1, 60, TimeUnit.MINUTES);
+        DBConnection.addShutdownTask(this::close);
+    }
+
+    public static int today() {
+        return (int) Math.floorDiv(System.currentTimeMillis(), DAY_MILLIS);
+    }
+
+    public void record(int postId, int viewerId) {
+        int size;
+        swapLock.readLock().lock();
+        try {
+            Map<Integer, HyperLogLog> current = pending;
+            HyperLogLog sketch = current.computeIfAbsent(postId, k -> new HyperLogLog(PRECISION));
+            synchronized (sketch) {
+                sketch.offer(viewerId);
+            }
+            size = current.size();
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        if (size >= maxPendingPosts && flushQueued.compareAndSet(false, true)) flusher.execute(this::flush);
+    }
+
+    /**
+     * Estimated distinct viewers of a post over the last {@code days} UTC days
+     * (0 for all time), including views not flushed yet. Windows longer than
+     * the retention are cut to it.
+     */
+    public long estimate(int postId, int days) {
+        days = Math.min(days, retentionDays);
+        HyperLogLog merged = new HyperLogLog(PRECISION);
+        HyperLogLog unflushed = pending.get(postId);
+        if (unflushed != null) {
+            synchronized (unflushed) {
+                merged.merge(unflushed);
+            }
+        }
+        int to = today();
+        String sql = days <= 0
+                ? "SELECT sketch FROM post_view_sketches WHERE post_id = ? AND bucket = " + ALL_TIME
+                : "SELECT sketch FROM post_view_sketches WHERE post_id = ? AND bucket BETWEEN ? AND ?";
+        try {
+            int shard = PostOwners.shardOf(postId);
+            if (shard < 0) return merged.estimate();
+            try (Connection conn = DBConnection.getShards().connection(shard);
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setInt(1, postId);
+                if (days > 0) {
+                    pstmt.setInt(2, to - days + 1);
+                    pstmt.setInt(3, to);
+                }
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) merged.merge(HyperLogLog.fromBytes(rs.getBytes("sketch")));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return merged.estimate();
+    }
+
+    public int getPendingPosts() {
+        return pending.size();
+    }
+
+    public synchronized void flush() {
+        flushQueued.set(false);
+        Map<Integer, HyperLogLog> batch;
+        swapLock.writeLock().lock();
+        try {
+            batch = pending;
+            if (batch.isEmpty()) return;
+            pending = new ConcurrentHashMap<>();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+
+        int day = today();
+        int[] all = batch.keySet().stream().mapToInt(Integer::intValue).toArray();
+        Map<Integer, List<Integer>> byShard;
+        try {
+            byShard = PostOwners.groupByShard(all, all.length);
+        } catch (SQLException e) {
+            requeue(batch);
+            System.err.println("[VIEWS] Unique viewer flush failed, will retry: " + e.getMessage());
+            return;
+        }
+        for (Map.Entry<Integer, List<Integer>> group : byShard.entrySet()) {
+            List<Integer> ids = group.getValue();
+            for (int from = 0; from < ids.size(); from += MAX_POSTS_PER_FLUSH) {
+                List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_POSTS_PER_FLUSH));
+                Map<Integer, HyperLogLog> deltas = new HashMap<>();
+                for (Integer id : chunk) deltas.put(id, batch.get(id));
+                write(group.getKey(), deltas, day);
+            }
+        }
+    }
+
+    /** Deletes day buckets that fell out of the retention window, in small batches on every shard. */
+    public void purge() {
+        int before = today() - retentionDays + 1;
+        int removed = 0;
+        for (int shard : DBConnection.getShards().allShards()) {
+            try (Connection conn = DBConnection.getShards().connection(shard);
+                 PreparedStatement pstmt = conn.prepareStatement(PURGE_SQL)) {
+                pstmt.setInt(1, before);
+                pstmt.setInt(2, PURGE_BATCH);
+                int n;
+                do {
+                    n = pstmt.executeUpdate();
+                    removed += n;
+                } while (n == PURGE_BATCH);
+            } catch (SQLException e) {
+                System.err.println("[VIEWS] Purge of old view sketches failed on shard " + shard + ": " + e.getMessage());
+            }
+        }
+        if (removed > 0) System.out.println("[VIEWS] Purged " + removed + " day sketches older than " + retentionDays + " days");
+    }
+
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+
+    private void write(int shard, Map<Integer, HyperLogLog> deltas, int day) {
+        int count = deltas.size();
+        int[] ids = new int[count];
+        int n = 0;
+        for (Integer id : deltas.keySet()) ids[n++] = id;
+
+        Map<Integer, HyperLogLog> allTime = new HashMap<>();
+        Map<Integer, HyperLogLog> daily = new HashMap<>();
+        Map<Integer, Long> before = new HashMap<>();
+        Connection conn = null;
+        try {
+            conn = DBConnection.getShards().connection(shard);
+            conn.setAutoCommit(false);
+
+            PreparedStatement select = conn.prepareStatement(
+                    "SELECT post_id, bucket, sketch FROM post_view_sketches " +
+                    "WHERE post_id IN (" + SqlUtil.paddedPlaceholders(count) + ") AND bucket IN (?, ?) FOR UPDATE");
+            int idx = SqlUtil.bindPaddedInts(select, 1, ids, count);
+            select.setInt(idx++, ALL_TIME);
+            select.setInt(idx, day);
+            ResultSet rs = select.executeQuery();
+            while (rs.next()) {
+                HyperLogLog stored = HyperLogLog.fromBytes(rs.getBytes("sketch"));
+                (rs.getInt("bucket") == ALL_TIME ? allTime : daily).put(rs.getInt("post_id"), stored);
+            }
+
+            PreparedStatement upsert = conn.prepareStatement(UPSERT_SQL);
+            PreparedStatement total = conn.prepareStatement(UPDATE_TOTAL_SQL);
+            for (int id : ids) {
+                HyperLogLog delta = deltas.get(id);
+                HyperLogLog all = allTime.computeIfAbsent(id, k -> new HyperLogLog(PRECISION));
+                HyperLogLog ofDay = daily.computeIfAbsent(id, k -> new HyperLogLog(PRECISION));
+                before.put(id, all.estimate());
+                synchronized (delta) {
+                    all.merge(delta);
+                    ofDay.merge(delta);
+                }
+                addUpsert(upsert, id, ALL_TIME, all);
+                addUpsert(upsert, id, day, ofDay);
+                total.setLong(1, all.estimate());
+                total.setInt(2, id);
+                total.addBatch();
+            }
+            upsert.executeBatch();
+            total.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                if (conn != null) conn.rollback();
+            } catch (SQLException ex) {
+            }
+            requeue(deltas);
+            System.err.println("[VIEWS] Unique viewer flush failed, will retry: " + e.getMessage());
+            return;
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.setAutoCommit(true);
+                    conn.close();
+                }
+            } catch (SQLException e) {
+            }
+        }
+
+        if (TrendingEngine.UNIQUE_VIEWS) {
+            TrendingEngine trending = TrendingEngine.getInstance();
+            for (int id : ids) {
+                long added = allTime.get(id).estimate() - before.get(id);
+                if (added > 0) trending.recordViews(id, (int) added);
+            }
+        }
+    }
+
+    // Puts deltas back; merging them again on retry is harmless.
+    private void requeue(Map<Integer, HyperLogLog> deltas) {
+        for (Map.Entry<Integer, HyperLogLog> entry : deltas.entrySet()) {
+            swapLock.readLock().lock();
+            try {
+                HyperLogLog sketch = pending.computeIfAbsent(entry.getKey(), k -> new HyperLogLog(PRECISION));
+                synchronized (sketch) {
+                    sketch.merge(entry.getValue());
+                }
+            } finally {
+                swapLock.readLock().unlock();
+            }
+        }
+    }
+
+    private static void addUpsert(PreparedStatement upsert, int postId, int bucket, HyperLogLog sketch) throws SQLException {
+        upsert.setInt(1, postId);
+        upsert.setInt(2, bucket);
+        upsert.setBytes(3, sketch.toBytes());
+        upsert.addBatch();
+    }
+}
@@ -2,189 +2,459 @@ package com.twitter.dao;
 
 import com.twitter.model.User;
 import com.twitter.util.DBConnection;
+import com.twitter.util.DBExecutor;
+import com.twitter.util.Metrics;
+import com.twitter.util.ShardRouter;
 
 import java.sql.*;
 import java.util.UUID;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 
+@SuppressWarnings("try")
 public class UserDAO {
-    public boolean registerUser(String username, String email, String password, String recoveryEmail, String country) {
-        String sql = "INSERT INTO users (username, email, password_hash, recovery_email, country_code) VALUES (?, ?, ?, ?, ?)";
-
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-            pstmt.setString(1, username);
-            pstmt.setString(2, email);
-            pstmt.setString(3, password);
-            pstmt.setString(4, recoveryEmail);
-            pstmt.setString(5, country);
+    /** Unseen mentions and received messages at login, and the newest ids that were counted. */
+    public static class NotificationSummary {
+        public final int unseenMentions;
+        public final int unseenMessages;
+        public final int lastMentionId;
+        public final int lastMessageId;
+
+        public NotificationSummary(int unseenMentions, int unseenMessages, int lastMentionId, int lastMessageId) {
+            this.unseenMentions = unseenMentions;
+            this.unseenMessages = unseenMessages;
+            this.lastMentionId = lastMentionId;
+            this.lastMessageId = lastMessageId;
+        }
+    }
 
-            int rows = pstmt.executeUpdate();
-            return rows > 0;
+    // Badge counts stop here, so catching up after a long absence costs at most this many index entries per kind.
+    public static final int UNSEEN_CAP = 100;
+    public static final int MENTION_PAGE_SIZE = 20;
+
+    private static final ShardRouter SHARDS = DBConnection.getShards();
+
+    private static final String CURSOR_SQL =
+            "SELECT last_seen_mention_id, last_seen_message_id FROM notification_cursors WHERE user_id = ?";
+    // Mentions are stored with the post, on its author's shard, so these two run on every shard.
+    private static final String UNSEEN_MENTIONS_SQL = "SELECT " +
+            "(SELECT COUNT(*) FROM (SELECT mention_id FROM mentions WHERE mentioned_user_id = ? AND mention_id > ? " +
+            "LIMIT " + UNSEEN_CAP + ") m) AS unseen, " +
+            "(SELECT COALESCE(MAX(mention_id), 0) FROM mentions WHERE mentioned_user_id = ?) AS last_id";
+    private static final String MENTIONS_SQL = mentionsSql("<", "DESC");
+    private static final String MENTIONS_OLDEST_FIRST_SQL = mentionsSql(">", "ASC");
+    // Received messages are all in the receiver's mailbox, on their own shard.
+    private static final String UNSEEN_MESSAGES_SQL = "SELECT " +
+            "(SELECT COUNT(*) FROM (SELECT message_id FROM direct_messages WHERE receiver_id = ? AND message_id > ? " +
+            "LIMIT " + UNSEEN_CAP + ") d) AS unseen, " +
+            "(SELECT COALESCE(MAX(message_id), 0) FROM direct_messages WHERE receiver_id = ?) AS last_id";
+    // Oldest first, so a page that stops short leaves the rest above the cursor it moves to.
+    private static final String NEW_MESSAGES_SQL =
+            "SELECT message_id, sender_id, content, sent_at FROM direct_messages " +
+            "WHERE receiver_id = ? AND message_id > ? ORDER BY message_id ASC LIMIT ?";
+    private static final String MARK_SEEN_SQL =
+            "INSERT INTO notification_cursors (user_id, last_seen_mention_id, last_seen_message_id) VALUES (?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE " +
+            "last_seen_mention_id = GREATEST(last_seen_mention_id, VALUES(last_seen_mention_id)), " +
+            "last_seen_message_id = GREATEST(last_seen_message_id, VALUES(last_seen_message_id))";
 
-        } catch (SQLIntegrityConstraintViolationException e) {
-            System.out.println("Error: Username or Email already exists.");
-            return false;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
+    public boolean registerUser(String username, String email, String password, String recoveryEmail, String country) {
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.registerUser")) {
+            String sql = "INSERT INTO users (username, email, password_hash, recovery_email, country_code) VALUES (?, ?, ?, ?, ?)";
+
+            try (Connection conn = DBConnection.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+
+                pstmt.setString(1, username);
+                pstmt.setString(2, email);
+                pstmt.setString(3, password);
+                pstmt.setString(4, recoveryEmail);
+                pstmt.setString(5, country);
+
+                int rows = pstmt.executeUpdate();
+                ResultSet keys = pstmt.getGeneratedKeys();
+                if (keys.next()) {
+                    UserIdCache.put(keys.getInt(1), username);
+                    UserSearchIndex.getInstance().addUser(keys.getInt(1), username, null);
+                }
+                return rows > 0;
+
+            } catch (SQLIntegrityConstraintViolationException e) {
+                System.out.println("Error: Username or Email already exists.");
+                return false;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
         }
     }
 
     public User loginUser(String username, String password) {
-        String sql = "SELECT user_id, username, email FROM users WHERE username = ? AND password_hash = ?";
-
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, username);
-            pstmt.setString(2, password);
-
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return new User(rs.getInt("user_id"), rs.getString("username"), rs.getString("email"));
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.loginUser")) {
+            String sql = "SELECT user_id, username, email FROM users WHERE username = ? AND password_hash = ?";
+
+            try (Connection conn = DBConnection.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+                pstmt.setString(1, username);
+                pstmt.setString(2, password);
+
+                ResultSet rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    UserIdCache.put(rs.getInt("user_id"), rs.getString("username"));
+                    return new User(rs.getInt("user_id"), rs.getString("username"), rs.getString("email"));
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return null;
         }
-        return null;
     }
 
     public void searchUsers(String keyword) {
-        String sql = "SELECT username, display_name FROM users WHERE username LIKE ? OR display_name LIKE ?";
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, "%" + keyword + "%");
-            pstmt.setString(2, "%" + keyword + "%");
-
-            ResultSet rs = pstmt.executeQuery();
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.searchUsers")) {
             System.out.println("\n--- Search Results (Users) ---");
-            while (rs.next()) {
-                System.out.println("User: @" + rs.getString("username"));
+            for (UserSearchIndex.Match m : suggestUsers(keyword, 20)) {
+                System.out.println("User: @" + m.username);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
-    public void checkMentions(int userId) {
-        String sql = "SELECT m.created_at, u.username as author, " +
-                "COALESCE(p.content, c.content) as content, " +
-                "CASE WHEN m.post_id IS NOT NULL THEN 'Post' ELSE 'Comment' END as type " +
-                "FROM mentions m " +
-                "LEFT JOIN posts p ON m.post_id = p.post_id " +
-                "LEFT JOIN comments c ON m.comment_id = c.comment_id " +
-                "LEFT JOIN users u ON (p.user_id = u.user_id OR c.user_id = u.user_id) " +
-                "WHERE m.mentioned_user_id = ? " +
-                "ORDER BY m.created_at DESC";
+    public List<UserSearchIndex.Match> suggestUsers(String prefix, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.suggestUsers")) {
+            return UserSearchIndex.getInstance().suggest(prefix, limit);
+        }
+    }
 
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    public static class MentionPage {
+        /** Newest first, formatted for display. */
+        public final List<String> mentions;
+        public final int nextBeforeMentionId;
 
-            pstmt.setInt(1, userId);
-            ResultSet rs = pstmt.executeQuery();
+        public MentionPage(List<String> mentions, int nextBeforeMentionId) {
+            this.mentions = mentions;
+            this.nextBeforeMentionId = nextBeforeMentionId;
+        }
+
+        public boolean hasMore() {
+            return nextBeforeMentionId > 0;
+        }
+    }
 
-            System.out.println("\n--- Your Mentions ---");
-            while (rs.next()) {
+    /** Prints one page of mentions older than {@code beforeMentionId}; returns the cursor of the next page, or 0. */
+    public int checkMentions(int userId, int beforeMentionId) {
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.checkMentions")) {
+            List<MentionRow> mentions = loadMentions(userId, beforeMentionId, MENTION_PAGE_SIZE + 1, false);
+            int next = nextBefore(mentions, MENTION_PAGE_SIZE);
+            Map<Integer, String> names = authorNames(mentions);
+
+            if (beforeMentionId == Integer.MAX_VALUE) System.out.println("\n--- Your Mentions ---");
+            for (MentionRow m : mentions) {
                 System.out.printf("[%s] You were mentioned in a %s by @%s: \"%s\"\n",
-                        rs.getTimestamp("created_at"),
-                        rs.getString("type"),
-                        rs.getString("author"),
-                        rs.getString("content"));
+                        m.createdAt, m.type, names.get(m.authorId), m.content);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return next;
         }
     }
 
     public String generateRecoveryToken(String email) {
-        String token = UUID.randomUUID().toString();
-        String sql = "INSERT INTO password_tokens (user_id, token_hash, expires_at) " +
-                "VALUES ((SELECT user_id FROM users WHERE email = ?), ?, DATE_ADD(NOW(), INTERVAL 1 HOUR))";
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.generateRecoveryToken")) {
+            String token = UUID.randomUUID().toString();
+            String sql = "INSERT INTO password_tokens (user_id, token_hash, expires_at) " +
+                    "VALUES ((SELECT user_id FROM users WHERE email = ?), ?, DATE_ADD(NOW(), INTERVAL 1 HOUR))";
 
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            try (Connection conn = DBConnection.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-            pstmt.setString(1, email);
-            pstmt.setString(2, token);
-            int rows = pstmt.executeUpdate();
+                pstmt.setString(1, email);
+                pstmt.setString(2, token);
+                int rows = pstmt.executeUpdate();
 
-            if (rows > 0) return token;
+                if (rows > 0) return token;
 
-        } catch (SQLException e) {
-            System.out.println("Email not found.");
+            } catch (SQLException e) {
+                System.out.println("Email not found.");
+            }
+            return null;
         }
-        return null;
     }
 
     public boolean resetPassword(String token, String newPassword) {
-        String validateSql = "SELECT user_id FROM password_tokens WHERE token_hash = ? AND expires_at > NOW()";
-        String updateSql = "UPDATE users SET password_hash = ? WHERE user_id = ?";
-        String deleteTokenSql = "DELETE FROM password_tokens WHERE token_hash = ?";
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.resetPassword")) {
+            String validateSql = "SELECT user_id FROM password_tokens WHERE token_hash = ? AND expires_at > NOW()";
+            String updateSql = "UPDATE users SET password_hash = ? WHERE user_id = ?";
+            String deleteTokenSql = "DELETE FROM password_tokens WHERE token_hash = ?";
+
+            try (Connection conn = DBConnection.getConnection()) {
+                PreparedStatement vStmt = conn.prepareStatement(validateSql);
+                vStmt.setString(1, token);
+                ResultSet rs = vStmt.executeQuery();
+
+                if (rs.next()) {
+                    int userId = rs.getInt("user_id");
+
+                    PreparedStatement uStmt = conn.prepareStatement(updateSql);
+                    uStmt.setString(1, newPassword);
+                    uStmt.setInt(2, userId);
+                    uStmt.executeUpdate();
+
+                    PreparedStatement dStmt = conn.prepareStatement(deleteTokenSql);
+                    dStmt.setString(1, token);
+                    dStmt.executeUpdate();
+
+                    return true;
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
 
-        try (Connection conn = DBConnection.getConnection()) {
-            PreparedStatement vStmt = conn.prepareStatement(validateSql);
-            vStmt.setString(1, token);
-            ResultSet rs = vStmt.executeQuery();
+    /** Newest-first mentions strictly below {@code beforeMentionId}; pass Integer.MAX_VALUE for the first page. */
+    public MentionPage getMentionsPage(int userId, int beforeMentionId, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.getMentionsPage")) {
+            List<String> notifications = new ArrayList<>();
+            List<MentionRow> mentions = loadMentions(userId, beforeMentionId, limit + 1, false);
+            int next = nextBefore(mentions, limit);
+            Map<Integer, String> names = authorNames(mentions);
+            for (MentionRow m : mentions) {
+                String html = String.format(
+                        "<html><b>@%s</b> mentioned you in a <b>%s</b> <font color='gray' size='2'>(%s)</font>:<br><i>\"%s\"</i><br><hr></html>",
+                        names.get(m.authorId), m.type, m.createdAt, m.content
+                );
+                notifications.add(html);
+            }
+            return new MentionPage(notifications, next);
+        }
+    }
 
-            if (rs.next()) {
-                int userId = rs.getInt("user_id");
+    // Drops the probe row past {@code limit}; if there was one, the last kept id starts the next page.
+    private static int nextBefore(List<MentionRow> mentions, int limit) {
+        if (mentions.size() <= limit) return 0;
+        mentions.subList(limit, mentions.size()).clear();
+        return mentions.get(limit - 1).id;
+    }
 
-                PreparedStatement uStmt = conn.prepareStatement(updateSql);
-                uStmt.setString(1, newPassword);
-                uStmt.setInt(2, userId);
-                uStmt.executeUpdate();
+    /** Catch-up query for a new session; live events after this arrive through {@link NotificationDispatcher}. */
+    public NotificationSummary getNotificationSummary(int userId) {
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.getNotificationSummary")) {
+            try {
+                int[] seen = readCursor(userId);
+                int unseenMentions = 0;
+                int lastMentionId = 0;
+                for (int[] part : SHARDS.scatter(SHARDS.allShards(), shard -> {
+                    try (Connection conn = SHARDS.readConnection(shard, userId)) {
+                        return unseen(conn, UNSEEN_MENTIONS_SQL, userId, seen[0]);
+                    }
+                })) {
+                    unseenMentions = Math.min(UNSEEN_CAP, unseenMentions + part[0]);
+                    lastMentionId = Math.max(lastMentionId, part[1]);
+                }
+                int[] messages;
+                try (Connection conn = SHARDS.readConnection(SHARDS.shardOf(userId), userId)) {
+                    messages = unseen(conn, UNSEEN_MESSAGES_SQL, userId, seen[1]);
+                }
+                return new NotificationSummary(unseenMentions, messages[0], lastMentionId, messages[1]);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            return new NotificationSummary(0, 0, 0, 0);
+        }
+    }
 
-                PreparedStatement dStmt = conn.prepareStatement(deleteTokenSql);
-                dStmt.setString(1, token);
-                dStmt.executeUpdate();
+    /**
+     * The oldest {@code limit} mentions and received messages past the user's
+     * cursors, returned newest first; does not move the cursors. Of each kind
+     * the page holds the ids just above the cursor, so marking the highest id
+     * shown as seen never skips one that was not shown.
+     */
+    public List<NotificationDispatcher.Notification> getNotificationsSince(int userId, int limit) {
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.getNotificationsSince")) {
+            List<NotificationDispatcher.Notification> mentions = new ArrayList<>();
+            List<NotificationDispatcher.Notification> messages = new ArrayList<>();
+            try {
+                int[] seen = readCursor(userId);
+                for (MentionRow m : loadMentions(userId, seen[0], limit, true)) {
+                    mentions.add(new NotificationDispatcher.Notification(NotificationDispatcher.MENTION,
+                            m.id, userId, m.authorId, null, m.content, m.createdAt));
+                }
+
+                try (Connection conn = SHARDS.readConnection(SHARDS.shardOf(userId), userId);
+                     PreparedStatement pstmt = conn.prepareStatement(NEW_MESSAGES_SQL)) {
+                    pstmt.setInt(1, userId);
+                    pstmt.setInt(2, seen[1]);
+                    pstmt.setInt(3, limit);
+                    ResultSet rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        messages.add(new NotificationDispatcher.Notification(NotificationDispatcher.MESSAGE,
+                                rs.getInt("message_id"), userId, rs.getInt("sender_id"), null,
+                                rs.getString("content"), rs.getTimestamp("sent_at")));
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
 
-                return true;
+            // Merge the two oldest-first lists by taking heads only, so each kind contributes a prefix.
+            List<NotificationDispatcher.Notification> out = new ArrayList<>();
+            int mi = 0;
+            int di = 0;
+            while (out.size() < limit && (mi < mentions.size() || di < messages.size())) {
+                boolean mention = di >= messages.size()
+                        || (mi < mentions.size() && !mentions.get(mi).createdAt.after(messages.get(di).createdAt));
+                out.add(mention ? mentions.get(mi++) : messages.get(di++));
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            Collections.reverse(out);
+            int[] actors = new int[out.size()];
+            for (int i = 0; i < actors.length; i++) actors[i] = out.get(i).actorId;
+            Map<Integer, String> names = UserIdCache.resolveNames(actors);
+            for (NotificationDispatcher.Notification n : out) n.actor = names.get(n.actorId);
+            return out;
         }
-        return false;
     }
 
-    public List<String> getMentionsList(int userId) {
-        List<String> notifications = new ArrayList<>();
-
-        String sql = "SELECT m.created_at, u.username as author, " +
-                "COALESCE(p.content, c.content) as content, " +
-                "CASE WHEN m.post_id IS NOT NULL THEN 'Post' ELSE 'Comment' END as type " +
-                "FROM mentions m " +
-                "LEFT JOIN posts p ON m.post_id = p.post_id " +
-                "LEFT JOIN comments c ON m.comment_id = c.comment_id " +
-                "LEFT JOIN users u ON (p.user_id = u.user_id OR c.user_id = u.user_id) " +
-                "WHERE m.mentioned_user_id = ? " +
-                "ORDER BY m.created_at DESC";
+    /** Moves the user's cursors forward; ids older than the stored ones are ignored. */
+    public void markNotificationsSeen(int userId, int lastMentionId, int lastMessageId) {
+        try (Metrics.Scope scope = Metrics.enter("UserDAO.markNotificationsSeen")) {
+            try (Connection conn = DBConnection.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(MARK_SEEN_SQL)) {
+                pstmt.setInt(1, userId);
+                pstmt.setInt(2, lastMentionId);
+                pstmt.setInt(3, lastMessageId);
+                pstmt.executeUpdate();
+                DBConnection.markWrite(userId);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    // Cursors are kept on shard 0 with the other per-user tables.
+    private static int[] readCursor(int userId) throws SQLException {
+        try (Connection conn = DBConnection.getReadConnection(userId);
+             PreparedStatement pstmt = conn.prepareStatement(CURSOR_SQL)) {
+            pstmt.setInt(1, userId);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? new int[]{rs.getInt(1), rs.getInt(2)} : new int[]{0, 0};
+        }
+    }
 
+    // {unseen (capped), newest id} from one of the UNSEEN_*_SQL statements.
+    private static int[] unseen(Connection conn, String sql, int userId, int seenId) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, userId);
+            pstmt.setInt(2, seenId);
+            pstmt.setInt(3, userId);
             ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? new int[]{rs.getInt("unseen"), rs.getInt("last_id")} : new int[]{0, 0};
+        }
+    }
 
-            while (rs.next()) {
-                String author = rs.getString("author");
-                String type = rs.getString("type");
-                String content = rs.getString("content");
-                String date = rs.getString("created_at");
+    private static class MentionRow {
+        final int id;
+        final int authorId;
+        final String content;
+        /** "Post" or "Comment". */
+        final String type;
+        final Timestamp createdAt;
+
+        MentionRow(int id, int authorId, String content, String type, Timestamp createdAt) {
+            this.id = id;
+            this.authorId = authorId;
+            this.content = content;
+            this.type = type;
+            this.createdAt = createdAt;
+        }
+    }
 
-                String html = String.format(
-                        "<html><b>@%s</b> mentioned you in a <b>%s</b> <font color='gray' size='2'>(%s)</font>:<br><i>\"%s\"</i><br><hr></html>",
-                        author, type, date, content
-                );
-                notifications.add(html);
+    private static String mentionsSql(String comparison, String order) {
+        return "SELECT m.mention_id, m.created_at, COALESCE(p.user_id, c.user_id) AS author_id, " +
+                "COALESCE(p.content, c.content) AS content, " +
+                "CASE WHEN m.post_id IS NOT NULL THEN 'Post' ELSE 'Comment' END AS type " +
+                "FROM mentions m " +
+                "LEFT JOIN posts p ON m.post_id = p.post_id " +
+                "LEFT JOIN comments c ON m.comment_id = c.comment_id " +
+                "WHERE m.mentioned_user_id = ? AND m.mention_id " + comparison + " ? " +
+                "ORDER BY m.mention_id " + order + " LIMIT ?";
+    }
+
+    // Up to {@code limit} mentions of the user gathered from every shard: the newest ones below {@code cursor},
+    // or with {@code oldestFirst} the oldest ones above it.
+    private static List<MentionRow> loadMentions(int userId, int cursor, int limit, boolean oldestFirst) {
+        String sql = oldestFirst ? MENTIONS_OLDEST_FIRST_SQL : MENTIONS_SQL;
+        List<MentionRow> rows = new ArrayList<>();
+        try {
+            for (List<MentionRow> part : SHARDS.scatter(SHARDS.allShards(), shard -> {
+                List<MentionRow> found = new ArrayList<>();
+                try (Connection conn = SHARDS.readConnection(shard, userId);
+                     PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setInt(1, userId);
+                    pstmt.setInt(2, cursor);
+                    pstmt.setInt(3, limit);
+                    ResultSet rs = pstmt.executeQuery();
+                    while (rs.next()) {
+                        found.add(new MentionRow(rs.getInt("mention_id"), rs.getInt("author_id"),
+                                rs.getString("content"), rs.getString("type"), rs.getTimestamp("created_at")));
+                    }
+                }
+                return found;
+            })) {
+                rows.addAll(part);
             }
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return notifications;
+        rows.sort(oldestFirst ? (a, b) -> Integer.compare(a.id, b.id) : (a, b) -> Integer.compare(b.id, a.id));
+        return rows.size() > limit ? new ArrayList<>(rows.subList(0, limit)) : rows;
+    }
+
+    private static Map<Integer, String> authorNames(List<MentionRow> mentions) {
+        int[] ids = new int[mentions.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = mentions.get(i).authorId;
+        return UserIdCache.resolveNames(ids);
+    }
+
+    // Async variants for UI callers; each runs the blocking method above on DBExecutor.
+
+    public CompletableFuture<User> loginUserAsync(String username, String password) {
+        return DBExecutor.supply(() -> loginUser(username, password));
+    }
+
+    public CompletableFuture<Boolean> registerUserAsync(String username, String email, String password, String recoveryEmail, String country) {
+        return DBExecutor.supply(() -> registerUser(username, email, password, recoveryEmail, country));
+    }
+
+    public CompletableFuture<List<UserSearchIndex.Match>> suggestUsersAsync(String prefix, int limit) {
+        return DBExecutor.supply(() -> suggestUsers(prefix, limit));
+    }
+
+    public CompletableFuture<String> generateRecoveryTokenAsync(String email) {
+        return DBExecutor.supply(() -> generateRecoveryToken(email));
+    }
+
+    public CompletableFuture<Boolean> resetPasswordAsync(String token, String newPassword) {
+        return DBExecutor.supply(() -> resetPassword(token, newPassword));
+    }
+
+    public CompletableFuture<MentionPage> getMentionsPageAsync(int userId, int beforeMentionId, int limit) {
+        return DBExecutor.supply(() -> getMentionsPage(userId, beforeMentionId, limit));
+    }
+
+    public CompletableFuture<NotificationSummary> getNotificationSummaryAsync(int userId) {
+        return DBExecutor.supply(() -> getNotificationSummary(userId));
+    }
+
+    public CompletableFuture<List<NotificationDispatcher.Notification>> getNotificationsSinceAsync(int userId, int limit) {
+        return DBExecutor.supply(() -> getNotificationsSince(userId, limit));
+    }
+
+    public CompletableFuture<Void> markNotificationsSeenAsync(int userId, int lastMentionId, int lastMessageId) {
+        return DBExecutor.run(() -> markNotificationsSeen(userId, lastMentionId, lastMessageId));
     }
-}
\ No newline at end of file
+}
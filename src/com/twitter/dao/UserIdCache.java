@@ -0,0 +1,214 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+import com.twitter.util.SqlUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, bidirectional user_id / username cache shared by all DAOs so hot
+ * paths can bind integer ids and read paths can skip joining {@code users}.
+ * Unknown usernames are cached negatively for a short TTL. When the cache
+ * outgrows its capacity the least recently used tenth is evicted.
+ */
+public class UserIdCache {
+
+    public static final int UNKNOWN = -1;
+
+    private static final int CAPACITY = Integer.getInteger("twitter.userCache.capacity", 100_000);
+    private static final long NEGATIVE_TTL_MS = Long.getLong("twitter.userCache.negativeTtlMs", 30_000);
+    private static final int LOOKUP_BATCH = 256;
+
+    private static final class NameEntry {
+        final int id;
+        final long expiresAt;
+        volatile long lastAccess;
+
+        NameEntry(int id, long expiresAt) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    private static final class IdEntry {
+        final String name;
+        volatile long lastAccess;
+
+        IdEntry(String name) {
+            this.name = name;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    private static final Map<String, NameEntry> BY_NAME = new ConcurrentHashMap<>();
+    private static final Map<Integer, IdEntry> BY_ID = new ConcurrentHashMap<>();
+    private static final ReentrantLock EVICTION = new ReentrantLock();
+
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+
+    /** Returns the user id for {@code username}, or {@link #UNKNOWN}. */
+    public static int resolveId(String username) {
+        if (username == null) return UNKNOWN;
+        Integer id = resolveIds(List.of(username)).get(username);
+        return id == null ? UNKNOWN : id;
+    }
+
+    /** Resolves every name with at most one IN (...) query per batch of misses. Unknown names are omitted. */
+    public static Map<String, Integer> resolveIds(Collection<String> usernames) {
+        Map<String, Integer> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (String name : usernames) {
+            NameEntry e = BY_NAME.get(key(name));
+            if (e != null && (e.expiresAt == 0 || e.expiresAt > now)) {
+                HITS.increment();
+                e.lastAccess = System.nanoTime();
+                if (e.id != UNKNOWN) result.put(name, e.id);
+            } else {
+                MISSES.increment();
+                missing.add(name);
+            }
+        }
+        if (missing.isEmpty()) return result;
+
+        Map<String, Integer> loaded = new HashMap<>();
+        for (int from = 0; from < missing.size(); from += LOOKUP_BATCH) {
+            List<String> batch = missing.subList(from, Math.min(missing.size(), from + LOOKUP_BATCH));
+            String sql = "SELECT user_id, username FROM users WHERE username IN (" + SqlUtil.paddedPlaceholders(batch.size()) + ")";
+            try (Connection conn = DBConnection.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                SqlUtil.bindPaddedStrings(pstmt, 1, batch);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    int id = rs.getInt("user_id");
+                    String name = rs.getString("username");
+                    loaded.put(key(name), id);
+                    put(id, name);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return result;
+            }
+        }
+        for (String name : missing) {
+            Integer id = loaded.get(key(name));
+            if (id != null) result.put(name, id);
+            else BY_NAME.put(key(name), new NameEntry(UNKNOWN, now + NEGATIVE_TTL_MS));
+        }
+        evictIfNeeded();
+        return result;
+    }
+
+    /** Returns the username for {@code userId}, or null if no such user exists. */
+    public static String resolveName(int userId) {
+        return resolveNames(new int[]{userId}).get(userId);
+    }
+
+    public static Map<Integer, String> resolveNames(int[] userIds) {
+        Map<Integer, String> result = new HashMap<>();
+        int[] missing = new int[userIds.length];
+        int misses = 0;
+        for (int id : userIds) {
+            IdEntry e = BY_ID.get(id);
+            if (e != null) {
+                HITS.increment();
+                e.lastAccess = System.nanoTime();
+                result.put(id, e.name);
+            } else if (!result.containsKey(id)) {
+                MISSES.increment();
+                missing[misses++] = id;
+            }
+        }
+        if (misses == 0) return result;
+
+        missing = Arrays.stream(missing, 0, misses).distinct().toArray();
+        for (int from = 0; from < missing.length; from += LOOKUP_BATCH) {
+            int n = Math.min(LOOKUP_BATCH, missing.length - from);
+            int[] batch = Arrays.copyOfRange(missing, from, from + n);
+            String sql = "SELECT user_id, username FROM users WHERE user_id IN (" + SqlUtil.paddedPlaceholders(n) + ")";
+            try (Connection conn = DBConnection.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                SqlUtil.bindPaddedInts(pstmt, 1, batch, n);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    int id = rs.getInt("user_id");
+                    String name = rs.getString("username");
+                    result.put(id, name);
+                    put(id, name);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                break;
+            }
+        }
+        evictIfNeeded();
+        return result;
+    }
+
+    /** Records a known mapping, replacing any negative entry (e.g. right after registration). */
+    public static void put(int userId, String username) {
+        BY_NAME.put(key(username), new NameEntry(userId, 0));
+        BY_ID.put(userId, new IdEntry(username));
+    }
+
+    public static void invalidate(String username) {
+        NameEntry e = BY_NAME.remove(key(username));
+        if (e != null && e.id != UNKNOWN) BY_ID.remove(e.id);
+    }
+
+    public static long hits() {
+        return HITS.sum();
+    }
+
+    public static long misses() {
+        return MISSES.sum();
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase();
+    }
+
+    private static void evictIfNeeded() {
+        if (BY_NAME.size() <= CAPACITY && BY_ID.size() <= CAPACITY) return;
+        if (!EVICTION.tryLock()) return;
+        try {
+            evictOldest(BY_NAME, e -> e.lastAccess);
+            evictOldest(BY_ID, e -> e.lastAccess);
+        } finally {
+            EVICTION.unlock();
+        }
+    }
+
+    private interface AccessTime<V> {
+        long of(V value);
+    }
+
+    private static <K, V> void evictOldest(Map<K, V> map, AccessTime<V> access) {
+        int excess = map.size() - CAPACITY;
+        if (excess <= 0) return;
+        int target = excess + CAPACITY / 10;
+        long[] times = new long[map.size()];
+        int n = 0;
+        for (V v : map.values()) {
+            if (n == times.length) break;
+            times[n++] = access.of(v);
+        }
+        Arrays.sort(times, 0, n);
+        long cutoff = times[Math.min(target, n) - 1];
+        map.values().removeIf(v -> access.of(v) <= cutoff);
+    }
+}
@@ -0,0 +1,345 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Typeahead index over usernames and display-name words. Keys live in a sorted
+ * array searched by binary search for the prefix range; users registered since
+ * the last rebuild sit in a small unsorted tail. Results are ranked by follower
+ * count. Short prefixes with huge ranges are answered by walking the most
+ * followed users first, for a bounded number of steps, before falling back to
+ * the range. Until the initial load finishes only users added since startup
+ * are found; nothing waits for it.
+ */
+public class UserSearchIndex {
+
+    public static class Match {
+        public final int userId;
+        public final String username;
+        public final String displayName;
+        public final int followers;
+
+        public Match(int userId, String username, String displayName, int followers) {
+            this.userId = userId;
+            this.username = username;
+            this.displayName = displayName;
+            this.followers = followers;
+        }
+    }
+
+    private static final int TAIL_LIMIT = 1024;
+    private static final int DENSE_RANGE = 4096;
+    // Ranked users a dense prefix may walk per requested match before it scans the key range instead.
+    private static final int DENSE_WALK_FACTOR = 64;
+
+    private static final String LOAD_USERS_SQL =
+            "SELECT user_id, username, display_name FROM users WHERE user_id > ? ORDER BY user_id LIMIT ?";
+    private static final String LOAD_FOLLOWERS_SQL = "SELECT following_id, COUNT(*) AS followers FROM follows GROUP BY following_id";
+
+    private static volatile UserSearchIndex instance;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean loaded;
+
+    private String[] keys = new String[0];
+    private int[] keyIds = new int[0];
+    private final List<String> tailKeys = new ArrayList<>();
+    private final List<Integer> tailIds = new ArrayList<>();
+
+    private String[] usernames = new String[16];
+    private String[] displayNames = new String[16];
+    // Lower-cased username and display-name words of each user, split once.
+    private String[][] userKeys = new String[16][];
+    private int[] followers = new int[16];
+    private int[] byFollowers = new int[0];
+    // Position of each user in byFollowers; only valid where byFollowers[rankPos[id]] == id.
+    private int[] rankPos = new int[16];
+
+    public static UserSearchIndex getInstance() {
+        UserSearchIndex i = instance;
+        if (i == null) {
+            synchronized (UserSearchIndex.class) {
+                i = instance;
+                if (i == null) {
+                    i = new UserSearchIndex();
+                    Thread loader = new Thread(i::bulkLoad, "user-index-loader");
+                    loader.setDaemon(true);
+                    loader.start();
+                    instance = i;
+                }
+            }
+        }
+        return i;
+    }
+
+    public void addUser(int userId, String username, String displayName) {
+        lock.writeLock().lock();
+        try {
+            ensureCapacity(userId);
+            if (usernames[userId] != null) return;
+            usernames[userId] = username;
+            displayNames[userId] = displayName;
+            userKeys[userId] = keysFor(username, displayName);
+            for (String key : userKeys[userId]) {
+                tailKeys.add(key);
+                tailIds.add(userId);
+            }
+            if (tailKeys.size() > TAIL_LIMIT) rebuild();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void adjustFollowers(int userId, int delta) {
+        lock.writeLock().lock();
+        try {
+            ensureCapacity(userId);
+            followers[userId] = Math.max(0, followers[userId] + delta);
+            moveInRanking(userId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<Match> suggest(String prefix, int limit) {
+        List<Match> result = new ArrayList<>();
+        if (prefix == null || prefix.trim().isEmpty() || limit <= 0) return result;
+        String p = prefix.trim().toLowerCase();
+        if (p.startsWith("@")) p = p.substring(1);
+
+        lock.readLock().lock();
+        try {
+            int lo = lowerBound(p);
+            int hi = lowerBound(p + Character.MAX_VALUE);
+
+            PriorityQueue<Integer> top = new PriorityQueue<>(limit + 1,
+                    Comparator.<Integer>comparingInt(id -> followers[id]).thenComparing(id -> -id));
+            Set<Integer> seen = new HashSet<>();
+            if (hi - lo > DENSE_RANGE) {
+                // Dense prefix: the most followed users usually match early, so walk them in follower order.
+                int steps = Math.min(byFollowers.length, limit * DENSE_WALK_FACTOR);
+                for (int i = 0; i < steps && top.size() < limit; i++) {
+                    if (matches(byFollowers[i], p)) offer(top, seen, byFollowers[i], limit);
+                }
+                if (top.size() < limit) {
+                    for (int i = lo; i < hi; i++) offer(top, seen, keyIds[i], limit);
+                }
+            } else {
+                for (int i = lo; i < hi; i++) offer(top, seen, keyIds[i], limit);
+            }
+            for (int i = 0; i < tailKeys.size(); i++) {
+                if (tailKeys.get(i).startsWith(p)) offer(top, seen, tailIds.get(i), limit);
+            }
+
+            while (!top.isEmpty()) {
+                int id = top.poll();
+                result.add(new Match(id, usernames[id], displayNames[id], followers[id]));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private void offer(PriorityQueue<Integer> top, Set<Integer> seen, int id, int limit) {
+        if (!seen.add(id)) return;
+        top.add(id);
+        if (top.size() > limit) top.poll();
+    }
+
+    private boolean matches(int id, String p) {
+        for (String key : userKeys[id]) {
+            if (key.startsWith(p)) return true;
+        }
+        return false;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static String[] keysFor(String username, String displayName) {
+        List<String> out = new ArrayList<>(3);
+        if (username != null) out.add(username.toLowerCase());
+        if (displayName != null) {
+            for (String word : displayName.toLowerCase().split("\\s+")) {
+                if (!word.isEmpty()) out.add(word);
+            }
+        }
+        return out.toArray(new String[0]);
+    }
+
+    private void ensureCapacity(int userId) {
+        if (userId < usernames.length) return;
+        int size = Math.max(userId + 1, usernames.length * 2);
+        usernames = Arrays.copyOf(usernames, size);
+        displayNames = Arrays.copyOf(displayNames, size);
+        userKeys = Arrays.copyOf(userKeys, size);
+        followers = Arrays.copyOf(followers, size);
+        rankPos = Arrays.copyOf(rankPos, size);
+    }
+
+    // Merges the tail into the sorted arrays and refreshes the follower ordering. Caller holds the write lock.
+    private void rebuild() {
+        int total = 0;
+        for (String name : usernames) if (name != null) total++;
+
+        List<String> allKeys = new ArrayList<>(total * 2);
+        List<Integer> allIds = new ArrayList<>(total * 2);
+        for (int id = 0; id < usernames.length; id++) {
+            if (usernames[id] == null) continue;
+            for (String key : userKeys[id]) {
+                allKeys.add(key);
+                allIds.add(id);
+            }
+        }
+        Integer[] order = new Integer[allKeys.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparing(allKeys::get));
+
+        keys = new String[order.length];
+        keyIds = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            keys[i] = allKeys.get(order[i]);
+            keyIds[i] = allIds.get(order[i]);
+        }
+        tailKeys.clear();
+        tailIds.clear();
+        rankByFollowers();
+    }
+
+    private void rankByFollowers() {
+        int total = 0;
+        for (String name : usernames) if (name != null) total++;
+        Integer[] ranked = new Integer[total];
+        int n = 0;
+        for (int id = 0; id < usernames.length; id++) if (usernames[id] != null) ranked[n++] = id;
+        Arrays.sort(ranked, (a, b) -> ranksBefore(a, b) ? -1 : ranksBefore(b, a) ? 1 : 0);
+        byFollowers = new int[total];
+        for (int i = 0; i < total; i++) {
+            byFollowers[i] = ranked[i];
+            rankPos[ranked[i]] = i;
+        }
+    }
+
+    // Follower count descending, then user id, so every user has one position.
+    private boolean ranksBefore(int a, int b) {
+        return followers[a] != followers[b] ? followers[a] > followers[b] : a < b;
+    }
+
+    /**
+     * Slides one user whose follower count changed to its new place in
+     * byFollowers: a binary search for the spot and one array shift, instead
+     * of re-sorting everyone. Users registered since the last rebuild are not
+     * ranked yet and are left to it. Caller holds the write lock.
+     */
+    private void moveInRanking(int userId) {
+        int pos = rankPos[userId];
+        if (pos >= byFollowers.length || byFollowers[pos] != userId) return;
+        int target;
+        if (pos > 0 && ranksBefore(userId, byFollowers[pos - 1])) {
+            int lo = 0;
+            int hi = pos;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ranksBefore(userId, byFollowers[mid])) hi = mid;
+                else lo = mid + 1;
+            }
+            target = lo;
+            System.arraycopy(byFollowers, target, byFollowers, target + 1, pos - target);
+        } else if (pos + 1 < byFollowers.length && ranksBefore(byFollowers[pos + 1], userId)) {
+            int lo = pos + 1;
+            int hi = byFollowers.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ranksBefore(byFollowers[mid], userId)) lo = mid + 1;
+                else hi = mid;
+            }
+            target = lo - 1;
+            System.arraycopy(byFollowers, pos + 1, byFollowers, pos, target - pos);
+        } else {
+            return;
+        }
+        byFollowers[target] = userId;
+        for (int i = Math.min(pos, target); i <= Math.max(pos, target); i++) rankPos[byFollowers[i]] = i;
+    }
+
+    private void bulkLoad() {
+        int lastId = 0;
+        int batch = 10000;
+        try (Connection conn = DBConnection.getConnection()) {
+            PreparedStatement users = conn.prepareStatement(LOAD_USERS_SQL);
+            while (true) {
+                users.setInt(1, lastId);
+                users.setInt(2, batch);
+                int rows = 0;
+                ResultSet rs = users.executeQuery();
+                lock.writeLock().lock();
+                try {
+                    while (rs.next()) {
+                        lastId = rs.getInt("user_id");
+                        ensureCapacity(lastId);
+                        rows++;
+                        // Users registered during the load are already in the tail.
+                        if (usernames[lastId] != null) continue;
+                        usernames[lastId] = rs.getString("username");
+                        displayNames[lastId] = rs.getString("display_name");
+                        userKeys[lastId] = keysFor(usernames[lastId], displayNames[lastId]);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                rs.close();
+                if (rows < batch) break;
+            }
+
+            ResultSet rs = conn.prepareStatement(LOAD_FOLLOWERS_SQL).executeQuery();
+            lock.writeLock().lock();
+            try {
+                while (rs.next()) {
+                    int id = rs.getInt("following_id");
+                    ensureCapacity(id);
+                    followers[id] = rs.getInt("followers");
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (SQLException e) {
+            System.err.println("[USER SEARCH] Bulk load failed: " + e.getMessage());
+        } finally {
+            lock.writeLock().lock();
+            try {
+                rebuild();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            loaded = true;
+        }
+    }
+}
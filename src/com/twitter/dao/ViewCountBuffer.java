@@ -0,0 +1,220 @@
+package com.twitter.dao;
+
+import com.twitter.util.DBConnection;
+import com.twitter.util.ShardRouter;
+import com.twitter.util.SqlUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind accumulator for post view counts. Increments land in lock-striped
+ * open-addressing tables (no allocation on the hot path) and are flushed as
+ * aggregated {@code UPDATE ... CASE} statements on a schedule, when the number of
+ * unflushed views crosses {@code maxUnflushedViews}, and on shutdown.
+ */
+public class ViewCountBuffer {
+
+    private static final int MAX_ROWS_PER_UPDATE = 256;
+
+    private static final class Stripe {
+        int[] keys;
+        int[] counts;
+        int size;
+        // Spare arrays swapped in on drain so flushing does not allocate either.
+        int[] spareKeys;
+        int[] spareCounts;
+
+        Stripe(int capacity) {
+            keys = new int[capacity];
+            counts = new int[capacity];
+            spareKeys = new int[capacity];
+            spareCounts = new int[capacity];
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final long maxUnflushedViews;
+    private final AtomicLong unflushed = new AtomicLong();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+
+    public ViewCountBuffer(int stripeCount, long flushIntervalMillis, long maxUnflushedViews) {
+        int n = SqlUtil.paddedSize(Math.max(1, stripeCount));
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) stripes[i] = new Stripe(64);
+        this.stripeMask = n - 1;
+        this.maxUnflushedViews = maxUnflushedViews;
+
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "view-count-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        DBConnection.addShutdownTask(this::close);
+    }
+
+    public void increment(int postId) {
+        add(postId, 1);
+        if (unflushed.incrementAndGet() >= maxUnflushedViews && flushQueued.compareAndSet(false, true)) {
+            flusher.execute(this::flush);
+        }
+    }
+
+    public long getUnflushedViews() {
+        return unflushed.get();
+    }
+
+    public synchronized void flush() {
+        flushQueued.set(false);
+        int[] ids = new int[MAX_ROWS_PER_UPDATE];
+        int[] deltas = new int[MAX_ROWS_PER_UPDATE];
+        int pending = 0;
+
+        for (Stripe stripe : stripes) {
+            int[] keys;
+            int[] counts;
+            synchronized (stripe) {
+                if (stripe.size == 0) continue;
+                keys = stripe.keys;
+                counts = stripe.counts;
+                stripe.keys = stripe.spareKeys;
+                stripe.counts = stripe.spareCounts;
+                stripe.spareKeys = keys;
+                stripe.spareCounts = counts;
+                stripe.size = 0;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (counts[i] == 0) continue;
+                ids[pending] = keys[i];
+                deltas[pending] = counts[i];
+                pending++;
+                keys[i] = 0;
+                counts[i] = 0;
+                if (pending == MAX_ROWS_PER_UPDATE) {
+                    write(ids, deltas, pending);
+                    pending = 0;
+                }
+            }
+        }
+        if (pending > 0) write(ids, deltas, pending);
+    }
+
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+
+    private void write(int[] ids, int[] deltas, int count) {
+        ShardRouter shards = DBConnection.getShards();
+        if (!shards.isSharded()) {
+            write(shards, 0, ids, deltas, count);
+            return;
+        }
+        Map<Integer, List<Integer>> byShard;
+        try {
+            byShard = PostOwners.groupByShard(ids, count);
+        } catch (SQLException e) {
+            for (int i = 0; i < count; i++) add(ids[i], deltas[i]);
+            System.err.println("[VIEWS] Flush failed, will retry: " + e.getMessage());
+            return;
+        }
+        Map<Integer, Integer> deltaOf = new HashMap<>();
+        for (int i = 0; i < count; i++) deltaOf.put(ids[i], deltas[i]);
+        for (Map.Entry<Integer, List<Integer>> group : byShard.entrySet()) {
+            List<Integer> postIds = group.getValue();
+            int[] shardIds = new int[postIds.size()];
+            int[] shardDeltas = new int[postIds.size()];
+            for (int i = 0; i < shardIds.length; i++) {
+                shardIds[i] = postIds.get(i);
+                shardDeltas[i] = deltaOf.remove(shardIds[i]);
+            }
+            write(shards, group.getKey(), shardIds, shardDeltas, shardIds.length);
+        }
+        // Views of posts that no shard has any more.
+        long dropped = 0;
+        for (int delta : deltaOf.values()) dropped += delta;
+        unflushed.addAndGet(-dropped);
+    }
+
+    private void write(ShardRouter shards, int shard, int[] ids, int[] deltas, int count) {
+        int padded = SqlUtil.paddedSize(count);
+        StringBuilder sql = new StringBuilder("UPDATE posts SET view_count = view_count + CASE post_id");
+        for (int i = 0; i < padded; i++) sql.append(" WHEN ? THEN ?");
+        sql.append(" ELSE 0 END WHERE post_id IN (").append(SqlUtil.placeholders(padded)).append(")");
+
+        try (Connection conn = shards.connection(shard);
+             PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            int idx = 1;
+            for (int i = 0; i < padded; i++) {
+                int j = Math.min(i, count - 1);
+                pstmt.setInt(idx++, ids[j]);
+                pstmt.setInt(idx++, deltas[j]);
+            }
+            SqlUtil.bindPaddedInts(pstmt, idx, ids, count);
+            pstmt.executeUpdate();
+            long total = 0;
+            TrendingEngine trending = TrendingEngine.getInstance();
+            for (int i = 0; i < count; i++) {
+                total += deltas[i];
+                if (!TrendingEngine.UNIQUE_VIEWS) trending.recordViews(ids[i], deltas[i]);
+            }
+            unflushed.addAndGet(-total);
+        } catch (SQLException e) {
+            // Keep the deltas so the next flush retries them.
+            for (int i = 0; i < count; i++) add(ids[i], deltas[i]);
+            System.err.println("[VIEWS] Flush failed, will retry: " + e.getMessage());
+        }
+    }
+
+    private void add(int postId, int delta) {
+        Stripe stripe = stripes[mix(postId) & stripeMask];
+        synchronized (stripe) {
+            if ((stripe.size + 1) * 4 > stripe.keys.length * 3) grow(stripe);
+            int mask = stripe.keys.length - 1;
+            int i = (mix(postId) >>> 8) & mask;
+            while (stripe.counts[i] != 0 && stripe.keys[i] != postId) i = (i + 1) & mask;
+            if (stripe.counts[i] == 0) {
+                stripe.keys[i] = postId;
+                stripe.size++;
+            }
+            stripe.counts[i] += delta;
+        }
+    }
+
+    private static void grow(Stripe stripe) {
+        int[] oldKeys = stripe.keys;
+        int[] oldCounts = stripe.counts;
+        int capacity = oldKeys.length * 2;
+        stripe.keys = new int[capacity];
+        stripe.counts = new int[capacity];
+        stripe.spareKeys = new int[capacity];
+        stripe.spareCounts = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldCounts[j] == 0) continue;
+            int i = (mix(oldKeys[j]) >>> 8) & mask;
+            while (stripe.counts[i] != 0) i = (i + 1) & mask;
+            stripe.keys[i] = oldKeys[j];
+            stripe.counts[i] = oldCounts[j];
+        }
+    }
+
+    private static int mix(int x) {
+        x ^= x >>> 16;
+        x *= 0x7feb352d;
+        x ^= x >>> 15;
+        return x;
+    }
+}
@@ -0,0 +1,459 @@
+package com.twitter.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ConnectionPool implements ConnectionPoolMBean {
+
+    // A stack trace per borrow is too costly for the hot path; leaks name the borrowing thread unless this is set.
+    private static final boolean TRACE_BORROWS = Boolean.getBoolean("twitter.db.pool.traceBorrows");
+
+    public static class Stats {
+        public final int active;
+        public final int idle;
+        public final int total;
+        public final long borrows;
+        public final long timeouts;
+        public final long validationFailures;
+        public final long leaksDetected;
+        public final double avgBorrowWaitMillis;
+        public final double maxBorrowWaitMillis;
+        public final long statementCacheHits;
+        public final long statementCacheMisses;
+        public final long statementCacheEvictions;
+
+        public Stats(int active, int idle, int total, long borrows, long timeouts, long validationFailures,
+                     long leaksDetected, double avgBorrowWaitMillis, double maxBorrowWaitMillis,
+                     long statementCacheHits, long statementCacheMisses, long statementCacheEvictions) {
+            this.active = active;
+            this.idle = idle;
+            this.total = total;
+            this.borrows = borrows;
+            this.timeouts = timeouts;
+            this.validationFailures = validationFailures;
+            this.leaksDetected = leaksDetected;
+            this.avgBorrowWaitMillis = avgBorrowWaitMillis;
+            this.maxBorrowWaitMillis = maxBorrowWaitMillis;
+            this.statementCacheHits = statementCacheHits;
+            this.statementCacheMisses = statementCacheMisses;
+            this.statementCacheEvictions = statementCacheEvictions;
+        }
+
+        public double statementCacheHitRatio() {
+            long lookups = statementCacheHits + statementCacheMisses;
+            return lookups == 0 ? 0 : (double) statementCacheHits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("active=%d idle=%d total=%d borrows=%d timeouts=%d invalid=%d leaks=%d wait(avg=%.2fms max=%.2fms) " +
+                            "stmtCache(hits=%d misses=%d evictions=%d)",
+                    active, idle, total, borrows, timeouts, validationFailures, leaksDetected,
+                    avgBorrowWaitMillis, maxBorrowWaitMillis,
+                    statementCacheHits, statementCacheMisses, statementCacheEvictions);
+        }
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final int minIdle;
+    private final long borrowTimeoutMillis;
+    private final long leakThresholdMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final Semaphore permits;
+    private final AtomicInteger total = new AtomicInteger();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder borrowWaitNanos = new LongAdder();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+    private final LongAdder leakCount = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+    private final LongAdder statementEvictions = new LongAdder();
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+
+    public ConnectionPool(String url, String user, String password, int maxSize, int minIdle,
+                          long borrowTimeoutMillis, long leakThresholdMillis, int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.minIdle = Math.min(minIdle, maxSize);
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.validationTimeoutSeconds = 2;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.execute(this::fillMinIdle);
+        long period = Math.max(1000, leakThresholdMillis / 2);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Connection borrow() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        if (!acquired) {
+            timeoutCount.increment();
+            Metrics.markFailed();
+            throw new SQLTransientConnectionException(
+                    "Timed out after " + borrowTimeoutMillis + "ms waiting for a connection (" + stats() + ")");
+        }
+
+        try {
+            PooledConnection pc = null;
+            while (pc == null) {
+                pc = idle.pollFirst();
+                if (pc == null) {
+                    if (reserve()) {
+                        pc = open();
+                        break;
+                    }
+                    // Every slot is taken but we hold a permit, so a pre-warmed connection is on its way to idle.
+                    pc = pollIdle(start);
+                }
+                if (!pc.isUsable()) {
+                    validationFailures.increment();
+                    discard(pc);
+                    pc = null;
+                }
+            }
+
+            recordWait(System.nanoTime() - start);
+            pc.borrowedAt = System.currentTimeMillis();
+            pc.borrowThread = Thread.currentThread().getName();
+            pc.borrowSite = TRACE_BORROWS && leakThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null;
+            pc.leakReported = false;
+            borrowed.add(pc);
+            return pc.lease();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public Stats stats() {
+        long borrows = borrowCount.sum();
+        double avg = borrows == 0 ? 0 : borrowWaitNanos.sum() / 1_000_000.0 / borrows;
+        return new Stats(borrowed.size(), idle.size(), total.get(), borrows, timeoutCount.sum(),
+                validationFailures.sum(), leakCount.sum(), avg, maxBorrowWaitNanos.get() / 1_000_000.0,
+                statementHits.sum(), statementMisses.sum(), statementEvictions.sum());
+    }
+
+    @Override
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    @Override
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public int getTotalCount() {
+        return total.get();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    @Override
+    public long getLeaksDetected() {
+        return leakCount.sum();
+    }
+
+    @Override
+    public double getBorrowWaitMeanMillis() {
+        return borrowWait.meanMicros() / 1000.0;
+    }
+
+    @Override
+    public double getBorrowWaitP99Millis() {
+        return borrowWait.percentileMicros(99) / 1000.0;
+    }
+
+    @Override
+    public double getBorrowWaitMaxMillis() {
+        return maxBorrowWaitNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public double getStatementCacheHitRatio() {
+        return stats().statementCacheHitRatio();
+    }
+
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) discard(pc);
+    }
+
+    // Claims one of the maxSize physical connections; the caller must then open() it.
+    private boolean reserve() {
+        while (true) {
+            int n = total.get();
+            if (n >= maxSize) return false;
+            if (total.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    // Opens the slot taken by reserve(), giving it back if the connection cannot be made.
+    private PooledConnection open() throws SQLException {
+        try {
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException | RuntimeException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private PooledConnection pollIdle(long start) throws SQLException {
+        long remaining = borrowTimeoutMillis - (System.nanoTime() - start) / 1_000_000;
+        try {
+            PooledConnection pc = idle.pollFirst(Math.max(1, remaining), TimeUnit.MILLISECONDS);
+            if (pc != null) return pc;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        timeoutCount.increment();
+        Metrics.markFailed();
+        throw new SQLTransientConnectionException(
+                "Timed out after " + borrowTimeoutMillis + "ms waiting for a connection (" + stats() + ")");
+    }
+
+    private void release(PooledConnection pc) {
+        if (!borrowed.remove(pc)) return;
+        try {
+            pc.closeOpenStatements();
+            if (!pc.physical.getAutoCommit()) {
+                pc.physical.rollback();
+                pc.physical.setAutoCommit(true);
+            }
+            if (closed) discard(pc);
+            else idle.offerFirst(pc);
+        } catch (SQLException e) {
+            discard(pc);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledConnection pc) {
+        total.decrementAndGet();
+        try {
+            pc.physical.close();
+        } catch (SQLException e) {
+        }
+    }
+
+    private void recordWait(long nanos) {
+        borrowCount.increment();
+        borrowWaitNanos.add(nanos);
+        maxBorrowWaitNanos.accumulateAndGet(nanos, Math::max);
+        borrowWait.recordNanos(nanos);
+        Metrics.recordBorrowWait(nanos);
+    }
+
+    private void housekeep() {
+        if (leakThresholdMillis > 0) {
+            long now = System.currentTimeMillis();
+            for (PooledConnection pc : borrowed) {
+                if (!pc.leakReported && now - pc.borrowedAt > leakThresholdMillis) {
+                    pc.leakReported = true;
+                    leakCount.increment();
+                    System.err.println("[DB POOL] Possible connection leak: held for " + (now - pc.borrowedAt) + "ms by "
+                            + pc.borrowThread + (pc.borrowSite == null ? " (-Dtwitter.db.pool.traceBorrows=true for the stack)" : ""));
+                    if (pc.borrowSite != null) pc.borrowSite.printStackTrace();
+                }
+            }
+        }
+        fillMinIdle();
+    }
+
+    private void fillMinIdle() {
+        while (!closed && idle.size() < minIdle && reserve()) {
+            try {
+                idle.offerLast(open());
+            } catch (SQLException e) {
+                System.err.println("[DB POOL] Could not pre-warm connection: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private class PooledConnection {
+        final Connection physical;
+        final List<Statement> openStatements = new ArrayList<>();
+        final StatementCache statementCache =
+                new StatementCache(statementCacheSize, statementHits, statementMisses, statementEvictions);
+        volatile long borrowedAt;
+        volatile String borrowThread;
+        volatile Throwable borrowSite;
+        volatile boolean leakReported;
+        long lastReturned = System.currentTimeMillis();
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        boolean isUsable() {
+            try {
+                // Skip the round trip for connections that were returned moments ago.
+                if (System.currentTimeMillis() - lastReturned < 500) return !physical.isClosed();
+                return physical.isValid(validationTimeoutSeconds);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        Connection lease() {
+            Lease lease = new Lease(this);
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, lease);
+        }
+
+        void closeOpenStatements() {
+            for (Statement s : openStatements) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                }
+            }
+            openStatements.clear();
+            lastReturned = System.currentTimeMillis();
+        }
+    }
+
+    private class Lease implements InvocationHandler {
+        private final PooledConnection pc;
+        private boolean returned;
+
+        Lease(PooledConnection pc) {
+            this.pc = pc;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        release(pc);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || pc.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pc.physical + "]";
+                default:
+                    break;
+            }
+            if (returned) throw new SQLException("Connection has already been returned to the pool");
+
+            if (name.equals("prepareStatement") && isCacheable(args)) {
+                String key = args.length == 1 ? (String) args[0] : args[0] + "#keys=" + args[1];
+                Statement ps = pc.statementCache.checkout(key, (Connection) proxy,
+                        () -> (PreparedStatement) invokePhysical(method, args));
+                if (Metrics.ENABLED) ps = InstrumentedStatement.wrap(ps, (String) args[0]);
+                pc.openStatements.add(ps);
+                return ps;
+            }
+
+            Object result = invokePhysical(method, args);
+            if (result instanceof Statement) {
+                Statement statement = (Statement) result;
+                if (Metrics.ENABLED) {
+                    String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                    statement = InstrumentedStatement.wrap(statement, sql);
+                }
+                // DAOs do not always close their statements; the lease closes them on return.
+                pc.openStatements.add(statement);
+                return statement;
+            }
+            return result;
+        }
+
+        private boolean isCacheable(Object[] args) {
+            if (args.length == 1) return true;
+            return args.length == 2 && args[1] instanceof Integer
+                    && ((Integer) args[1] == Statement.RETURN_GENERATED_KEYS || (Integer) args[1] == Statement.NO_GENERATED_KEYS);
+        }
+
+        private Object invokePhysical(Method method, Object[] args) throws SQLException {
+            try {
+                return method.invoke(pc.physical, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) throw (SQLException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new SQLException(cause);
+            } catch (IllegalAccessException e) {
+                throw new SQLException(e);
+            }
+        }
+    }
+}
+
@@ -0,0 +1,26 @@
+package com.twitter.util;
+
+public interface ConnectionPoolMBean {
+
+    int getActiveCount();
+
+    int getIdleCount();
+
+    int getTotalCount();
+
+    int getMaxSize();
+
+    long getBorrowCount();
+
+    long getTimeoutCount();
+
+    long getLeaksDetected();
+
+    double getBorrowWaitMeanMillis();
+
+    double getBorrowWaitP99Millis();
+
+    double getBorrowWaitMaxMillis();
+
+    double getStatementCacheHitRatio();
+}
@@ -1,15 +1,158 @@
 package com.twitter.util;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class DBConnection {
-    private static final String URL = "jdbc:mysql://localhost:3306/TwitterDB?useSSL=false&serverTimezone=UTC";
-    private static final String USER = "root";
-    private static final String PASSWORD = "";
+    private static final String URL = System.getProperty("twitter.db.url",
+            "jdbc:mysql://localhost:3306/TwitterDB?useSSL=false&serverTimezone=UTC&useServerPrepStmts=true&rewriteBatchedStatements=true");
+    private static final String USER = System.getProperty("twitter.db.user", "root");
+    private static final String PASSWORD = System.getProperty("twitter.db.password", "");
+    // Comma-separated JDBC URLs of read replicas; same credentials as the primary.
+    private static final String REPLICA_URLS = System.getProperty("twitter.db.replicas", "");
+    private static final long STICKY_WINDOW_MS = Long.getLong("twitter.db.stickyWindowMs", 5000);
+    private static final long REPLICA_CHECK_MS = Long.getLong("twitter.db.replicaCheckMs", 2000);
+    // Comma-separated JDBC URLs of shards 1..N; the primary is shard 0. Order matters: a URL's position is its shard id.
+    private static final String SHARD_URLS = System.getProperty("twitter.db.shards", "");
+    private static final long SHARD_MAP_REFRESH_MS = Long.getLong("twitter.db.shardMapRefreshMs", 5000);
 
+    private static final int POOL_MAX_SIZE = Integer.getInteger("twitter.db.pool.maxSize", 10);
+    private static final int POOL_MIN_IDLE = Integer.getInteger("twitter.db.pool.minIdle", 2);
+    private static final long BORROW_TIMEOUT_MS = Long.getLong("twitter.db.pool.borrowTimeoutMs", 5000);
+    private static final long LEAK_THRESHOLD_MS = Long.getLong("twitter.db.pool.leakThresholdMs", 30000);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("twitter.db.pool.statementCacheSize", 64);
+
+    private static final List<Runnable> SHUTDOWN_TASKS = new CopyOnWriteArrayList<>();
+    private static volatile ConnectionPool pool;
+    private static volatile ReplicaSet replicas;
+    private static volatile ShardRouter shards;
+
+    /** A primary connection: every write, and reads that must see the latest data. */
     public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(URL, USER, PASSWORD);
+        return getPool().borrow();
+    }
+
+    /**
+     * A connection for a read on behalf of {@code sessionUserId}: a replica, unless
+     * that user wrote within the last {@code twitter.db.stickyWindowMs} or no replica is healthy.
+     */
+    public static Connection getReadConnection(int sessionUserId) throws SQLException {
+        return getReplicas().borrowForRead(sessionUserId);
+    }
+
+    /** Records a committed write by {@code sessionUserId} so their next reads see it. */
+    public static void markWrite(int sessionUserId) {
+        getReplicas().markWrite(sessionUserId);
+    }
+
+    public static ReplicaSet getReplicas() {
+        ReplicaSet r = replicas;
+        if (r == null) {
+            ConnectionPool primary = getPool();
+            synchronized (DBConnection.class) {
+                r = replicas;
+                if (r == null) {
+                    List<String> urls = new ArrayList<>();
+                    List<ConnectionPool> pools = new ArrayList<>();
+                    for (String url : REPLICA_URLS.split(",")) {
+                        if (url.isBlank()) continue;
+                        ConnectionPool p = new ConnectionPool(url.trim(), USER, PASSWORD, POOL_MAX_SIZE, POOL_MIN_IDLE,
+                                BORROW_TIMEOUT_MS, LEAK_THRESHOLD_MS, STATEMENT_CACHE_SIZE);
+                        if (Metrics.ENABLED) Metrics.register("com.twitter:type=ConnectionPool,name=replica-" + pools.size(), p);
+                        urls.add(url.trim());
+                        pools.add(p);
+                    }
+                    r = new ReplicaSet(primary, pools, urls, STICKY_WINDOW_MS, REPLICA_CHECK_MS);
+                    if (Metrics.ENABLED && !pools.isEmpty()) Metrics.register("com.twitter:type=ReplicaSet", r);
+                    replicas = r;
+                }
+            }
+        }
+        return r;
+    }
+
+    public static ShardRouter getShards() {
+        ShardRouter s = shards;
+        if (s == null) {
+            ConnectionPool primary = getPool();
+            synchronized (DBConnection.class) {
+                s = shards;
+                if (s == null) {
+                    List<String> urls = new ArrayList<>();
+                    List<ConnectionPool> pools = new ArrayList<>();
+                    urls.add(URL);
+                    pools.add(primary);
+                    for (String url : SHARD_URLS.split(",")) {
+                        if (url.isBlank()) continue;
+                        ConnectionPool p = new ConnectionPool(url.trim(), USER, PASSWORD, POOL_MAX_SIZE, POOL_MIN_IDLE,
+                                BORROW_TIMEOUT_MS, LEAK_THRESHOLD_MS, STATEMENT_CACHE_SIZE);
+                        if (Metrics.ENABLED) Metrics.register("com.twitter:type=ConnectionPool,name=shard-" + pools.size(), p);
+                        urls.add(url.trim());
+                        pools.add(p);
+                    }
+                    s = new ShardRouter(pools, urls, SHARD_MAP_REFRESH_MS,
+                            Integer.getInteger("twitter.db.shardThreads", 4 * pools.size()));
+                    if (Metrics.ENABLED && pools.size() > 1) Metrics.register("com.twitter:type=ShardRouter", s);
+                    shards = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    public static ConnectionPool getPool() {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized (DBConnection.class) {
+                p = pool;
+                if (p == null) {
+                    p = new ConnectionPool(URL, USER, PASSWORD, POOL_MAX_SIZE, POOL_MIN_IDLE,
+                            BORROW_TIMEOUT_MS, LEAK_THRESHOLD_MS, STATEMENT_CACHE_SIZE);
+                    Runtime.getRuntime().addShutdownHook(new Thread(DBConnection::shutdown, "db-pool-shutdown"));
+                    if (Metrics.ENABLED) Metrics.register("com.twitter:type=ConnectionPool", p);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    public static int maxPoolSize() {
+        return POOL_MAX_SIZE;
+    }
+
+    public static ConnectionPool.Stats getPoolStats() {
+        return getPool().stats();
+    }
+
+    /** Registers work (e.g. flushing write-behind buffers) that must run before the pool is closed. */
+    public static void addShutdownTask(Runnable task) {
+        SHUTDOWN_TASKS.add(task);
+    }
+
+    public static synchronized void shutdown() {
+        for (Runnable task : SHUTDOWN_TASKS) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        SHUTDOWN_TASKS.clear();
+        if (shards != null) {
+            shards.close();
+            shards = null;
+        }
+        if (replicas != null) {
+            replicas.close();
+            replicas = null;
+        }
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
     }
-}
\ No newline at end of file
+}
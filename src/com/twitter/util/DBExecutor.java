@@ -0,0 +1,79 @@
+package com.twitter.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs blocking DAO calls off the caller's thread. At most
+ * {@code twitter.async.concurrency} calls (default: the pool size) touch JDBC at
+ * once, so a burst of UI requests queues here instead of timing out in
+ * {@link ConnectionPool#borrow()}. Uses a virtual thread per task when the
+ * runtime has them and falls back to a fixed pool of daemon threads otherwise.
+ * A future cancelled before its task starts never reaches the database.
+ */
+public final class DBExecutor {
+
+    private static final int CONCURRENCY = Integer.getInteger("twitter.async.concurrency", DBConnection.maxPoolSize());
+
+    private static final Semaphore PERMITS = new Semaphore(CONCURRENCY);
+    private static final ExecutorService EXECUTOR = create();
+
+    static {
+        DBConnection.addShutdownTask(DBExecutor::shutdown);
+    }
+
+    private DBExecutor() {
+    }
+
+    public static <T> CompletableFuture<T> supply(Supplier<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        EXECUTOR.execute(() -> {
+            if (future.isDone()) return;
+            PERMITS.acquireUninterruptibly();
+            try {
+                if (!future.isDone()) future.complete(work.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                PERMITS.release();
+            }
+        });
+        return future;
+    }
+
+    public static CompletableFuture<Void> run(Runnable work) {
+        return supply(() -> {
+            work.run();
+            return null;
+        });
+    }
+
+    private static ExecutorService create() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger n = new AtomicInteger();
+            ThreadFactory factory = r -> {
+                Thread t = new Thread(r, "db-async-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+            return Executors.newFixedThreadPool(CONCURRENCY, factory);
+        }
+    }
+
+    private static void shutdown() {
+        EXECUTOR.shutdown();
+        try {
+            EXECUTOR.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.twitter.util;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog distinct counter with 2^precision registers (standard error
+ * about 1.04 / sqrt(2^precision)). Small sketches keep only their non-zero
+ * registers, sorted, as {@code index << 8 | rank}; they switch to a dense
+ * byte per register once that stops being smaller. Two sketches of the same
+ * precision merge by taking the larger rank of each register, so merging is
+ * order-independent and idempotent. Not thread-safe.
+ */
+public class HyperLogLog {
+
+    private static final byte SPARSE = 0;
+    private static final byte DENSE = 1;
+
+    private final int precision;
+    private final int registerCount;
+    private int[] sparse = new int[8];
+    private int sparseSize;
+    private byte[] dense;
+
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) throw new IllegalArgumentException("precision must be 4..16: " + precision);
+        this.precision = precision;
+        this.registerCount = 1 << precision;
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /** Adds an int value (a user id, say); returns whether the sketch changed. */
+    public boolean offer(int value) {
+        return addHash(mix64(value));
+    }
+
+    public boolean addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        return update(index, rank);
+    }
+
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("precision mismatch: " + precision + " vs " + other.precision);
+        }
+        if (other.dense != null) {
+            for (int i = 0; i < registerCount; i++) if (other.dense[i] != 0) update(i, other.dense[i]);
+        } else {
+            for (int i = 0; i < other.sparseSize; i++) update(other.sparse[i] >>> 8, other.sparse[i] & 0xFF);
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeros;
+        if (dense != null) {
+            zeros = 0;
+            for (byte r : dense) {
+                sum += 1.0 / (1L << r);
+                if (r == 0) zeros++;
+            }
+        } else {
+            zeros = registerCount - sparseSize;
+            sum = zeros;
+            for (int i = 0; i < sparseSize; i++) sum += 1.0 / (1L << (sparse[i] & 0xFF));
+        }
+        double m = registerCount;
+        double alpha = registerCount >= 128 ? 0.7213 / (1 + 1.079 / m) : registerCount == 64 ? 0.709 : registerCount == 32 ? 0.697 : 0.673;
+        double raw = alpha * m * m / sum;
+        // Linear counting is more accurate while many registers are still empty.
+        if (raw <= 2.5 * m && zeros > 0) return Math.round(m * Math.log(m / zeros));
+        return Math.round(raw);
+    }
+
+    public boolean isEmpty() {
+        return dense == null && sparseSize == 0;
+    }
+
+    /**
+     * Compact form: {@code [precision, SPARSE, count hi, count lo, (index hi, index lo, rank)*]}
+     * or {@code [precision, DENSE, register*]}.
+     */
+    public byte[] toBytes() {
+        if (dense != null) {
+            byte[] out = new byte[2 + registerCount];
+            out[0] = (byte) precision;
+            out[1] = DENSE;
+            System.arraycopy(dense, 0, out, 2, registerCount);
+            return out;
+        }
+        byte[] out = new byte[4 + sparseSize * 3];
+        out[0] = (byte) precision;
+        out[1] = SPARSE;
+        out[2] = (byte) (sparseSize >>> 8);
+        out[3] = (byte) sparseSize;
+        for (int i = 0, o = 4; i < sparseSize; i++, o += 3) {
+            int index = sparse[i] >>> 8;
+            out[o] = (byte) (index >>> 8);
+            out[o + 1] = (byte) index;
+            out[o + 2] = (byte) sparse[i];
+        }
+        return out;
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        HyperLogLog hll = new HyperLogLog(bytes[0]);
+        if (bytes[1] == DENSE) {
+            hll.dense = Arrays.copyOfRange(bytes, 2, 2 + hll.registerCount);
+            hll.sparse = null;
+            return hll;
+        }
+        int count = (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+        for (int i = 0, o = 4; i < count; i++, o += 3) {
+            hll.update((bytes[o] & 0xFF) << 8 | (bytes[o + 1] & 0xFF), bytes[o + 2]);
+        }
+        return hll;
+    }
+
+    private boolean update(int index, int rank) {
+        if (dense != null) {
+            if (dense[index] >= rank) return false;
+            dense[index] = (byte) rank;
+            return true;
+        }
+        int pos = findSparse(index);
+        if (pos >= 0) {
+            if ((sparse[pos] & 0xFF) >= rank) return false;
+            sparse[pos] = index << 8 | rank;
+            return true;
+        }
+        // Three bytes per sparse entry against one per dense register.
+        if ((sparseSize + 1) * 3 >= registerCount) {
+            densify();
+            dense[index] = (byte) rank;
+            return true;
+        }
+        pos = -pos - 1;
+        if (sparseSize == sparse.length) sparse = Arrays.copyOf(sparse, sparseSize * 2);
+        System.arraycopy(sparse, pos, sparse, pos + 1, sparseSize - pos);
+        sparse[pos] = index << 8 | rank;
+        sparseSize++;
+        return true;
+    }
+
+    private int findSparse(int index) {
+        int lo = 0, hi = sparseSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midIndex = sparse[mid] >>> 8;
+            if (midIndex < index) lo = mid + 1;
+            else if (midIndex > index) hi = mid - 1;
+            else return mid;
+        }
+        return -(lo + 1);
+    }
+
+    private void densify() {
+        dense = new byte[registerCount];
+        for (int i = 0; i < sparseSize; i++) dense[sparse[i] >>> 8] = (byte) (sparse[i] & 0xFF);
+        sparse = null;
+        sparseSize = 0;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -0,0 +1,159 @@
+package com.twitter.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Statement proxy that times every execute call. Only execute methods do any
+ * work here; everything else is passed straight through, and result sets are
+ * returned unwrapped except for a sample of one in
+ * {@code twitter.metrics.rowSampleRate}, whose rows are counted to estimate
+ * rows returned. Bind values are captured only while bind tracing is on; a
+ * slow query is otherwise logged with the driver's own rendering of the
+ * statement, which for MySQL includes the bound values.
+ */
+class InstrumentedStatement implements InvocationHandler {
+
+    static final int ROW_SAMPLE_RATE = Math.max(1, Integer.getInteger("twitter.metrics.rowSampleRate", 32));
+
+    private final Statement target;
+    private final String preparedSql;
+    private Object[] binds;
+    private String batchSql;
+
+    private InstrumentedStatement(Statement target, String preparedSql) {
+        this.target = target;
+        this.preparedSql = preparedSql;
+    }
+
+    static Statement wrap(Statement target, String preparedSql) {
+        Class<?> type = target instanceof CallableStatement ? CallableStatement.class
+                : target instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+        return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                new Class<?>[]{type}, new InstrumentedStatement(target, preparedSql));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.startsWith("execute")) return execute(method, args);
+
+        switch (name) {
+            case "clearParameters":
+                binds = null;
+                break;
+            case "addBatch":
+                if (args != null && args.length == 1 && args[0] instanceof String) batchSql = (String) args[0];
+                break;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer
+                        && Metrics.queries().isTraceBinds()) {
+                    bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+                }
+                break;
+        }
+        return call(target, method, args);
+    }
+
+    private Object execute(Method method, Object[] args) throws Throwable {
+        String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0]
+                : preparedSql != null ? preparedSql : batchSql;
+        Object[] boundValues = binds == null ? null : binds.clone();
+        Metrics.Scope scope = Metrics.current();
+        long started = System.nanoTime();
+        Object result;
+        try {
+            result = call(target, method, args);
+        } catch (Throwable t) {
+            Metrics.markFailed();
+            Metrics.recordStatement(scope, sql, System.nanoTime() - started, 0, true, boundValues, target);
+            throw t;
+        }
+        long nanos = System.nanoTime() - started;
+        if (result instanceof ResultSet) {
+            Metrics.recordStatement(scope, sql, nanos, -1, false, boundValues, target);
+            if (ThreadLocalRandom.current().nextInt(ROW_SAMPLE_RATE) != 0) return result;
+            return Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                    new Class<?>[]{ResultSet.class}, new SampledResultSet((ResultSet) result, scope, sql));
+        }
+        Metrics.recordStatement(scope, sql, nanos, rowsAffected(result), false, boundValues, target);
+        return result;
+    }
+
+    private static long rowsAffected(Object result) {
+        if (result instanceof Integer || result instanceof Long) return Math.max(0, ((Number) result).longValue());
+        long rows = 0;
+        if (result instanceof int[]) for (int n : (int[]) result) rows += Math.max(0, n);
+        if (result instanceof long[]) for (long n : (long[]) result) rows += Math.max(0, n);
+        return rows;
+    }
+
+    private void bind(int index, Object value) {
+        if (binds == null) binds = new Object[Math.max(8, index + 1)];
+        else if (index >= binds.length) binds = Arrays.copyOf(binds, Math.max(index + 1, binds.length * 2));
+        binds[index] = value;
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Counts the rows of a sampled result set; each counts for ROW_SAMPLE_RATE result sets.
+    private static class SampledResultSet implements InvocationHandler {
+        private final ResultSet target;
+        private final Metrics.Scope scope;
+        private final String sql;
+        private long rows;
+        private boolean finished;
+
+        SampledResultSet(ResultSet target, Metrics.Scope scope, String sql) {
+            this.target = target;
+            this.scope = scope;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next": {
+                    Object more = call(target, method, args);
+                    if ((Boolean) more) rows++;
+                    else finish();
+                    return more;
+                }
+                case "close":
+                    finish();
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            return call(target, method, args);
+        }
+
+        private void finish() {
+            if (finished) return;
+            finished = true;
+            Metrics.recordRows(scope, sql, rows * ROW_SAMPLE_RATE);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.twitter.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Term to {@link PostingList} index. Queries AND all terms together and walk
+ * the shortest list from the newest id backwards, probing the others block by
+ * block, so a top-K page only decodes the blocks it touches.
+ */
+public class InvertedIndex {
+
+    private final Map<String, PostingList> terms = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long documents;
+
+    public static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) return tokens;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start >= 2) tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    public void add(int docId, String text) {
+        Set<String> tokens = tokenize(text);
+        lock.writeLock().lock();
+        try {
+            for (String token : tokens) {
+                terms.computeIfAbsent(token, k -> new PostingList()).add(docId);
+            }
+            documents++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Ids of documents containing every term of {@code query}, newest (largest id) first,
+     * strictly below {@code beforeId} (use {@code Integer.MAX_VALUE} for the first page).
+     */
+    public int[] search(String query, int beforeId, int limit) {
+        Set<String> tokens = tokenize(query);
+        if (tokens.isEmpty() || limit <= 0) return new int[0];
+
+        lock.readLock().lock();
+        try {
+            List<PostingList> lists = new ArrayList<>(tokens.size());
+            for (String token : tokens) {
+                PostingList list = terms.get(token);
+                if (list == null) return new int[0];
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(PostingList::size));
+            return intersectDescending(lists, beforeId, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long documentCount() {
+        lock.readLock().lock();
+        try {
+            return documents;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int termCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long sizeInBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (PostingList list : terms.values()) bytes += list.sizeInBytes();
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int[] intersectDescending(List<PostingList> lists, int beforeId, int limit) {
+        PostingList driver = lists.get(0);
+        int others = lists.size() - 1;
+        int[][] cached = new int[others][PostingList.MAX_BLOCK_SIZE];
+        int[] cachedBlock = new int[others];
+        int[] cachedSize = new int[others];
+        Arrays.fill(cachedBlock, -1);
+
+        int[] result = new int[limit];
+        int found = 0;
+        int[] buf = new int[PostingList.MAX_BLOCK_SIZE];
+
+        for (int b = driver.blockFor(beforeId - 1); b >= 0 && found < limit; b--) {
+            int n = driver.decodeBlock(b, buf);
+            for (int i = n - 1; i >= 0 && found < limit; i--) {
+                int candidate = buf[i];
+                if (candidate >= beforeId) continue;
+
+                boolean all = true;
+                for (int o = 0; o < others && all; o++) {
+                    PostingList other = lists.get(o + 1);
+                    int ob = other.blockFor(candidate);
+                    if (ob < 0) {
+                        all = false;
+                        break;
+                    }
+                    if (ob != cachedBlock[o]) {
+                        cachedSize[o] = other.decodeBlock(ob, cached[o]);
+                        cachedBlock[o] = ob;
+                    }
+                    all = Arrays.binarySearch(cached[o], 0, cachedSize[o], candidate) >= 0;
+                }
+                if (all) result[found++] = candidate;
+            }
+        }
+        return Arrays.copyOf(result, found);
+    }
+}
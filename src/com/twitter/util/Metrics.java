@@ -0,0 +1,143 @@
+package com.twitter.util;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entry point of the instrumentation layer. DAO methods open a {@link Scope};
+ * statements executed while it is open are attributed to it, as is any wait
+ * for a pooled connection. Every operation is published as a
+ * {@code com.twitter:type=DaoOperation} MBean, statement-level figures and the
+ * slow-query log as {@code com.twitter:type=Queries}.
+ * <p>
+ * Recording is a couple of histogram increments per call; set
+ * {@code -Dtwitter.metrics.enabled=false} to turn it off entirely.
+ */
+public final class Metrics {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("twitter.metrics.enabled", "true"));
+
+    private static final Map<String, OperationStats> OPERATIONS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+    private static final QueryLog QUERIES = new QueryLog();
+    private static final Scope NOOP = new Scope(null, null);
+
+    static {
+        if (ENABLED) register("com.twitter:type=Queries", QUERIES);
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Times one DAO call until the returned scope is closed; use with
+     * try-with-resources. The variable is usually unused, so DAO classes
+     * suppress the "try" lint once at class level.
+     */
+    public static Scope enter(String operation) {
+        if (!ENABLED) return NOOP;
+        Scope scope = new Scope(stats(operation), CURRENT.get());
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    public static OperationStats stats(String operation) {
+        OperationStats stats = OPERATIONS.get(operation);
+        if (stats != null) return stats;
+        return OPERATIONS.computeIfAbsent(operation, name -> {
+            OperationStats created = new OperationStats(name);
+            register("com.twitter:type=DaoOperation,name=" + ObjectName.quote(name), created);
+            return created;
+        });
+    }
+
+    public static QueryLog queries() {
+        return QUERIES;
+    }
+
+    /** Innermost open scope on this thread, or null. */
+    static Scope current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes {@code scope} current on this thread, so statements a worker runs on
+     * behalf of a DAO call are attributed to it; returns the scope it replaced,
+     * to be passed back in when the work is done. Never closes anything.
+     */
+    static Scope attach(Scope scope) {
+        Scope previous = CURRENT.get();
+        if (scope == null) CURRENT.remove();
+        else CURRENT.set(scope);
+        return previous;
+    }
+
+    /**
+     * Records one executed statement against {@code scope}, captured when it was
+     * executed. {@code rows} is -1 for queries, whose rows are only counted for
+     * a sample of result sets (see {@link #recordRows}). {@code statement} is
+     * only read if the query turns out slow and no binds were traced.
+     */
+    static void recordStatement(Scope scope, String sql, long nanos, long rows, boolean failed, Object[] binds,
+                                Statement statement) {
+        if (scope != null) scope.stats.recordStatement(rows);
+        QUERIES.record(sql, nanos, rows, failed, binds, statement, scope == null ? null : scope.stats.name());
+    }
+
+    /** Adds rows read from a sampled result set, already scaled up to stand for the unsampled ones. */
+    static void recordRows(Scope scope, String sql, long rows) {
+        if (scope != null) scope.stats.recordRows(rows);
+        QUERIES.recordRows(sql, rows);
+    }
+
+    static void markFailed() {
+        Scope scope = CURRENT.get();
+        if (scope != null) scope.failed = true;
+    }
+
+    static void recordBorrowWait(long nanos) {
+        if (!ENABLED) return;
+        Scope scope = CURRENT.get();
+        if (scope != null) scope.stats.recordBorrowWait(nanos);
+    }
+
+    static void register(String name, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (!server.isRegistered(objectName)) server.registerMBean(mbean, objectName);
+        } catch (Exception e) {
+            System.err.println("[METRICS] Could not register " + name + ": " + e.getMessage());
+        }
+    }
+
+    public static final class Scope implements AutoCloseable {
+        private final OperationStats stats;
+        private final Scope parent;
+        private final long started;
+        private boolean failed;
+
+        private Scope(OperationStats stats, Scope parent) {
+            this.stats = stats;
+            this.parent = parent;
+            this.started = stats == null ? 0 : System.nanoTime();
+        }
+
+        /** Marks the call as failed even if no statement threw (e.g. a DAO swallowed the exception). */
+        public void fail() {
+            failed = true;
+        }
+
+        @Override
+        public void close() {
+            if (stats == null) return;
+            stats.recordCall(System.nanoTime() - started, failed);
+            if (parent == null) CURRENT.remove();
+            else CURRENT.set(parent);
+        }
+    }
+}
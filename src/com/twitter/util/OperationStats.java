@@ -0,0 +1,108 @@
+package com.twitter.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Latency, statement, row and error figures for one DAO method. */
+public class OperationStats implements OperationStatsMBean {
+
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    void recordCall(long nanos, boolean failed) {
+        latency.recordNanos(nanos);
+        if (failed) errors.increment();
+    }
+
+    void recordStatement(long rowCount) {
+        statements.increment();
+        if (rowCount > 0) rows.add(rowCount);
+    }
+
+    void recordRows(long rowCount) {
+        if (rowCount > 0) rows.add(rowCount);
+    }
+
+    void recordBorrowWait(long nanos) {
+        borrowWait.recordNanos(nanos);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    @Override
+    public long getCalls() {
+        return latency.count();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getStatements() {
+        return statements.sum();
+    }
+
+    @Override
+    public long getRowsReturned() {
+        return rows.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return latency.meanMicros() / 1000.0;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latency.percentileMicros(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latency.percentileMicros(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Millis() {
+        return latency.percentileMicros(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latency.maxMicros() / 1000.0;
+    }
+
+    @Override
+    public double getBorrowWaitMeanMillis() {
+        return borrowWait.meanMicros() / 1000.0;
+    }
+
+    @Override
+    public double getBorrowWaitP99Millis() {
+        return borrowWait.percentileMicros(99) / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        borrowWait.reset();
+        errors.reset();
+        statements.reset();
+        rows.reset();
+    }
+}
@@ -0,0 +1,29 @@
+package com.twitter.util;
+
+public interface OperationStatsMBean {
+
+    long getCalls();
+
+    long getErrors();
+
+    long getStatements();
+
+    /** Rows changed by updates plus rows read by queries, the latter estimated from a sample of result sets. */
+    long getRowsReturned();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    double getBorrowWaitMeanMillis();
+
+    double getBorrowWaitP99Millis();
+
+    void reset();
+}
@@ -0,0 +1,184 @@
+package com.twitter.util;
+
+import java.util.Arrays;
+
+/**
+ * Sorted set of document ids stored as varint-encoded deltas in blocks of
+ * {@code BLOCK_SIZE}. Each block records its first id, byte offset and id
+ * count, so a single block can be decoded on its own, walking backwards or
+ * seeking by id. A late id is spliced into the one block it belongs to, which
+ * may grow to {@code MAX_BLOCK_SIZE} before it is split in two.
+ * Not thread-safe; {@link InvertedIndex} guards access.
+ */
+public class PostingList {
+
+    public static final int BLOCK_SIZE = 128;
+    /** Largest number of ids one block can hold; size decode buffers to this. */
+    public static final int MAX_BLOCK_SIZE = 2 * BLOCK_SIZE;
+
+    private byte[] data = new byte[16];
+    private int length;
+    private int[] blockFirst = new int[2];
+    private int[] blockOffset = new int[2];
+    private int[] blockSize = new int[2];
+    private int blocks;
+    private int count;
+    private int last;
+
+    public void add(int id) {
+        if (count > 0 && id <= last) {
+            if (id != last && !contains(id)) insertOutOfOrder(id);
+            return;
+        }
+        append(id);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int blockCount() {
+        return blocks;
+    }
+
+    public int blockFirstId(int block) {
+        return blockFirst[block];
+    }
+
+    public int sizeInBytes() {
+        return length + blocks * 12;
+    }
+
+    /** Decodes block {@code block} into {@code out} (ascending) and returns the number of ids. */
+    public int decodeBlock(int block, int[] out) {
+        int pos = blockOffset[block];
+        int end = block + 1 < blocks ? blockOffset[block + 1] : length;
+        int id = blockFirst[block];
+        int n = 0;
+        out[n++] = id;
+        while (pos < end) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            out[n++] = id;
+        }
+        return n;
+    }
+
+    /** Index of the last block whose first id is {@code <= id}, or -1. */
+    public int blockFor(int id) {
+        int lo = 0;
+        int hi = blocks - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blockFirst[mid] <= id) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    public boolean contains(int id) {
+        int block = blockFor(id);
+        if (block < 0) return false;
+        int[] buf = new int[MAX_BLOCK_SIZE];
+        int n = decodeBlock(block, buf);
+        return Arrays.binarySearch(buf, 0, n, id) >= 0;
+    }
+
+    public int[] toArray() {
+        int[] all = new int[count];
+        int[] buf = new int[MAX_BLOCK_SIZE];
+        int n = 0;
+        for (int b = 0; b < blocks; b++) {
+            int m = decodeBlock(b, buf);
+            System.arraycopy(buf, 0, all, n, m);
+            n += m;
+        }
+        return all;
+    }
+
+    private void append(int id) {
+        if (blocks == 0 || blockSize[blocks - 1] >= BLOCK_SIZE) {
+            insertBlock(blocks, id, length, 1);
+        } else {
+            if (length + 5 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+            length = putVarint(data, length, id - last);
+            blockSize[blocks - 1]++;
+        }
+        last = id;
+        count++;
+    }
+
+    private void insertBlock(int at, int first, int offset, int size) {
+        if (blocks == blockFirst.length) {
+            blockFirst = Arrays.copyOf(blockFirst, blocks * 2);
+            blockOffset = Arrays.copyOf(blockOffset, blocks * 2);
+            blockSize = Arrays.copyOf(blockSize, blocks * 2);
+        }
+        System.arraycopy(blockFirst, at, blockFirst, at + 1, blocks - at);
+        System.arraycopy(blockOffset, at, blockOffset, at + 1, blocks - at);
+        System.arraycopy(blockSize, at, blockSize, at + 1, blocks - at);
+        blockFirst[at] = first;
+        blockOffset[at] = offset;
+        blockSize[at] = size;
+        blocks++;
+    }
+
+    private static int putVarint(byte[] buf, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    // Ids normally arrive in increasing order. A late commit re-encodes only the block it falls in
+    // and shifts the bytes after it; a block that outgrows MAX_BLOCK_SIZE is split in two.
+    private void insertOutOfOrder(int id) {
+        int block = Math.max(0, blockFor(id));
+        int[] ids = new int[MAX_BLOCK_SIZE + 1];
+        int n = decodeBlock(block, ids);
+        int pos = -Arrays.binarySearch(ids, 0, n, id) - 1;
+        System.arraycopy(ids, pos, ids, pos + 1, n - pos);
+        ids[pos] = id;
+        n++;
+
+        int split = n > MAX_BLOCK_SIZE ? n / 2 : n;
+        byte[] encoded = new byte[(n - 1) * 5];
+        int size = 0;
+        int secondOffset = 0;
+        for (int i = 1; i < n; i++) {
+            if (i == split) {
+                secondOffset = size;
+                continue;
+            }
+            size = putVarint(encoded, size, ids[i] - ids[i - 1]);
+        }
+
+        int start = blockOffset[block];
+        int end = block + 1 < blocks ? blockOffset[block + 1] : length;
+        int shift = size - (end - start);
+        if (length + shift > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + shift));
+        System.arraycopy(data, end, data, end + shift, length - end);
+        System.arraycopy(encoded, 0, data, start, size);
+        length += shift;
+        for (int b = block + 1; b < blocks; b++) blockOffset[b] += shift;
+
+        blockFirst[block] = ids[0];
+        blockSize[block] = split;
+        if (split < n) insertBlock(block + 1, ids[split], start + secondOffset, n - split);
+        count++;
+    }
+}
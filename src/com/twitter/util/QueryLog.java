@@ -0,0 +1,197 @@
+package com.twitter.util;
+
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-statement totals plus a bounded log of statements slower than
+ * {@code twitter.metrics.slowQueryMs} (0 turns the log off). Slow queries are
+ * kept with their bind values and the DAO operation that issued them, and
+ * echoed to stderr. Binds are taken from the driver's rendering of the
+ * statement when it is slow; {@code twitter.metrics.traceBinds} records them
+ * as they are set instead, which works with any driver but costs on every call.
+ */
+public class QueryLog implements QueryLogMBean {
+
+    private static final int LOG_SIZE = Integer.getInteger("twitter.metrics.slowQueryLogSize", 100);
+    private static final int MAX_STATEMENTS = 1000;
+    private static final int MAX_BIND_LENGTH = 64;
+    private static final int MAX_SQL_TEXT = 2000;
+
+    private final Map<String, StatementStats> statements = new ConcurrentHashMap<>();
+    private final SlowQuery[] ring = new SlowQuery[LOG_SIZE];
+    private final LongAdder slowCount = new LongAdder();
+    private int next;
+    private volatile long thresholdNanos = Long.getLong("twitter.metrics.slowQueryMs", 250) * 1_000_000L;
+    private volatile boolean traceBinds = Boolean.getBoolean("twitter.metrics.traceBinds");
+
+    static class StatementStats {
+        final String sql;
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        StatementStats(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    public static class SlowQuery {
+        public final long at;
+        public final long micros;
+        public final String operation;
+        public final String sql;
+        public final String binds;
+        public final long rows;
+        public final boolean failed;
+
+        SlowQuery(long micros, String operation, String sql, String binds, long rows, boolean failed) {
+            this.at = System.currentTimeMillis();
+            this.micros = micros;
+            this.operation = operation;
+            this.sql = sql;
+            this.binds = binds;
+            this.rows = rows;
+            this.failed = failed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %.1f ms [%s] %s binds=%s%s%s", new Timestamp(at), micros / 1000.0,
+                    operation == null ? "-" : operation, sql, binds, rows < 0 ? "" : " rows=" + rows,
+                    failed ? " FAILED" : "");
+        }
+    }
+
+    void record(String sql, long nanos, long rows, boolean failed, Object[] binds, Statement statement, String operation) {
+        StatementStats stats = statements.get(sql);
+        if (stats == null && statements.size() < MAX_STATEMENTS) {
+            stats = statements.computeIfAbsent(sql, StatementStats::new);
+        }
+        if (stats != null) {
+            stats.calls.increment();
+            stats.nanos.add(nanos);
+            if (rows > 0) stats.rows.add(rows);
+            if (failed) stats.errors.increment();
+        }
+
+        long threshold = thresholdNanos;
+        if (threshold > 0 && nanos >= threshold && LOG_SIZE > 0) {
+            String bound = binds != null ? formatBinds(binds) : describe(statement);
+            SlowQuery slow = new SlowQuery(nanos / 1000, operation, sql, bound, rows, failed);
+            slowCount.increment();
+            synchronized (ring) {
+                ring[next] = slow;
+                next = (next + 1) % ring.length;
+            }
+            System.err.println("[SLOW QUERY] " + slow);
+        }
+    }
+
+    void recordRows(String sql, long rows) {
+        StatementStats stats = statements.get(sql);
+        if (stats != null && rows > 0) stats.rows.add(rows);
+    }
+
+    // Connector/J renders a prepared statement as "<class>: <sql with values bound>".
+    private static String describe(Statement statement) {
+        if (!(statement instanceof PreparedStatement)) return "[]";
+        String text = String.valueOf(statement);
+        int colon = text.indexOf(": ");
+        if (colon < 0) return "[]";
+        text = text.substring(colon + 2);
+        return text.length() > MAX_SQL_TEXT ? text.substring(0, MAX_SQL_TEXT) + "..." : text;
+    }
+
+    private static String formatBinds(Object[] binds) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 1; i < binds.length; i++) {
+            if (i > 1) sb.append(", ");
+            String value = String.valueOf(binds[i]);
+            if (value.length() > MAX_BIND_LENGTH) value = value.substring(0, MAX_BIND_LENGTH) + "...";
+            sb.append(value);
+        }
+        return sb.append(']').toString();
+    }
+
+    /** Logged slow queries, newest first. */
+    public List<SlowQuery> slowQueries() {
+        List<SlowQuery> out = new ArrayList<>();
+        synchronized (ring) {
+            for (int i = 1; i <= ring.length; i++) {
+                SlowQuery q = ring[(next - i + ring.length) % ring.length];
+                if (q != null) out.add(q);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public long getSlowQueryThresholdMillis() {
+        return thresholdNanos / 1_000_000L;
+    }
+
+    @Override
+    public void setSlowQueryThresholdMillis(long millis) {
+        thresholdNanos = Math.max(0, millis) * 1_000_000L;
+    }
+
+    @Override
+    public boolean isTraceBinds() {
+        return traceBinds;
+    }
+
+    @Override
+    public void setTraceBinds(boolean traceBinds) {
+        this.traceBinds = traceBinds;
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return slowCount.sum();
+    }
+
+    @Override
+    public String[] getRecentSlowQueries() {
+        return slowQueries().stream().map(SlowQuery::toString).toArray(String[]::new);
+    }
+
+    @Override
+    public String[] getTopStatements() {
+        StatementStats[] all = statements.values().toArray(new StatementStats[0]);
+        long[] totals = new long[all.length];
+        Integer[] order = new Integer[all.length];
+        for (int i = 0; i < all.length; i++) {
+            totals[i] = all[i].nanos.sum();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(totals[b], totals[a]));
+        String[] out = new String[Math.min(50, all.length)];
+        for (int i = 0; i < out.length; i++) {
+            StatementStats s = all[order[i]];
+            long calls = s.calls.sum();
+            out[i] = String.format("%.1f ms total, %d calls, %.3f ms avg, %d rows, %d errors: %s",
+                    totals[order[i]] / 1e6, calls, calls == 0 ? 0 : totals[order[i]] / 1e6 / calls,
+                    s.rows.sum(), s.errors.sum(), s.sql);
+        }
+        return out;
+    }
+
+    @Override
+    public void reset() {
+        statements.clear();
+        slowCount.reset();
+        synchronized (ring) {
+            Arrays.fill(ring, null);
+            next = 0;
+        }
+    }
+}
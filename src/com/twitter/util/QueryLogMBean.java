@@ -0,0 +1,23 @@
+package com.twitter.util;
+
+public interface QueryLogMBean {
+
+    long getSlowQueryThresholdMillis();
+
+    void setSlowQueryThresholdMillis(long millis);
+
+    /** Record bind values as they are set on every statement, not only from slow ones. */
+    boolean isTraceBinds();
+
+    void setTraceBinds(boolean traceBinds);
+
+    long getSlowQueryCount();
+
+    /** Most recent slow queries, newest first, with SQL and bind values. */
+    String[] getRecentSlowQueries();
+
+    /** Per-statement totals, most total time first. */
+    String[] getTopStatements();
+
+    void reset();
+}
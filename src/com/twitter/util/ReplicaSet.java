@@ -0,0 +1,214 @@
+package com.twitter.util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read replicas behind the primary pool. Reads go to the healthy replica
+ * with the fewest borrowed connections (round-robin among ties), or to the
+ * primary when none is healthy. A replica is healthy while it answers the
+ * periodic check and reports replication lag that, plus the check interval
+ * it may grow for unseen, stays below the sticky window, so a session that
+ * has been pinned to the primary for that window after its own write can
+ * safely move back to a replica. A replica that reports no replication
+ * status, or a NULL lag, is treated as stopped.
+ */
+public class ReplicaSet implements ReplicaSetMBean {
+
+    private static final int STICKY_PRUNE_SIZE = 10000;
+
+    private static class Replica {
+        final String url;
+        final ConnectionPool pool;
+        volatile boolean healthy = true;
+        volatile long lagSeconds = -1;
+        volatile String lastError;
+
+        Replica(String url, ConnectionPool pool) {
+            this.url = url;
+            this.pool = pool;
+        }
+    }
+
+    private final ConnectionPool primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long stickyWindowMillis;
+    private final long healthCheckMillis;
+    private final Map<Integer, Long> stickyUntil = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder fallbackReads = new LongAdder();
+    private final LongAdder stickyReads = new LongAdder();
+    private final ScheduledExecutorService checker;
+
+    public ReplicaSet(ConnectionPool primary, List<ConnectionPool> replicaPools, List<String> replicaUrls,
+                      long stickyWindowMillis, long healthCheckMillis) {
+        this.primary = primary;
+        for (int i = 0; i < replicaPools.size(); i++) replicas.add(new Replica(replicaUrls.get(i), replicaPools.get(i)));
+        this.stickyWindowMillis = stickyWindowMillis;
+        this.healthCheckMillis = healthCheckMillis;
+        if (!replicaPools.isEmpty() && healthCheckMillis + 1000 >= stickyWindowMillis) {
+            System.err.println("[DB REPLICA] Sticky window " + stickyWindowMillis + " ms leaves no room for lag after a "
+                    + healthCheckMillis + " ms check interval; every read will go to the primary.");
+        }
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-replica-checker");
+            t.setDaemon(true);
+            return t;
+        });
+        if (!replicas.isEmpty()) {
+            checker.scheduleWithFixedDelay(this::checkAll, 0, healthCheckMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Pins {@code sessionId} to the primary for the sticky window. */
+    public void markWrite(int sessionId) {
+        if (replicas.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        stickyUntil.put(sessionId, now + stickyWindowMillis);
+        if (stickyUntil.size() > STICKY_PRUNE_SIZE) stickyUntil.values().removeIf(until -> until < now);
+    }
+
+    public Connection borrowForRead(int sessionId) throws SQLException {
+        if (replicas.isEmpty()) return primary.borrow();
+        Long until = stickyUntil.get(sessionId);
+        if (until != null) {
+            if (until > System.currentTimeMillis()) {
+                stickyReads.increment();
+                return primary.borrow();
+            }
+            stickyUntil.remove(sessionId, until);
+        }
+
+        int n = replicas.size();
+        int start = Math.floorMod(next.getAndIncrement(), n);
+        for (int attempt = 0; attempt < n; attempt++) {
+            Replica best = null;
+            for (int i = 0; i < n; i++) {
+                Replica r = replicas.get((start + i) % n);
+                if (r.healthy && (best == null || r.pool.getActiveCount() < best.pool.getActiveCount())) best = r;
+            }
+            if (best == null) break;
+            try {
+                Connection conn = best.pool.borrow();
+                replicaReads.increment();
+                return conn;
+            } catch (SQLException e) {
+                markUnhealthy(best, e.getMessage());
+            }
+        }
+        fallbackReads.increment();
+        return primary.borrow();
+    }
+
+    public void close() {
+        checker.shutdownNow();
+        for (Replica r : replicas) r.pool.close();
+    }
+
+    private void checkAll() {
+        for (Replica r : replicas) check(r);
+    }
+
+    private void check(Replica r) {
+        try (Connection conn = r.pool.borrow();
+             Statement stmt = conn.createStatement()) {
+            long lag = replicationLag(stmt);
+            r.lagSeconds = lag == Long.MAX_VALUE ? -1 : lag;
+            if (lag == Long.MAX_VALUE) {
+                markUnhealthy(r, "replication is not running");
+            } else if (!withinWindow(lag)) {
+                markUnhealthy(r, "lag " + lag + "s plus " + healthCheckMillis + " ms between checks exceeds "
+                        + stickyWindowMillis + " ms");
+            } else {
+                if (!r.healthy) System.out.println("[DB REPLICA] " + r.url + " is back in rotation");
+                r.healthy = true;
+                r.lastError = null;
+            }
+        } catch (SQLException e) {
+            markUnhealthy(r, e.getMessage());
+        }
+    }
+
+    // The reported lag is whole seconds rounded down, and it can grow for a full interval before the next check.
+    private boolean withinWindow(long lagSeconds) {
+        return (lagSeconds + 1) * 1000 + healthCheckMillis <= stickyWindowMillis;
+    }
+
+    // Seconds behind the source; MAX_VALUE when replication is stopped or not configured on the server.
+    private static long replicationLag(Statement stmt) throws SQLException {
+        ResultSet rs;
+        String column;
+        try {
+            rs = stmt.executeQuery("SHOW REPLICA STATUS");
+            column = "Seconds_Behind_Source";
+        } catch (SQLException e) {
+            rs = stmt.executeQuery("SHOW SLAVE STATUS");
+            column = "Seconds_Behind_Master";
+        }
+        if (!rs.next()) return Long.MAX_VALUE;
+        long lag = rs.getLong(column);
+        return rs.wasNull() ? Long.MAX_VALUE : lag;
+    }
+
+    private void markUnhealthy(Replica r, String reason) {
+        if (r.healthy) System.err.println("[DB REPLICA] Taking " + r.url + " out of rotation: " + reason);
+        r.healthy = false;
+        r.lastError = reason;
+    }
+
+    @Override
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    @Override
+    public int getHealthyReplicaCount() {
+        int healthy = 0;
+        for (Replica r : replicas) if (r.healthy) healthy++;
+        return healthy;
+    }
+
+    @Override
+    public String[] getReplicaStatus() {
+        String[] out = new String[replicas.size()];
+        for (int i = 0; i < out.length; i++) {
+            Replica r = replicas.get(i);
+            out[i] = String.format("%s %s lag=%ss active=%d%s", r.url, r.healthy ? "UP" : "DOWN",
+                    r.lagSeconds < 0 ? "?" : String.valueOf(r.lagSeconds), r.pool.getActiveCount(),
+                    r.lastError == null ? "" : " (" + r.lastError + ")");
+        }
+        return out;
+    }
+
+    @Override
+    public long getReplicaReads() {
+        return replicaReads.sum();
+    }
+
+    @Override
+    public long getPrimaryFallbackReads() {
+        return fallbackReads.sum();
+    }
+
+    @Override
+    public long getStickyReads() {
+        return stickyReads.sum();
+    }
+
+    @Override
+    public long getStickyWindowMillis() {
+        return stickyWindowMillis;
+    }
+}
@@ -0,0 +1,18 @@
+package com.twitter.util;
+
+public interface ReplicaSetMBean {
+
+    int getReplicaCount();
+
+    int getHealthyReplicaCount();
+
+    String[] getReplicaStatus();
+
+    long getReplicaReads();
+
+    long getPrimaryFallbackReads();
+
+    long getStickyReads();
+
+    long getStickyWindowMillis();
+}
@@ -0,0 +1,491 @@
+package com.twitter.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Partitions user-owned rows over several MySQL databases. Shard 0 is the
+ * primary from {@code twitter.db.url}; besides its share of users it holds
+ * every table that is not partitioned (users, follows, cursors, ...) and the
+ * bucket map. A user id hashes to one of {@link #BUCKETS} buckets and
+ * {@code shard_buckets} assigns each bucket to a shard, so moving users
+ * between shards means copying a bucket and updating one row
+ * ({@code ReshardTool}). Instances re-read the map every
+ * {@code twitter.db.shardMapRefreshMs}. While a bucket is frozen for the end
+ * of a move its users' rows can still be read but not written.
+ * <p>
+ * With a single shard nothing is looked up: every user maps to shard 0,
+ * {@link #allocateId} leaves ids to AUTO_INCREMENT and {@link #scatter} runs
+ * inline on the caller's thread.
+ */
+public class ShardRouter implements ShardRouterMBean {
+
+    public static final int BUCKETS = 1024;
+
+    /** Work against one shard; {@link #scatter} runs one per shard, in parallel. */
+    public interface ShardQuery<T> {
+        T run(int shard) throws SQLException;
+    }
+
+    private static final String LOAD_MAP_SQL = "SELECT bucket, shard, frozen FROM shard_buckets";
+    private static final String INIT_MAP_SQL = "INSERT IGNORE INTO shard_buckets (bucket, shard) VALUES (?, ?)";
+    private static final String MOVE_BUCKET_SQL = "UPDATE shard_buckets SET shard = ?, frozen = FALSE WHERE bucket = ?";
+    private static final String FREEZE_BUCKET_SQL = "UPDATE shard_buckets SET frozen = ? WHERE bucket = ?";
+    private static final String NEXT_ID_SQL = "UPDATE id_blocks SET next_id = LAST_INSERT_ID(next_id + ?) WHERE name = ?";
+    private static final String LAST_ID_SQL = "SELECT LAST_INSERT_ID()";
+    private static final String INIT_ID_SQL = "INSERT IGNORE INTO id_blocks (name, next_id) VALUES (?, ?)";
+
+    private final List<ConnectionPool> pools;
+    private final List<String> urls;
+    private final int[] shardIds;
+    private final long refreshMillis;
+    private volatile int[] bucketShards = new int[BUCKETS];
+    // Published after bucketShards, so a reader never sees a bucket's new shard as writable before it is.
+    private volatile boolean[] frozenBuckets = new boolean[BUCKETS];
+    private final ExecutorService workers;
+    private final ScheduledExecutorService refresher;
+    private final LongAdder singleShardQueries = new LongAdder();
+    private final LongAdder scatterQueries = new LongAdder();
+    private final Map<String, IdCounter> idCounters = new ConcurrentHashMap<>();
+
+    /**
+     * {@code pools.get(0)} is the primary pool; the others are owned by the
+     * router and closed with it. Fails if the bucket map cannot be read, since
+     * routing without it would put rows on the wrong shard.
+     */
+    public ShardRouter(List<ConnectionPool> pools, List<String> urls, long refreshMillis, int threads) {
+        this.pools = pools;
+        this.urls = urls;
+        this.shardIds = new int[pools.size()];
+        for (int i = 0; i < shardIds.length; i++) shardIds[i] = i;
+        this.refreshMillis = refreshMillis;
+        if (pools.size() == 1) {
+            workers = null;
+            refresher = null;
+            return;
+        }
+        try {
+            loadMap();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not load the shard map: " + e.getMessage(), e);
+        }
+        AtomicInteger n = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "shard-query-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "shard-map-refresher");
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        System.out.println("[SHARD] Routing over " + pools.size() + " shards");
+    }
+
+    public static int bucketOf(int userId) {
+        int h = userId;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & (BUCKETS - 1);
+    }
+
+    public int shardCount() {
+        return pools.size();
+    }
+
+    public boolean isSharded() {
+        return pools.size() > 1;
+    }
+
+    public int shardOf(int userId) {
+        return pools.size() == 1 ? 0 : bucketShards[bucketOf(userId)];
+    }
+
+    /** Every shard id, for queries that have to ask all of them. */
+    public int[] allShards() {
+        return shardIds.clone();
+    }
+
+    /** Primary connection of a shard: writes, and reads that must see them. */
+    public Connection connection(int shard) throws SQLException {
+        return pools.get(shard).borrow();
+    }
+
+    /** Shard 0 reads may go to its replicas (see {@link DBConnection#getReadConnection}); other shards have none. */
+    public Connection readConnection(int shard, int sessionUserId) throws SQLException {
+        return shard == 0 ? DBConnection.getReadConnection(sessionUserId) : pools.get(shard).borrow();
+    }
+
+    /** Primary connection for writing the user's rows; fails while their bucket is frozen. */
+    public Connection forUser(int userId) throws SQLException {
+        checkWritable(userId);
+        return connection(shardOf(userId));
+    }
+
+    /** Throws while the user's bucket is frozen by a move, so no write lands on the shard it is leaving. */
+    public void checkWritable(int userId) throws SQLException {
+        if (pools.size() == 1) return;
+        int bucket = bucketOf(userId);
+        if (frozenBuckets[bucket]) {
+            throw new SQLException("Bucket " + bucket + " is being moved to another shard; try again shortly");
+        }
+    }
+
+    /** Users grouped by the shard that owns them, in shard order. */
+    public Map<Integer, List<Integer>> groupByShard(int[] userIds) {
+        Map<Integer, List<Integer>> groups = new TreeMap<>();
+        for (int id : userIds) groups.computeIfAbsent(shardOf(id), k -> new ArrayList<>()).add(id);
+        return groups;
+    }
+
+    /**
+     * Runs {@code query} once per listed shard, all at the same time, and
+     * returns the results in the order of {@code shards}. Statements are
+     * attributed to the caller's metrics scope. The first failure is rethrown
+     * once every query has finished or been cancelled.
+     */
+    public <T> List<T> scatter(int[] shards, ShardQuery<T> query) throws SQLException {
+        List<T> results = new ArrayList<>(shards.length);
+        if (shards.length <= 1 || workers == null) {
+            singleShardQueries.increment();
+            for (int shard : shards) results.add(query.run(shard));
+            return results;
+        }
+        scatterQueries.increment();
+        Metrics.Scope scope = Metrics.current();
+        List<Future<T>> futures = new ArrayList<>(shards.length);
+        for (int shard : shards) {
+            futures.add(workers.submit(() -> {
+                Metrics.Scope previous = Metrics.attach(scope);
+                try {
+                    return query.run(shard);
+                } finally {
+                    Metrics.attach(previous);
+                }
+            }));
+        }
+        SQLException failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(failure == null ? future.get() : null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new SQLException("Interrupted while waiting for shards");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                failure = cause instanceof SQLException ? (SQLException) cause : new SQLException(cause);
+            }
+            if (failure != null) future.cancel(true);
+        }
+        if (failure != null) throw failure;
+        return results;
+    }
+
+    /**
+     * Next id for {@code table}, unique across shards and increasing across
+     * every instance, as AUTO_INCREMENT was on one database: the cursors and
+     * keyset pages that compare ids rely on that order. Returns 0 when there
+     * is a single shard; bind it with {@link #bindId} so AUTO_INCREMENT
+     * assigns one.
+     */
+    public int allocateId(String table, String idColumn) throws SQLException {
+        return allocateIds(table, idColumn, 1);
+    }
+
+    /**
+     * First of {@code n} consecutive ids for {@code table}, or 0 when there is
+     * a single shard or {@code n} is 0. Ids come from the table's row in
+     * {@code id_blocks} on shard 0. Requests that arrive on this instance
+     * while an increment is running are combined into the next one, so
+     * under load each instance updates that row once per round trip rather
+     * than once per id. Call it before opening a transaction, so the row lock
+     * is never held across one.
+     */
+    public int allocateIds(String table, String idColumn, int n) throws SQLException {
+        if (pools.size() == 1 || n == 0) return 0;
+        return idCounters.computeIfAbsent(table, t -> new IdCounter(t, idColumn)).allocate(n);
+    }
+
+    /** Reserves {@code n} ids in one autocommit statement and returns the first. */
+    private int nextIds(String table, String idColumn, int n) throws SQLException {
+        try (Connection conn = pools.get(0).borrow()) {
+            PreparedStatement next = conn.prepareStatement(NEXT_ID_SQL, Statement.RETURN_GENERATED_KEYS);
+            next.setInt(1, n);
+            next.setString(2, table);
+            if (next.executeUpdate() == 0) {
+                // First allocation: continue above every id AUTO_INCREMENT handed out before sharding.
+                int start = 1;
+                for (int max : scatter(shardIds, shard -> maxId(shard, table, idColumn))) start = Math.max(start, max + 1);
+                PreparedStatement init = conn.prepareStatement(INIT_ID_SQL);
+                init.setString(1, table);
+                init.setInt(2, start);
+                init.executeUpdate();
+                next.executeUpdate();
+            }
+            // LAST_INSERT_ID(expr) comes back in the OK packet as the generated key; LAST_INSERT_ID is per
+            // connection, so the fallback query also reads the value set above and nobody else's.
+            ResultSet rs = next.getGeneratedKeys();
+            if (!rs.next()) rs = conn.prepareStatement(LAST_ID_SQL).executeQuery();
+            if (!rs.next()) throw new SQLException("No id returned for " + table);
+            return rs.getInt(1) - n;
+        }
+    }
+
+    private static final class IdRequest {
+        final int n;
+        int first;
+        SQLException failure;
+        boolean done;
+
+        IdRequest(int n) {
+            this.n = n;
+        }
+    }
+
+    /**
+     * Combines concurrent allocations for one table: the first caller runs the
+     * increment for everything queued, the rest wait for their share.
+     */
+    private final class IdCounter {
+        private final String table;
+        private final String idColumn;
+        private List<IdRequest> pending = new ArrayList<>();
+        private boolean running;
+
+        IdCounter(String table, String idColumn) {
+            this.table = table;
+            this.idColumn = idColumn;
+        }
+
+        int allocate(int n) throws SQLException {
+            IdRequest req = new IdRequest(n);
+            List<IdRequest> batch;
+            synchronized (this) {
+                pending.add(req);
+                try {
+                    while (running && !req.done) wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for an id", e);
+                }
+                if (!req.done) {
+                    running = true;
+                    batch = pending;
+                    pending = new ArrayList<>();
+                } else {
+                    batch = null;
+                }
+            }
+            if (batch != null) run(batch);
+            if (req.failure != null) throw req.failure;
+            return req.first;
+        }
+
+        private void run(List<IdRequest> batch) {
+            int total = 0;
+            for (IdRequest r : batch) total += r.n;
+            int first = 0;
+            SQLException failure = null;
+            try {
+                first = nextIds(table, idColumn, total);
+            } catch (SQLException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new SQLException("Id allocation failed for " + table, e);
+            }
+            synchronized (this) {
+                for (IdRequest r : batch) {
+                    r.first = first;
+                    r.failure = failure;
+                    r.done = true;
+                    first += r.n;
+                }
+                running = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Binds an id from {@link #allocateId}, or NULL for 0. */
+    public static void bindId(PreparedStatement ps, int idx, int id) throws SQLException {
+        if (id == 0) ps.setNull(idx, Types.INTEGER);
+        else ps.setInt(idx, id);
+    }
+
+    private int maxId(int shard, String table, String idColumn) throws SQLException {
+        try (Connection conn = connection(shard);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(" + idColumn + "), 0) FROM " + table)) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /** Copy of the current bucket to shard assignment. */
+    public int[] getBucketMap() {
+        return bucketShards.clone();
+    }
+
+    /**
+     * Points {@code bucket} at {@code shard} and unfreezes it, in the stored
+     * map and in this instance; other instances follow on their next refresh.
+     * Moves no rows.
+     */
+    public void moveBucket(int bucket, int shard) throws SQLException {
+        if (shard < 0 || shard >= pools.size()) throw new IllegalArgumentException("No shard " + shard);
+        try (Connection conn = pools.get(0).borrow();
+             PreparedStatement pstmt = conn.prepareStatement(MOVE_BUCKET_SQL)) {
+            pstmt.setInt(1, shard);
+            pstmt.setInt(2, bucket);
+            pstmt.executeUpdate();
+        }
+        int[] map = bucketShards.clone();
+        map[bucket] = shard;
+        bucketShards = map;
+        setFrozen(bucket, false);
+    }
+
+    /** Stops (or resumes) writes to the bucket's users on every instance from its next refresh on. */
+    public void freezeBucket(int bucket, boolean frozen) throws SQLException {
+        try (Connection conn = pools.get(0).borrow();
+             PreparedStatement pstmt = conn.prepareStatement(FREEZE_BUCKET_SQL)) {
+            pstmt.setBoolean(1, frozen);
+            pstmt.setInt(2, bucket);
+            pstmt.executeUpdate();
+        }
+        setFrozen(bucket, frozen);
+    }
+
+    private void setFrozen(int bucket, boolean frozen) {
+        boolean[] flags = frozenBuckets.clone();
+        flags[bucket] = frozen;
+        frozenBuckets = flags;
+    }
+
+    public long getRefreshMillis() {
+        return refreshMillis;
+    }
+
+    public String getShardUrl(int shard) {
+        return urls.get(shard);
+    }
+
+    public void refresh() {
+        try {
+            loadMap();
+        } catch (SQLException e) {
+            System.err.println("[SHARD] Could not refresh the shard map, keeping the current one: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        if (workers != null) workers.shutdownNow();
+        if (refresher != null) refresher.shutdownNow();
+        for (int i = 1; i < pools.size(); i++) pools.get(i).close();
+    }
+
+    private void loadMap() throws SQLException {
+        int[] map = new int[BUCKETS];
+        boolean[] frozen = new boolean[BUCKETS];
+        try (Connection conn = pools.get(0).borrow()) {
+            if (readMap(conn, map, frozen) < BUCKETS) {
+                // First start with several shards: store the default layout, so that adding a
+                // shard URL later moves nothing until ReshardTool assigns buckets to it.
+                PreparedStatement init = conn.prepareStatement(INIT_MAP_SQL);
+                for (int b = 0; b < BUCKETS; b++) {
+                    if (map[b] >= 0) continue;
+                    init.setInt(1, b);
+                    init.setInt(2, b % pools.size());
+                    init.addBatch();
+                }
+                init.executeBatch();
+                if (readMap(conn, map, frozen) < BUCKETS) throw new SQLException("shard_buckets is incomplete");
+            }
+        }
+        for (int b = 0; b < BUCKETS; b++) {
+            if (map[b] >= pools.size()) {
+                throw new SQLException("shard_buckets maps bucket " + b + " to shard " + map[b]
+                        + " but only " + pools.size() + " shards are configured");
+            }
+        }
+        bucketShards = map;
+        frozenBuckets = frozen;
+    }
+
+    private static int readMap(Connection conn, int[] map, boolean[] frozen) throws SQLException {
+        Arrays.fill(map, -1);
+        int found = 0;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(LOAD_MAP_SQL)) {
+            while (rs.next()) {
+                int bucket = rs.getInt("bucket");
+                if (bucket < 0 || bucket >= BUCKETS || map[bucket] >= 0) continue;
+                map[bucket] = rs.getInt("shard");
+                frozen[bucket] = rs.getBoolean("frozen");
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public int getShardCount() {
+        return pools.size();
+    }
+
+    @Override
+    public String[] getShardStatus() {
+        int[] map = bucketShards;
+        boolean[] frozen = frozenBuckets;
+        int[] buckets = new int[pools.size()];
+        int[] frozenCount = new int[pools.size()];
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets[map[b]]++;
+            if (frozen[b]) frozenCount[map[b]]++;
+        }
+        String[] out = new String[pools.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = String.format("%d %s buckets=%d active=%d%s", i, urls.get(i), buckets[i], pools.get(i).getActiveCount(),
+                    frozenCount[i] == 0 ? "" : " frozen=" + frozenCount[i]);
+        }
+        return out;
+    }
+
+    @Override
+    public long getSingleShardQueries() {
+        return singleShardQueries.sum();
+    }
+
+    @Override
+    public long getScatterQueries() {
+        return scatterQueries.sum();
+    }
+
+    @Override
+    public long getShardMapRefreshMillis() {
+        return refreshMillis;
+    }
+}
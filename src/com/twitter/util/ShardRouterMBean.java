@@ -0,0 +1,14 @@
+package com.twitter.util;
+
+public interface ShardRouterMBean {
+
+    int getShardCount();
+
+    String[] getShardStatus();
+
+    long getSingleShardQueries();
+
+    long getScatterQueries();
+
+    long getShardMapRefreshMillis();
+}
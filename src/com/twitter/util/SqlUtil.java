@@ -0,0 +1,57 @@
+package com.twitter.util;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+public class SqlUtil {
+
+    /** Deadlock victim or lock wait timeout: the transaction was rolled back and can simply be run again. */
+    public static boolean isRetryable(SQLException e) {
+        return "40001".equals(e.getSQLState()) || e.getErrorCode() == 1213 || e.getErrorCode() == 1205;
+    }
+
+    /** The row is already there: an INSERT of a key that was written before. */
+    public static boolean isDuplicateKey(SQLException e) {
+        return e.getErrorCode() == 1062;
+    }
+
+    /**
+     * Rounds an IN-list size up to the next power of two so the statement cache
+     * only ever sees a handful of distinct SQL shapes.
+     */
+    public static int paddedSize(int n) {
+        if (n <= 1) return 1;
+        return Integer.highestOneBit(n - 1) << 1;
+    }
+
+    public static String placeholders(int n) {
+        StringBuilder sb = new StringBuilder(n * 3);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
+    public static String paddedPlaceholders(int n) {
+        return placeholders(paddedSize(n));
+    }
+
+    /** Binds values starting at {@code firstIndex}, repeating the last value to fill the padded slots. */
+    public static int bindPaddedStrings(PreparedStatement ps, int firstIndex, List<String> values) throws SQLException {
+        int size = paddedSize(values.size());
+        for (int i = 0; i < size; i++) {
+            ps.setString(firstIndex + i, values.get(Math.min(i, values.size() - 1)));
+        }
+        return firstIndex + size;
+    }
+
+    public static int bindPaddedInts(PreparedStatement ps, int firstIndex, int[] values, int count) throws SQLException {
+        int size = paddedSize(count);
+        for (int i = 0; i < size; i++) {
+            ps.setInt(firstIndex + i, values[Math.min(i, count - 1)]);
+        }
+        return firstIndex + size;
+    }
+}
@@ -2,6 +2,15 @@ USE TwitterDB;
 
 SET FOREIGN_KEY_CHECKS = 0;
 
+DROP TABLE IF EXISTS id_blocks;
+DROP TABLE IF EXISTS shard_buckets;
+DROP TABLE IF EXISTS post_view_sketches;
+DROP TABLE IF EXISTS post_hashtags;
+DROP TABLE IF EXISTS notification_cursors;
+DROP TABLE IF EXISTS dm_conversations;
+DROP TABLE IF EXISTS post_like_counts;
+DROP TABLE IF EXISTS home_timelines;
+DROP TABLE IF EXISTS celebrity_users;
 DROP TABLE IF EXISTS mentions;
 DROP TABLE IF EXISTS trending_posts;
 DROP TABLE IF EXISTS user_pins;
@@ -35,9 +44,12 @@ CREATE TABLE posts (
     user_id INT NOT NULL,
     content TEXT NOT NULL,
     view_count INT DEFAULT 0,
+    unique_view_count INT NOT NULL DEFAULT 0,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
     
+    INDEX idx_posts_user_created (user_id, created_at),
+
     CONSTRAINT fk_post_user 
         FOREIGN KEY (user_id) REFERENCES users(user_id) 
         ON DELETE CASCADE
@@ -51,6 +63,7 @@ CREATE TABLE comments (
     parent_comment_id INT DEFAULT NULL,
     content TEXT NOT NULL,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    INDEX idx_comments_post_parent (post_id, parent_comment_id, comment_id),
     
     CONSTRAINT fk_comment_post 
         FOREIGN KEY (post_id) REFERENCES posts(post_id) 
@@ -68,8 +81,11 @@ CREATE TABLE follows (
     follower_id INT NOT NULL,
     following_id INT NOT NULL,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    follow_seq BIGINT NOT NULL AUTO_INCREMENT,
     
     PRIMARY KEY (follower_id, following_id),
+    UNIQUE KEY uk_follows_seq (follow_seq),
+    INDEX idx_follows_following (following_id),
     
     CONSTRAINT fk_follow_follower 
         FOREIGN KEY (follower_id) REFERENCES users(user_id) 
@@ -86,6 +102,7 @@ CREATE TABLE post_likes (
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     
     PRIMARY KEY (user_id, post_id),
+    INDEX idx_post_likes_post (post_id),
     
     CONSTRAINT fk_like_post_user 
         FOREIGN KEY (user_id) REFERENCES users(user_id) 
@@ -118,6 +135,8 @@ CREATE TABLE direct_messages (
     receiver_id INT NOT NULL,
     content TEXT NOT NULL,
     sent_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+
+    INDEX idx_dm_pair (sender_id, receiver_id, message_id),
     
     CONSTRAINT fk_dm_sender 
         FOREIGN KEY (sender_id) REFERENCES users(user_id) 
@@ -181,9 +200,120 @@ CREATE TABLE password_tokens (
 CREATE TABLE trending_posts (
     post_id INT PRIMARY KEY,
     score DECIMAL(10, 2) NOT NULL DEFAULT 0.00,
-    updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP(3) DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3),
     
     CONSTRAINT fk_trending_post 
         FOREIGN KEY (post_id) REFERENCES posts(post_id) 
         ON DELETE CASCADE
-);
\ No newline at end of file
+);
+
+-- Table: HOME_TIMELINES (Materialized fan-out-on-write timelines)
+CREATE TABLE home_timelines (
+    user_id INT NOT NULL,
+    post_id INT NOT NULL,
+    created_at TIMESTAMP NOT NULL,
+
+    PRIMARY KEY (user_id, post_id),
+    INDEX idx_home_user_created (user_id, created_at, post_id),
+
+    CONSTRAINT fk_home_user
+        FOREIGN KEY (user_id) REFERENCES users(user_id)
+        ON DELETE CASCADE,
+    CONSTRAINT fk_home_post
+        FOREIGN KEY (post_id) REFERENCES posts(post_id)
+        ON DELETE CASCADE
+);
+
+-- Table: CELEBRITY_USERS (Authors merged at read time instead of fanned out)
+CREATE TABLE celebrity_users (
+    user_id INT PRIMARY KEY,
+
+    CONSTRAINT fk_celebrity_user
+        FOREIGN KEY (user_id) REFERENCES users(user_id)
+        ON DELETE CASCADE
+);
+
+-- Table: POST_LIKE_COUNTS (Denormalized like counters, split into slots per post)
+CREATE TABLE post_like_counts (
+    post_id INT NOT NULL,
+    slot TINYINT NOT NULL,
+    like_count INT NOT NULL DEFAULT 0,
+
+    PRIMARY KEY (post_id, slot),
+
+    CONSTRAINT fk_like_count_post
+        FOREIGN KEY (post_id) REFERENCES posts(post_id)
+        ON DELETE CASCADE
+);
+
+-- Table: DM_CONVERSATIONS (One summary row per participant of each DM pair, maintained by sendDM)
+CREATE TABLE dm_conversations (
+    user_id INT NOT NULL,
+    peer_id INT NOT NULL,
+    last_message_id INT NOT NULL,
+    unread_count INT NOT NULL DEFAULT 0,
+
+    PRIMARY KEY (user_id, peer_id),
+    INDEX idx_dm_conv_recent (user_id, last_message_id),
+
+    CONSTRAINT fk_dm_conv_user
+        FOREIGN KEY (user_id) REFERENCES users(user_id)
+        ON DELETE CASCADE,
+    CONSTRAINT fk_dm_conv_peer
+        FOREIGN KEY (peer_id) REFERENCES users(user_id)
+        ON DELETE CASCADE
+);
+
+-- Table: NOTIFICATION_CURSORS (Newest mention / received message each user has seen; drives the unread badge)
+CREATE TABLE notification_cursors (
+    user_id INT PRIMARY KEY,
+    last_seen_mention_id INT NOT NULL DEFAULT 0,
+    last_seen_message_id INT NOT NULL DEFAULT 0,
+
+    CONSTRAINT fk_notif_cursor_user
+        FOREIGN KEY (user_id) REFERENCES users(user_id)
+        ON DELETE CASCADE
+);
+
+-- Table: POST_HASHTAGS (Lower-cased #tags of each post, written by createPost)
+CREATE TABLE post_hashtags (
+    tag VARCHAR(100) NOT NULL,
+    post_id INT NOT NULL,
+    created_at TIMESTAMP NOT NULL,
+
+    PRIMARY KEY (tag, post_id),
+    INDEX idx_post_hashtags_post (post_id),
+    INDEX idx_post_hashtags_recent (created_at),
+
+    CONSTRAINT fk_hashtag_post
+        FOREIGN KEY (post_id) REFERENCES posts(post_id)
+        ON DELETE CASCADE
+);
+
+-- Table: POST_VIEW_SKETCHES (HyperLogLog of distinct viewers per post; bucket 0 is all time, otherwise a UTC day number)
+CREATE TABLE post_view_sketches (
+    post_id INT NOT NULL,
+    bucket INT NOT NULL,
+    sketch VARBINARY(1100) NOT NULL,
+
+    PRIMARY KEY (post_id, bucket),
+    INDEX idx_view_sketch_bucket (bucket),
+
+    CONSTRAINT fk_view_sketch_post
+        FOREIGN KEY (post_id) REFERENCES posts(post_id)
+        ON DELETE CASCADE
+);
+
+-- Table: SHARD_BUCKETS (Shard of each of the 1024 user buckets; only read on the primary, filled on first sharded start)
+-- frozen: writes to the bucket's users are refused while ReshardTool finishes moving it
+CREATE TABLE shard_buckets (
+    bucket INT PRIMARY KEY,
+    shard INT NOT NULL,
+    frozen BOOLEAN NOT NULL DEFAULT FALSE
+);
+
+-- Table: ID_BLOCKS (Next free id of each sharded table; every app instance takes its ids from here, in order)
+CREATE TABLE id_blocks (
+    name VARCHAR(32) PRIMARY KEY,
+    next_id INT NOT NULL
+);
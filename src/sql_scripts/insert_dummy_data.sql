@@ -2,6 +2,14 @@ USE TwitterDB;
 
 -- 1. CLEANUP
 SET FOREIGN_KEY_CHECKS = 0;
+TRUNCATE TABLE id_blocks;
+TRUNCATE TABLE post_view_sketches;
+TRUNCATE TABLE post_hashtags;
+TRUNCATE TABLE notification_cursors;
+TRUNCATE TABLE dm_conversations;
+TRUNCATE TABLE post_like_counts;
+TRUNCATE TABLE home_timelines;
+TRUNCATE TABLE celebrity_users;
 TRUNCATE TABLE mentions;
 TRUNCATE TABLE trending_posts;
 TRUNCATE TABLE user_pins;
@@ -59,6 +67,12 @@ INSERT INTO posts (user_id, content, view_count, created_at) VALUES
 INSERT INTO posts (user_id, content, view_count, created_at) VALUES 
 (5, 'Travel photography is my passion. Here is a thought from Paris.', 1200, NOW() - INTERVAL 30 MINUTE);
 
+-- Materialize home timelines (own posts + posts of followed accounts)
+INSERT INTO home_timelines (user_id, post_id, created_at)
+SELECT p.user_id, p.post_id, p.created_at FROM posts p
+UNION
+SELECT f.follower_id, p.post_id, p.created_at FROM posts p JOIN follows f ON f.following_id = p.user_id;
+
 -- =============================================
 -- 5. INSERT MENTIONS (Sync with text content)
 -- =============================================
@@ -93,6 +107,10 @@ INSERT INTO post_likes (user_id, post_id) VALUES (1, 5), (2, 5), (4, 5), (5, 5);
 -- Alice and Dave like Bob's project post (ID 3)
 INSERT INTO post_likes (user_id, post_id) VALUES (1, 3), (4, 3);
 
+-- Seed the denormalized counters from the likes above
+INSERT INTO post_like_counts (post_id, slot, like_count)
+SELECT post_id, 0, COUNT(*) FROM post_likes GROUP BY post_id;
+
 -- Alice likes Bob's reply comment (Comment ID 2)
 INSERT INTO comment_likes (user_id, comment_id) VALUES (1, 2);
 
@@ -108,6 +126,14 @@ INSERT INTO direct_messages (sender_id, receiver_id, content, sent_at) VALUES
 INSERT INTO direct_messages (sender_id, receiver_id, content, sent_at) VALUES 
 (1, 2, 'Yes, I saw it. Sending the file now.', NOW() - INTERVAL 15 MINUTE);
 
+-- Seed the conversation summaries: latest message per pair for each side, received messages unread
+INSERT INTO dm_conversations (user_id, peer_id, last_message_id, unread_count)
+SELECT owner_id, peer_id, MAX(message_id), SUM(received)
+FROM (SELECT sender_id AS owner_id, receiver_id AS peer_id, message_id, 0 AS received FROM direct_messages
+      UNION ALL
+      SELECT receiver_id, sender_id, message_id, 1 FROM direct_messages) d
+GROUP BY owner_id, peer_id;
+
 -- =============================================
 -- 9. INSERT MISC DATA (Pins, Tokens, Trending)
 -- =============================================
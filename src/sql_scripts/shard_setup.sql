@@ -0,0 +1,18 @@
+-- Run after create_table.sql on every database listed in twitter.db.url and twitter.db.shards.
+-- Posts, comments, likes, mentions and messages live on their owner's shard while users stay on
+-- the primary, so the foreign keys that point across that boundary are dropped. Keys between
+-- tables kept together (a post and its comments, likes, counters) stay in place.
+USE TwitterDB;
+
+ALTER TABLE posts DROP FOREIGN KEY fk_post_user;
+ALTER TABLE comments DROP FOREIGN KEY fk_comment_user;
+ALTER TABLE post_likes DROP FOREIGN KEY fk_like_post_user;
+ALTER TABLE comment_likes DROP FOREIGN KEY fk_like_comment_user;
+ALTER TABLE direct_messages DROP FOREIGN KEY fk_dm_sender;
+ALTER TABLE direct_messages DROP FOREIGN KEY fk_dm_receiver;
+ALTER TABLE mentions DROP FOREIGN KEY fk_mention_user;
+ALTER TABLE dm_conversations DROP FOREIGN KEY fk_dm_conv_user;
+ALTER TABLE dm_conversations DROP FOREIGN KEY fk_dm_conv_peer;
+ALTER TABLE trending_posts DROP FOREIGN KEY fk_trending_post;
+ALTER TABLE user_pins DROP FOREIGN KEY fk_pin_post;
+ALTER TABLE home_timelines DROP FOREIGN KEY fk_home_post;